@@ -0,0 +1,49 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * In place conversion of the DCI-P3 image to sRGB without alpha, with
+ * straight alpha and with premultiplied alpha, the throughput with alpha
+ * should match the one without.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlphaConvertBenchmark {
+
+	@Param({ "none", "straight", "premultiplied" })
+	public String alpha;
+
+	public BufferedImage img;
+
+	@Setup(Level.Trial)
+	public void setup(ImageState state) {
+		img = SourceImages.withAlpha(state.img, !"none".equals(alpha), "premultiplied".equals(alpha));
+	}
+
+	@Benchmark
+	public BufferedImage changeRasterToSrgb(ImageState state, PixelCounter counter) throws Throwable {
+		// converts in place like ColorConvertBenchmark
+		ImagingMethods.changeRasterToSrgb(img, state.profile);
+		counter.add(state.size, state.size);
+		return img;
+	}
+}
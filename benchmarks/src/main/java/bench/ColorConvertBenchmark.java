@@ -0,0 +1,38 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Color conversion from the embedded DCI-P3 profile to sRGB.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorConvertBenchmark {
+
+	@Benchmark
+	public BufferedImage convertToSrgb(ImageState state, PixelCounter counter) throws Throwable {
+		counter.add(state.size, state.size);
+		return ImagingMethods.convertToSrgb(state.img);
+	}
+
+	@Benchmark
+	public BufferedImage changeRasterToSrgb(ImageState state, PixelCounter counter) throws Throwable {
+		// converts in place, so every invocation converts the result of the last one
+		// which costs the same as converting the original pixels
+		ImagingMethods.changeRasterToSrgb(state.img, state.profile);
+		counter.add(state.size, state.size);
+		return state.img;
+	}
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blurring with the 2x2 box kernel of convolve, and with ConvolveOp for
+ * comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvolveBenchmark {
+
+	private static final Kernel BOX_KERNEL = new Kernel(2, 2, new float[] { 0.25f, 0.25f, 0.25f, 0.25f });
+
+	@Benchmark
+	public BufferedImage convolve(ImageState state, PixelCounter counter) throws Throwable {
+		counter.add(state.size, state.size);
+		return ImagingMethods.convolve(state.img);
+	}
+
+	@Benchmark
+	public BufferedImage convolveOp(ImageState state, PixelCounter counter) {
+		counter.add(state.size, state.size);
+		return new ConvolveOp(BOX_KERNEL, ConvolveOp.EDGE_NO_OP, null).filter(state.img, null);
+	}
+}
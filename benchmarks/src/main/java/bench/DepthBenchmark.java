@@ -0,0 +1,65 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reduction of 16-bit images to 8-bit with the changeTo8BitDepth variants.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DepthBenchmark {
+
+	@State(Scope.Thread)
+	public static class Image16State {
+		@Param({ "512", "2048" })
+		public int size;
+
+		public BufferedImage img;
+
+		@Setup(Level.Trial)
+		public void setup() throws Throwable {
+			img = SourceImages.getTestImage(16, size);
+		}
+	}
+
+	@Benchmark
+	public BufferedImage changeTo8BitDepth(Image16State state, PixelCounter counter) throws Throwable {
+		counter.add(state.size, state.size);
+		return ImagingMethods.changeTo8BitDepth(state.img);
+	}
+
+	@Benchmark
+	public BufferedImage changeTo8BitDepth1(Image16State state, PixelCounter counter) throws Throwable {
+		counter.add(state.size, state.size);
+		return ImagingMethods.changeTo8BitDepth1(state.img);
+	}
+
+	@Benchmark
+	public BufferedImage changeTo8BitDepth2(Image16State state, PixelCounter counter) throws Throwable {
+		counter.add(state.size, state.size);
+		return ImagingMethods.changeTo8BitDepth2(state.img);
+	}
+
+	@Benchmark
+	public BufferedImage changeTo8BitDepthLut(Image16State state, PixelCounter counter) throws Throwable {
+		counter.add(state.size, state.size);
+		return ImagingMethods.changeTo8BitDepthLut(state.img);
+	}
+}
@@ -0,0 +1,32 @@
+package bench;
+
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Source image parameterized by size and bit depth.
+ */
+@State(Scope.Thread)
+public class ImageState {
+
+	@Param({ "512", "2048" })
+	public int size;
+
+	@Param({ "8", "16" })
+	public int bits;
+
+	public BufferedImage img;
+	public ICC_Profile profile;
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		img = SourceImages.getTestImage(bits, size);
+		profile = ImagingMethods.getProfile(img);
+	}
+}
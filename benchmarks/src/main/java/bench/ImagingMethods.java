@@ -0,0 +1,89 @@
+package bench;
+
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Handles on the (private static) imaging methods of the test classes.
+ *
+ * The test classes live in the default package which can not be imported
+ * from a named package like the JMH benchmarks, so we look them up once by
+ * reflection. Calls through static final MethodHandles are inlined by the JIT.
+ */
+public final class ImagingMethods {
+
+	private static final MethodHandle LOAD_IMAGE = find("Test16BitColor", "loadImage", String.class, String.class);
+	private static final MethodHandle GET_PROFILE = find("Test16BitColor", "getProfile", BufferedImage.class);
+	private static final MethodHandle CONVERT_TO_SRGB = find("TestColorConvertOp", "convertToSrgb",
+			BufferedImage.class);
+	private static final MethodHandle CHANGE_RASTER_TO_SRGB = find("Test16BitColor", "changeRasterToSrgb",
+			BufferedImage.class, ICC_Profile.class);
+	private static final MethodHandle CHANGE_TO_8BIT_DEPTH = find("Test16BitColor", "changeTo8BitDepth",
+			BufferedImage.class);
+	private static final MethodHandle CHANGE_TO_8BIT_DEPTH_1 = find("Test16BitColor", "changeTo8BitDepth1",
+			BufferedImage.class);
+	private static final MethodHandle CHANGE_TO_8BIT_DEPTH_2 = find("Test16BitColor", "changeTo8BitDepth2",
+			BufferedImage.class);
+	private static final MethodHandle CHANGE_TO_8BIT_DEPTH_LUT = find("Test16BitColor", "changeTo8BitDepthLut",
+			BufferedImage.class);
+	private static final MethodHandle SCALE = find("Test16BitColor", "scale", BufferedImage.class, float.class,
+			float.class, boolean.class);
+	private static final MethodHandle CONVOLVE = find("Test16BitColor", "convolve", BufferedImage.class);
+
+	private ImagingMethods() {
+	}
+
+	private static MethodHandle find(String className, String name, Class<?>... parameterTypes) {
+		try {
+			Method method = Class.forName(className).getDeclaredMethod(name, parameterTypes);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Can't find method " + className + "." + name, e);
+		}
+	}
+
+	public static BufferedImage loadImage(String mt, String fn) throws Throwable {
+		return (BufferedImage) LOAD_IMAGE.invokeExact(mt, fn);
+	}
+
+	public static ICC_Profile getProfile(BufferedImage img) throws Throwable {
+		return (ICC_Profile) GET_PROFILE.invokeExact(img);
+	}
+
+	public static BufferedImage convertToSrgb(BufferedImage img) throws Throwable {
+		return (BufferedImage) CONVERT_TO_SRGB.invokeExact(img);
+	}
+
+	public static void changeRasterToSrgb(BufferedImage img, ICC_Profile realProfile) throws Throwable {
+		CHANGE_RASTER_TO_SRGB.invokeExact(img, realProfile);
+	}
+
+	public static BufferedImage changeTo8BitDepth(BufferedImage img) throws Throwable {
+		return (BufferedImage) CHANGE_TO_8BIT_DEPTH.invokeExact(img);
+	}
+
+	public static BufferedImage changeTo8BitDepth1(BufferedImage img) throws Throwable {
+		return (BufferedImage) CHANGE_TO_8BIT_DEPTH_1.invokeExact(img);
+	}
+
+	public static BufferedImage changeTo8BitDepth2(BufferedImage img) throws Throwable {
+		return (BufferedImage) CHANGE_TO_8BIT_DEPTH_2.invokeExact(img);
+	}
+
+	public static BufferedImage changeTo8BitDepthLut(BufferedImage img) throws Throwable {
+		return (BufferedImage) CHANGE_TO_8BIT_DEPTH_LUT.invokeExact(img);
+	}
+
+	public static BufferedImage scale(BufferedImage img, float scaleX, float scaleY, boolean interpol)
+			throws Throwable {
+		return (BufferedImage) SCALE.invokeExact(img, scaleX, scaleY, interpol);
+	}
+
+	public static BufferedImage convolve(BufferedImage img) throws Throwable {
+		return (BufferedImage) CONVOLVE.invokeExact(img);
+	}
+}
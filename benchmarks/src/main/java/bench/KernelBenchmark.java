@@ -0,0 +1,160 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The scalar and the Vector API SampleKernels on a row of RGB (RGBA for the
+ * alpha kernels) pixels.
+ *
+ * The vector kernels are in the Java 17 layer of the multi-release jar and
+ * need the jdk.incubator.vector module, which the fork adds, so this
+ * benchmark needs Java 17 or later.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KernelBenchmark {
+
+	private static final MethodHandle ROUND = find("round", short[].class, int.class, byte[].class, int.class,
+			int.class);
+	private static final MethodHandle TRUNCATE = find("truncate", short[].class, int.class, byte[].class, int.class,
+			int.class);
+	private static final MethodHandle APPLY_MATRIX = find("applyMatrix", float[].class, float[].class,
+			float[].class, float[].class, int.class);
+	private static final MethodHandle PREMULTIPLY = find("premultiply", float[].class, int.class, int.class,
+			float.class);
+	private static final MethodHandle UNPREMULTIPLY = find("unpremultiply", float[].class, int.class, int.class,
+			float.class);
+	private static final MethodHandle PACK_RGB = find("packRgb", byte[].class, int.class, int.class, int[].class,
+			int[].class, int.class, int.class);
+
+	@Param({ "scalar", "vector" })
+	public String kernels;
+
+	/** pixels per row */
+	@Param({ "1024", "8192" })
+	public int size;
+
+	private Object impl;
+	private short[] shorts;
+	private byte[] bytes;
+	private int[] ints;
+	private float[] r, g, b;
+	private float[] rgba, premultiplied, line;
+	private final float[] matrix = { 0.8225f, 0.1774f, 0f, 0.0332f, 0.9669f, 0f, 0.0171f, 0.0724f, 0.9108f };
+	private final int[] bandOffsets = { 0, 1, 2 };
+
+	private static MethodHandle find(String name, Class<?>... parameterTypes) {
+		try {
+			Class<?> kernelsClass = Class.forName("SampleKernels");
+			Method method = kernelsClass.getDeclaredMethod(name, parameterTypes);
+			method.setAccessible(true);
+			MethodHandle mh = MethodHandles.lookup().unreflect(method);
+			return mh.asType(mh.type().changeParameterType(0, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Can't find method SampleKernels." + name, e);
+		}
+	}
+
+	private static Object getKernels(String name) throws ReflectiveOperationException {
+		Method method = Class.forName("SampleKernels").getDeclaredMethod(name);
+		method.setAccessible(true);
+		return method.invoke(null);
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		impl = getKernels("vector".equals(kernels) ? "getVector" : "getScalar");
+		if (impl == null) {
+			throw new IllegalStateException("Vector API kernels not available, run on Java 17+");
+		}
+		Random random = new Random(42);
+		shorts = new short[size * 3];
+		bytes = new byte[size * 3];
+		ints = new int[size];
+		for (int i = 0; i < shorts.length; ++i) {
+			shorts[i] = (short) random.nextInt(65536);
+			bytes[i] = (byte) random.nextInt(256);
+		}
+		r = new float[size];
+		g = new float[size];
+		b = new float[size];
+		for (int i = 0; i < size; ++i) {
+			r[i] = random.nextFloat();
+			g[i] = random.nextFloat();
+			b[i] = random.nextFloat();
+		}
+		rgba = new float[size * 4];
+		for (int i = 0; i < rgba.length; ++i) {
+			rgba[i] = random.nextInt(65536);
+		}
+		premultiplied = rgba.clone();
+		PREMULTIPLY.invokeExact(impl, premultiplied, 4, 3, 65535f);
+		line = new float[size * 4];
+	}
+
+	@Benchmark
+	public byte[] round(PixelCounter counter) throws Throwable {
+		ROUND.invokeExact(impl, shorts, 0, bytes, 0, shorts.length);
+		counter.add(size, 1);
+		return bytes;
+	}
+
+	@Benchmark
+	public byte[] truncate(PixelCounter counter) throws Throwable {
+		TRUNCATE.invokeExact(impl, shorts, 0, bytes, 0, shorts.length);
+		counter.add(size, 1);
+		return bytes;
+	}
+
+	@Benchmark
+	public float[] applyMatrix(PixelCounter counter) throws Throwable {
+		// the matrix keeps values in range
+		APPLY_MATRIX.invokeExact(impl, matrix, r, g, b, size);
+		counter.add(size, 1);
+		return r;
+	}
+
+	@Benchmark
+	public float[] premultiply(PixelCounter counter) throws Throwable {
+		System.arraycopy(rgba, 0, line, 0, line.length);
+		PREMULTIPLY.invokeExact(impl, line, 4, 3, 65535f);
+		counter.add(size, 1);
+		return line;
+	}
+
+	@Benchmark
+	public float[] unpremultiply(PixelCounter counter) throws Throwable {
+		System.arraycopy(premultiplied, 0, line, 0, line.length);
+		UNPREMULTIPLY.invokeExact(impl, line, 4, 3, 65535f);
+		counter.add(size, 1);
+		return line;
+	}
+
+	@Benchmark
+	public int[] packRgb(PixelCounter counter) throws Throwable {
+		PACK_RGB.invokeExact(impl, bytes, 0, 3, bandOffsets, ints, 0, size);
+		counter.add(size, 1);
+		return ints;
+	}
+}
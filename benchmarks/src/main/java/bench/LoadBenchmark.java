@@ -0,0 +1,48 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding the test images in data/ with loadImage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+
+	@Param({ "jpg", "p8", "p16", "t8", "t16" })
+	public String format;
+
+	private String mimeType;
+	private String filename;
+
+	@Setup
+	public void setup() {
+		String[] file = SourceImages.getTestFile(format);
+		mimeType = file[0];
+		filename = file[1];
+	}
+
+	@Benchmark
+	public BufferedImage loadImage(PixelCounter counter) throws Throwable {
+		BufferedImage img = ImagingMethods.loadImage(mimeType, filename);
+		counter.add(img.getWidth(), img.getHeight());
+		return img;
+	}
+}
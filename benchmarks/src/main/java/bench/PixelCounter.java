@@ -0,0 +1,27 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts processed pixels, reported by JMH as an additional throughput
+ * metric "mpixels" in MPixel per output time unit.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class PixelCounter {
+
+	public double mpixels;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		mpixels = 0;
+	}
+
+	public void add(int width, int height) {
+		mpixels += width * (double) height / 1e6;
+	}
+}
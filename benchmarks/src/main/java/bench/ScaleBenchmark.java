@@ -0,0 +1,52 @@
+package bench;
+
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scaling with and without interpolation, and with AffineTransformOp for
+ * comparison. Pixel throughput counts source pixels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScaleBenchmark {
+
+	@Param({ "0.5", "2" })
+	public float factor;
+
+	@Param({ "false", "true" })
+	public boolean interpolation;
+
+	@Benchmark
+	public BufferedImage scale(ImageState state, PixelCounter counter) throws Throwable {
+		counter.add(state.size, state.size);
+		return ImagingMethods.scale(state.img, factor, factor, interpolation);
+	}
+
+	@Benchmark
+	public BufferedImage scaleOp(ImageState state, PixelCounter counter) {
+		counter.add(state.size, state.size);
+		RenderingHints hints = new RenderingHints(RenderingHints.KEY_INTERPOLATION,
+				interpolation ? RenderingHints.VALUE_INTERPOLATION_BICUBIC
+						: RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		return new AffineTransformOp(AffineTransform.getScaleInstance(factor, factor), hints).filter(state.img, null);
+	}
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+
+/**
+ * Test images from the data directory, tiled up to the size we want to benchmark.
+ */
+public final class SourceImages {
+
+	private SourceImages() {
+	}
+
+	/**
+	 * Returns the data directory from the imaging.data property, or data/ in the
+	 * current or the parent directory.
+	 */
+	public static File getDataDir() {
+		String dir = System.getProperty("imaging.data");
+		if (dir != null) {
+			return new File(dir);
+		}
+		File data = new File("data");
+		if (!data.isDirectory()) {
+			data = new File("../data");
+		}
+		return data;
+	}
+
+	public static String getPath(String filename) {
+		return new File(getDataDir(), filename).getPath();
+	}
+
+	/**
+	 * Returns the MIME type and file name of the DCI-P3 test image in the given
+	 * format (jpg, p8, p16, t8, t16).
+	 */
+	public static String[] getTestFile(String format) {
+		switch (format) {
+		case "jpg":
+			return new String[] { "image/jpeg", getPath("dcip3-srgb-test-j8.jpg") };
+		case "p8":
+			return new String[] { "image/png", getPath("dcip3-srgb-test-p8.png") };
+		case "p16":
+			return new String[] { "image/png", getPath("dcip3-srgb-test-p16.png") };
+		case "t8":
+			return new String[] { "image/tiff", getPath("dcip3-srgb-test-t8.tiff") };
+		case "t16":
+			return new String[] { "image/tiff", getPath("dcip3-srgb-test-t16.tiff") };
+		default:
+			throw new IllegalArgumentException("Unknown format: " + format);
+		}
+	}
+
+	/**
+	 * Returns the DCI-P3 TIFF test image with the given bit depth tiled to size x size
+	 * pixels, with the same ColorModel and profile as the file.
+	 */
+	public static BufferedImage getTestImage(int bits, int size) throws Throwable {
+		String[] file = getTestFile("t" + bits);
+		BufferedImage src = ImagingMethods.loadImage(file[0], file[1]);
+		return tile(src, size, size);
+	}
+
+	public static BufferedImage tile(BufferedImage src, int width, int height) {
+		ColorModel cm = src.getColorModel();
+		WritableRaster raster = cm.createCompatibleWritableRaster(width, height);
+		Raster srcRaster = src.getRaster();
+		for (int y = 0; y < height; y += src.getHeight()) {
+			for (int x = 0; x < width; x += src.getWidth()) {
+				raster.setRect(x, y, srcRaster);
+			}
+		}
+		return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Returns a copy of the colors of src without alpha or with an alpha ramp
+	 * from transparent to opaque across every 256 columns, straight or
+	 * premultiplied.
+	 */
+	public static BufferedImage withAlpha(BufferedImage src, boolean alpha, boolean premultiplied) {
+		ColorModel srcCm = src.getColorModel();
+		ColorModel cm = new ComponentColorModel(srcCm.getColorSpace(), alpha, false,
+				alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, srcCm.getTransferType());
+		int width = src.getWidth();
+		int height = src.getHeight();
+		WritableRaster raster = cm.createCompatibleWritableRaster(width, height);
+		int[] colorBands = { 0, 1, 2 };
+		raster.createWritableChild(0, 0, width, height, 0, 0, colorBands)
+				.setRect(src.getRaster().createChild(0, 0, width, height, 0, 0, colorBands));
+		if (alpha) {
+			int max = (1 << cm.getComponentSize(3)) - 1;
+			int[] row = new int[width];
+			for (int x = 0; x < width; ++x) {
+				row[x] = (x % 256) * max / 255;
+			}
+			for (int y = 0; y < height; ++y) {
+				raster.setSamples(0, y, width, 1, 3, row);
+			}
+		}
+		BufferedImage img = new BufferedImage(cm, raster, false, null);
+		if (premultiplied) {
+			img.coerceData(true);
+		}
+		return img;
+	}
+}
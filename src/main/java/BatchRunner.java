@@ -0,0 +1,552 @@
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+
+/**
+ * Concurrent batch conversion of all matching files in a directory.
+ *
+ * Usage: BatchRunner INPUT-DIR GLOB OPERATIONS [OUTPUT-DIR]
+ *
+ * OPERATIONS is a comma separated chain of
+ * <ul>
+ * <li>to-srgb: convert the colors to sRGB keeping the bit depth</li>
+ * <li>to-8bit: reduce 16 bit images to 8 bit</li>
+ * <li>gamut: log the number and bounds of the pixels outside sRGB</li>
+ * <li>scale FACTOR [FACTOR-Y] [FILTER]: scale with the filter area, bilinear
+ * (default), bicubic or lanczos3</li>
+ * <li>blur SIGMA: gaussian blur</li>
+ * <li>sharpen AMOUNT: add AMOUNT times the laplacian</li>
+ * <li>write FORMAT [COMPRESSION]: write to OUTPUT-DIR (default output-batch)</li>
+ * </ul>
+ * e.g. "to-srgb, to-8bit, scale 0.5, write TIFF Deflate".
+ *
+ * Files are processed by at most imaging.batch.threads (default: number of
+ * processors) tasks at the same time, on virtual threads if the JVM has them.
+ * Files are written on a background thread while the next file is processed.
+ * Operations that change the pixels in place (to-srgb) wait until the
+ * preceding writes of the file are done.
+ * The directory is only read ahead by imaging.batch.inFlight (default: twice
+ * the threads) files, including the files that are still being written.
+ *
+ * With -Dimaging.batch.cache=true the written files are kept in the shared
+ * DerivativeCache and copied from there for unchanged files and chains,
+ * without decoding them.
+ */
+public class BatchRunner {
+
+	static Logger logger = Logger.getLogger(BatchRunner.class.getName());
+
+	public static final String DEFAULT_OUTPUT_DIR = "output-batch";
+
+	/**
+	 * One step of the operation chain.
+	 */
+	public interface Operation {
+		BufferedImage apply(BufferedImage img, Path file) throws IOException;
+	}
+
+	private final List<Operation> operations;
+	private final int threads;
+	private final int maxInFlight;
+	private final AtomicInteger files = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong pixels = new AtomicLong();
+	/** limits the number of files processed at the same time */
+	private Semaphore running;
+	private DerivativeCache cache;
+
+	private static final ConcurrentHashMap<String, String> mimeTypes = new ConcurrentHashMap<String, String>();
+
+	public BatchRunner(List<Operation> operations, int threads, int maxInFlight) {
+		if (threads < 1 || maxInFlight < threads) {
+			throw new IllegalArgumentException("Invalid threads " + threads + " or inFlight " + maxInFlight);
+		}
+		this.operations = operations;
+		this.threads = threads;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Reuses written files from the cache for unchanged input files and
+	 * operation chains, and adds new ones to it.
+	 */
+	public BatchRunner cache(DerivativeCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Parses an operation chain like "to-srgb, to-8bit, scale 0.5, write TIFF".
+	 */
+	public static List<Operation> parseOperations(String chain, final File outputDir) {
+		List<Operation> ops = new ArrayList<Operation>();
+		for (String step : chain.split(",")) {
+			String[] args = step.trim().split("\\s+");
+			String name = args[0].toLowerCase(Locale.ROOT);
+			if (name.equals("to-srgb")) {
+				ops.add(new Step("to-srgb", true, (img, file) -> toSrgb(img)));
+			} else if (name.equals("to-8bit") || name.equals("to-8-bit")) {
+				ops.add(new Step("to-8bit", (img, file) -> to8Bit(img)));
+			} else if (name.equals("scale") && args.length >= 2 && args.length <= 4) {
+				// the last argument may be the filter
+				int numFactors = args.length - 1;
+				Resampler.Filter filter = Resampler.Filter.BILINEAR;
+				if (numFactors > 1 && Character.isLetter(args[numFactors].charAt(0))) {
+					filter = Resampler.Filter.valueOf(args[numFactors].toUpperCase(Locale.ROOT));
+					--numFactors;
+				}
+				if (numFactors > 2) {
+					throw new IllegalArgumentException("Invalid operation: " + step.trim());
+				}
+				final double sx = Double.parseDouble(args[1]);
+				final double sy = (numFactors == 2) ? Double.parseDouble(args[2]) : sx;
+				final Resampler.Filter scaleFilter = filter;
+				ops.add(new Step("scale " + sx + " " + sy + " " + scaleFilter,
+						(img, file) -> scale(img, sx, sy, scaleFilter)));
+			} else if (name.equals("gamut")) {
+				ops.add((img, file) -> {
+					logger.info(file.getFileName() + " " + GamutAnalyzer.analyze(img));
+					return img;
+				});
+			} else if (name.equals("blur") && args.length == 2) {
+				float sigma = Float.parseFloat(args[1]);
+				final Convolver blur = new Convolver(Convolver.gaussianKernel(sigma)).edge(Convolver.Edge.CLAMP);
+				ops.add(new Step("blur " + sigma, (img, file) -> blur.filter(img)));
+			} else if (name.equals("sharpen") && args.length == 2) {
+				float amount = Float.parseFloat(args[1]);
+				final Convolver sharpen = new Convolver(Convolver.sharpenKernel(amount)).edge(Convolver.Edge.CLAMP);
+				ops.add(new Step("sharpen " + amount, (img, file) -> sharpen.filter(img)));
+			} else if (name.equals("write") && (args.length == 2 || args.length == 3)) {
+				StreamingImageWriter.Options options = new StreamingImageWriter.Options();
+				if (args.length == 3) {
+					options.compression(args[2]);
+				}
+				ops.add(new WriteOperation(args[1], outputDir, options));
+			} else {
+				throw new IllegalArgumentException("Invalid operation: " + step.trim());
+			}
+		}
+		return ops;
+	}
+
+	/**
+	 * Processes all files in dir matching glob and logs the throughput.
+	 */
+	public void run(Path dir, String glob) throws IOException, InterruptedException {
+		// tasks wait for their writes without holding a running permit
+		ExecutorService executor = createExecutor(maxInFlight);
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		running = new Semaphore(threads);
+		long start = System.nanoTime();
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir, glob)) {
+			for (final Path file : paths) {
+				if (!Files.isRegularFile(file)) {
+					continue;
+				}
+				// backpressure: don't read ahead more than maxInFlight files
+				inFlight.acquire();
+				try {
+					executor.execute(() -> {
+						try {
+							process(file);
+						} finally {
+							inFlight.release();
+						}
+					});
+				} catch (RuntimeException e) {
+					inFlight.release();
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		logger.info(String.format(Locale.ROOT,
+				"Processed %d files (%d failed) in %.2fs with %d threads: %.2f images/s, %.2f MPixel/s", files.get(),
+				failures.get(), secs, threads, files.get() / secs, pixels.get() / secs / 1e6));
+	}
+
+	private void process(Path file) {
+		List<Future<File>> writes = new ArrayList<Future<File>>();
+		try {
+			long t0 = System.nanoTime();
+			List<DerivativeCache.Key> keys = (cache != null) ? getCacheKeys(file) : null;
+			if (keys != null && copyFromCache(file, keys)) {
+				files.incrementAndGet();
+				logger.info(String.format(Locale.ROOT, "%s from cache total=%dms", file.getFileName(),
+						(System.nanoTime() - t0) / 1000000));
+				return;
+			}
+			BufferedImage img;
+			long t1;
+			long numPixels;
+			running.acquireUninterruptibly();
+			try {
+				img = ImageLoader.loadImage(getMimeType(file), file.toString());
+				t1 = System.nanoTime();
+				numPixels = (long) img.getWidth() * img.getHeight();
+				for (Operation op : operations) {
+					if (op instanceof WriteOperation) {
+						writes.add(((WriteOperation) op).writeAsync(img, file));
+					} else {
+						if (op instanceof Step && ((Step) op).inPlace) {
+							// the pending writes still read the pixels
+							for (Future<File> write : writes) {
+								write.get();
+							}
+						}
+						img = op.apply(img, file);
+					}
+				}
+			} finally {
+				running.release();
+			}
+			long t2 = System.nanoTime();
+			// the next file is processed while this one is written
+			for (int i = 0; i < writes.size(); ++i) {
+				File written = writes.get(i).get();
+				if (keys != null) {
+					cache.put(keys.get(i), written);
+				}
+			}
+			long t3 = System.nanoTime();
+			pixels.addAndGet(numPixels);
+			files.incrementAndGet();
+			logger.info(String.format(Locale.ROOT, "%s %dx%d load=%dms ops=%dms write=%dms total=%dms",
+					file.getFileName(), img.getWidth(), img.getHeight(), (t1 - t0) / 1000000, (t2 - t1) / 1000000,
+					(t3 - t2) / 1000000, (t3 - t0) / 1000000));
+		} catch (ExecutionException e) {
+			failures.incrementAndGet();
+			logger.warning("Failed to write " + file + ": " + e.getCause());
+		} catch (Exception e) {
+			failures.incrementAndGet();
+			logger.warning("Failed to process " + file + ": " + e);
+			for (Future<File> write : writes) {
+				write.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Returns the cache keys of the files written by the operations, null if
+	 * the chain has no write or a write after an operation that isn't a Step
+	 * (e.g. gamut, which has to run for its log).
+	 */
+	private List<DerivativeCache.Key> getCacheKeys(Path file) throws IOException {
+		List<DerivativeCache.Key> keys = new ArrayList<DerivativeCache.Key>();
+		DerivativeCache.Key key = DerivativeCache.Key.forFile(file.toFile());
+		boolean cacheable = true;
+		for (Operation op : operations) {
+			if (op instanceof WriteOperation) {
+				if (!cacheable) {
+					return null;
+				}
+				WriteOperation write = (WriteOperation) op;
+				keys.add(key.copy().param("write", write.getDescription()).extension(write.getExtension()));
+			} else if (op instanceof Step) {
+				key.param("op", op);
+			} else {
+				cacheable = false;
+			}
+		}
+		return keys.isEmpty() ? null : keys;
+	}
+
+	/**
+	 * Copies the cached results of all writes, returns false if one of them
+	 * isn't cached.
+	 */
+	private boolean copyFromCache(Path file, List<DerivativeCache.Key> keys) throws IOException {
+		int w = 0;
+		for (Operation op : operations) {
+			if (op instanceof WriteOperation
+					&& !cache.copyTo(keys.get(w++), ((WriteOperation) op).getOutputFile(file))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns an executor with virtual threads if available (Java 21+) or a
+	 * fixed pool of platform threads. Set imaging.batch.virtualThreads=false to
+	 * always use platform threads.
+	 */
+	static ExecutorService createExecutor(int threads) {
+		if (!"false".equals(System.getProperty("imaging.batch.virtualThreads"))) {
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				logger.fine("using virtual threads");
+				return (ExecutorService) m.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// Java < 21
+			}
+		}
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Returns the MIME type of the first ImageReader for the file suffix.
+	 */
+	static String getMimeType(Path file) throws IOException {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String suffix = (dot < 0) ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+		String mt = mimeTypes.get(suffix);
+		if (mt == null) {
+			Iterator<ImageReader> readers = ImageIO.getImageReadersBySuffix(suffix);
+			if (!readers.hasNext()) {
+				throw new IOException("Can't find Reader for file suffix " + suffix + "!");
+			}
+			ImageReader reader = readers.next();
+			String[] types = reader.getOriginatingProvider().getMIMETypes();
+			reader.dispose();
+			if (types == null || types.length == 0) {
+				throw new IOException("Reader for file suffix " + suffix + " has no mime-type!");
+			}
+			mt = types[0];
+			mimeTypes.put(suffix, mt);
+		}
+		return mt;
+	}
+
+	/*
+	 * Operations
+	 */
+
+	/**
+	 * Converts the image to sRGB in place keeping the bit depth.
+	 */
+	static BufferedImage toSrgb(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		ColorSpace cs = cm.getColorSpace();
+		if (cs.isCS_sRGB()) {
+			return img;
+		}
+		ColorSpace srgbCS = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+		if (!(cs instanceof ICC_ColorSpace) || !(cm instanceof ComponentColorModel) || cm.getNumColorComponents() != 3) {
+			return ColorTransformCache.getShared().filterImage(img, srgbCS);
+		}
+		ICC_Profile profile = ((ICC_ColorSpace) cs).getProfile();
+		ICC_Profile srgbProfile = ((ICC_ColorSpace) srgbCS).getProfile();
+		new InPlaceColorConverter(profile, srgbProfile).convert(img);
+		ColorModel srgbCM = ProfileRegistry.getShared().getColorModel(srgbProfile, cm.getComponentSize(),
+				cm.hasAlpha(), cm.isAlphaPremultiplied(), cm.getTransparency(), cm.getTransferType());
+		return new BufferedImage(srgbCM, img.getRaster(), cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Reduces 16 bit component images to 8 bit, returns other images unchanged.
+	 */
+	static BufferedImage to8Bit(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		if (!(cm instanceof ComponentColorModel) || cm.getTransferType() != DataBuffer.TYPE_USHORT) {
+			return img;
+		}
+		int[] bits = new int[cm.getNumComponents()];
+		Arrays.fill(bits, 8);
+		ColorSpace cs = cm.getColorSpace();
+		ColorModel newCM;
+		if (cs instanceof ICC_ColorSpace) {
+			newCM = ProfileRegistry.getShared().getColorModel(((ICC_ColorSpace) cs).getProfile(), bits,
+					cm.hasAlpha(), cm.isAlphaPremultiplied(), cm.getTransparency(), DataBuffer.TYPE_BYTE);
+		} else {
+			newCM = new ComponentColorModel(cs, bits, cm.hasAlpha(), cm.isAlphaPremultiplied(),
+					cm.getTransparency(), DataBuffer.TYPE_BYTE);
+		}
+		WritableRaster newRaster = OffHeapRasters.createCompatibleWritableRaster(newCM, img.getWidth(), img.getHeight());
+		BitDepthReducer.reduceTo8Bit(img.getRaster(), newRaster, true);
+		return new BufferedImage(newCM, newRaster, newCM.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Packs 8 bit sRGB images into a TYPE_INT_RGB image without alpha, other
+	 * images are converted with ColorConvertOp.
+	 */
+	static BufferedImage toIntRgb(BufferedImage img) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		ColorModel cm = img.getColorModel();
+		WritableRaster raster = img.getRaster();
+		if (!cm.getColorSpace().isCS_sRGB() || !(cm instanceof ComponentColorModel) || cm.isAlphaPremultiplied()
+				|| !RowAccess.isInterleaved(raster) || raster.getTransferType() != DataBuffer.TYPE_BYTE) {
+			return new ColorConvertOp(null).filter(img, rgb);
+		}
+		PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+		byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData(sm.getBankIndices()[0]);
+		int[] dst = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+		int base = BitDepthReducer.getBaseOffset(raster);
+		int scanlineStride = sm.getScanlineStride();
+		int pixelStride = sm.getPixelStride();
+		int[] bandOffsets = sm.getBandOffsets();
+		SampleKernels kernels = SampleKernels.get();
+		ParallelRows.RowTask task = (startRow, endRow) -> {
+			for (int y = startRow; y < endRow; ++y) {
+				kernels.packRgb(src, base + y * scanlineStride, pixelStride, bandOffsets, dst, y * width, width);
+			}
+		};
+		if ((long) width * height >= BitDepthReducer.PARALLEL_THRESHOLD) {
+			ParallelRows.forEachBand(height, BitDepthReducer.MIN_BAND_ROWS, task);
+		} else {
+			task.run(0, height);
+		}
+		return rgb;
+	}
+
+	/**
+	 * Scales the image with the filter keeping its ColorModel.
+	 */
+	static BufferedImage scale(BufferedImage img, double scaleX, double scaleY, Resampler.Filter filter) {
+		return new Resampler(filter).scale(img, scaleX, scaleY);
+	}
+
+	/**
+	 * Operation with a description of its parameters, which is its part of the
+	 * DerivativeCache key.
+	 */
+	static final class Step implements Operation {
+		final String description;
+		/** true if the operation changes the pixels of its input image */
+		final boolean inPlace;
+		final Operation op;
+
+		Step(String description, Operation op) {
+			this(description, false, op);
+		}
+
+		Step(String description, boolean inPlace, Operation op) {
+			this.description = description;
+			this.inPlace = inPlace;
+			this.op = op;
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage img, Path file) throws IOException {
+			return op.apply(img, file);
+		}
+
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+
+	/**
+	 * Writes the image to the output directory with the name of the input file
+	 * and the format as extension.
+	 */
+	static class WriteOperation implements Operation {
+		final String format;
+		final File outputDir;
+		final StreamingImageWriter.Options options;
+
+		WriteOperation(String format, File outputDir, StreamingImageWriter.Options options) {
+			this.format = format;
+			this.outputDir = outputDir;
+			this.options = options;
+		}
+
+		/**
+		 * Writes the image on the background thread.
+		 */
+		Future<File> writeAsync(BufferedImage img, Path file) {
+			return StreamingImageWriter.writeAsync(img, format, getOutputFile(file), options);
+		}
+
+		File getOutputFile(Path file) {
+			String name = file.getFileName().toString();
+			int dot = name.lastIndexOf('.');
+			if (dot > 0) {
+				name = name.substring(0, dot);
+			}
+			return new File(outputDir, name + "." + getExtension());
+		}
+
+		String getExtension() {
+			return format.toLowerCase(Locale.ROOT);
+		}
+
+		/**
+		 * Returns the format and write options for the cache key.
+		 */
+		String getDescription() {
+			return getExtension() + " " + options.compression + " " + options.compressionQuality + " "
+					+ options.tileWidth + "x" + options.tileHeight;
+		}
+
+		@Override
+		public BufferedImage apply(BufferedImage img, Path file) throws IOException {
+			try {
+				writeAsync(img, file).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing " + file, e);
+			} catch (ExecutionException e) {
+				throw new IOException("Writing " + file + " failed", e.getCause());
+			}
+			return img;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3 || args.length > 4) {
+			System.err.println("Usage: BatchRunner INPUT-DIR GLOB OPERATIONS [OUTPUT-DIR]");
+			System.err.println("  e.g. BatchRunner data '*-t16.tiff' 'to-srgb, to-8bit, scale 0.5, write TIFF Deflate'");
+			return;
+		}
+		File outputDir = new File(args.length == 4 ? args[3] : DEFAULT_OUTPUT_DIR);
+		List<Operation> ops = parseOperations(args[2], outputDir);
+		if (args[2].toLowerCase(Locale.ROOT).contains("write") && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+			throw new IOException("Can't create output directory " + outputDir);
+		}
+		int threads = Integer.getInteger("imaging.batch.threads", Runtime.getRuntime().availableProcessors());
+		int inFlight = Integer.getInteger("imaging.batch.inFlight", 2 * threads);
+		BatchRunner runner = new BatchRunner(ops, threads, inFlight);
+		if (Boolean.getBoolean("imaging.batch.cache")) {
+			runner.cache(DerivativeCache.getShared());
+		}
+		runner.run(Paths.get(args[0]), args[1]);
+		logger.info(ImageReaderPool.getShared().toString());
+		if (Boolean.getBoolean("imaging.batch.cache")) {
+			logger.info(DerivativeCache.getShared().toString());
+		}
+		logger.info(ImagingMetrics.getSummary());
+	}
+}
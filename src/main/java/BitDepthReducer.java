@@ -0,0 +1,192 @@
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reduction of 16 bit rasters to 8 bit working directly on the short[] and
+ * byte[] bank arrays of PixelInterleavedSampleModel rasters.
+ *
+ * Rows of packed pixels are reduced with the SampleKernels, which use the
+ * Vector API where available. Large rasters are split into bands of rows
+ * processed in parallel.
+ */
+public class BitDepthReducer {
+
+	/** minimum number of rows per parallel band */
+	public static final int MIN_BAND_ROWS = 32;
+
+	/** number of samples below which we don't bother with parallel processing */
+	public static final int PARALLEL_THRESHOLD = 1 << 20;
+
+	/**
+	 * Writes the 16 bit samples of src as 8 bit samples into dst.
+	 *
+	 * If round is true the samples are rounded to the nearest 8 bit value
+	 * (v * 255 / 65535), otherwise the lower 8 bits are cut off.
+	 */
+	public static void reduceTo8Bit(Raster src, WritableRaster dst, boolean round) {
+		int width = src.getWidth();
+		int height = src.getHeight();
+		int numBands = src.getNumBands();
+		if (dst.getWidth() != width || dst.getHeight() != height || dst.getNumBands() != numBands) {
+			throw new IllegalArgumentException("Rasters do not match: " + src + " " + dst);
+		}
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.DEPTH);
+		ParallelRows.RowTask task;
+		if (isInterleaved(src, DataBuffer.TYPE_USHORT) && isInterleaved(dst, DataBuffer.TYPE_BYTE)) {
+			task = OffHeapRasters.stagedTask(src, dst, (s, d) -> new InterleavedTask(s, d, round));
+		} else {
+			task = (startRow, endRow) -> reduceRows(src, dst, round, startRow, endRow);
+		}
+		if ((long) width * height * numBands >= PARALLEL_THRESHOLD) {
+			ParallelRows.forEachBand(height, MIN_BAND_ROWS, task);
+		} else {
+			task.run(0, height);
+		}
+		timer.stop(dst);
+	}
+
+	private static boolean isInterleaved(Raster raster, int dataType) {
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		return sm instanceof PixelInterleavedSampleModel && db.getDataType() == dataType
+				&& (db instanceof DataBufferUShort || db instanceof DataBufferByte || db instanceof OffHeapDataBuffer);
+	}
+
+	/**
+	 * Generic version for other sample models.
+	 */
+	private static void reduceRows(Raster src, WritableRaster dst, boolean round, int startRow, int endRow) {
+		int width = src.getWidth();
+		int[] row = null;
+		for (int y = startRow; y < endRow; ++y) {
+			row = src.getPixels(src.getMinX(), src.getMinY() + y, width, 1, row);
+			if (round) {
+				for (int i = 0; i < row.length; ++i) {
+					row[i] = ((row[i] & 0xffff) * 255 + 32895) >>> 16;
+				}
+			} else {
+				for (int i = 0; i < row.length; ++i) {
+					row[i] = (row[i] & 0xffff) >>> 8;
+				}
+			}
+			dst.setPixels(dst.getMinX(), dst.getMinY() + y, width, 1, row);
+		}
+	}
+
+	/**
+	 * Position of the first sample of a raster in its bank array.
+	 */
+	static int getBaseOffset(Raster raster) {
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		int x = raster.getMinX() - raster.getSampleModelTranslateX();
+		int y = raster.getMinY() - raster.getSampleModelTranslateY();
+		return raster.getDataBuffer().getOffsets()[sm.getBankIndices()[0]] + y * sm.getScanlineStride()
+				+ x * sm.getPixelStride();
+	}
+
+	private static final class InterleavedTask implements ParallelRows.RowTask {
+		final short[] srcData;
+		final byte[] dstData;
+		final int srcBase, srcScanlineStride, srcPixelStride;
+		final int dstBase, dstScanlineStride, dstPixelStride;
+		final int[] srcBandOffsets, dstBandOffsets;
+		final int width;
+		final int numBands;
+		final boolean round;
+		final boolean contiguous;
+
+		InterleavedTask(Raster src, WritableRaster dst, boolean round) {
+			PixelInterleavedSampleModel srcSm = (PixelInterleavedSampleModel) src.getSampleModel();
+			PixelInterleavedSampleModel dstSm = (PixelInterleavedSampleModel) dst.getSampleModel();
+			this.srcData = ((DataBufferUShort) src.getDataBuffer()).getData(srcSm.getBankIndices()[0]);
+			this.dstData = ((DataBufferByte) dst.getDataBuffer()).getData(dstSm.getBankIndices()[0]);
+			this.srcBase = getBaseOffset(src);
+			this.srcScanlineStride = srcSm.getScanlineStride();
+			this.srcPixelStride = srcSm.getPixelStride();
+			this.srcBandOffsets = srcSm.getBandOffsets();
+			this.dstBase = getBaseOffset(dst);
+			this.dstScanlineStride = dstSm.getScanlineStride();
+			this.dstPixelStride = dstSm.getPixelStride();
+			this.dstBandOffsets = dstSm.getBandOffsets();
+			this.width = src.getWidth();
+			this.numBands = src.getNumBands();
+			this.round = round;
+			this.contiguous = isContiguous();
+		}
+
+		/**
+		 * Returns if both rasters have packed pixels with the same band order, so
+		 * that a row can be processed as one flat run of samples.
+		 */
+		private boolean isContiguous() {
+			if (srcPixelStride != numBands || dstPixelStride != numBands) {
+				return false;
+			}
+			for (int b = 0; b < numBands; ++b) {
+				if (srcBandOffsets[b] != dstBandOffsets[b] || srcBandOffsets[b] < 0
+						|| srcBandOffsets[b] >= numBands) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void run(int startRow, int endRow) {
+			for (int y = startRow; y < endRow; ++y) {
+				int srcPos = srcBase + y * srcScanlineStride;
+				int dstPos = dstBase + y * dstScanlineStride;
+				if (contiguous) {
+					if (round) {
+						roundRun(srcData, srcPos, dstData, dstPos, width * numBands, 1, 1);
+					} else {
+						truncateRun(srcData, srcPos, dstData, dstPos, width * numBands, 1, 1);
+					}
+				} else {
+					for (int b = 0; b < numBands; ++b) {
+						if (round) {
+							roundRun(srcData, srcPos + srcBandOffsets[b], dstData, dstPos + dstBandOffsets[b], width,
+									srcPixelStride, dstPixelStride);
+						} else {
+							truncateRun(srcData, srcPos + srcBandOffsets[b], dstData, dstPos + dstBandOffsets[b],
+									width, srcPixelStride, dstPixelStride);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps the upper 8 bits of len samples.
+	 */
+	static void truncateRun(short[] src, int srcPos, byte[] dst, int dstPos, int len, int srcStride,
+			int dstStride) {
+		if (srcStride == 1 && dstStride == 1) {
+			SampleKernels.get().truncate(src, srcPos, dst, dstPos, len);
+		} else {
+			for (int i = 0; i < len; ++i) {
+				dst[dstPos + i * dstStride] = (byte) (src[srcPos + i * srcStride] >> 8);
+			}
+		}
+	}
+
+	/**
+	 * Rounds len samples to the nearest 8 bit value (exact for all 16 bit values).
+	 */
+	static void roundRun(short[] src, int srcPos, byte[] dst, int dstPos, int len, int srcStride, int dstStride) {
+		if (srcStride == 1 && dstStride == 1) {
+			SampleKernels.get().round(src, srcPos, dst, dstPos, len);
+		} else {
+			for (int i = 0; i < len; ++i) {
+				dst[dstPos + i * dstStride] = (byte) (((src[srcPos + i * srcStride] & 0xffff) * 255 + 32895) >>> 16);
+			}
+		}
+	}
+}
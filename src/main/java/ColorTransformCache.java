@@ -0,0 +1,329 @@
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread-safe LRU cache of ColorConvertOps keyed by source profile,
+ * destination profile and raster layout.
+ *
+ * Profiles are compared by their ID from the ProfileRegistry, so images
+ * decoded from different files with the same embedded profile share the ops
+ * and their native transforms.
+ *
+ * ColorConvertOp is not specified to be thread-safe, filter() sets its cached
+ * transforms. So every entry keeps a pool of ops: a thread acquires an op,
+ * uses it alone and releases it for reuse with its transforms. Parallel
+ * conversions take one op per task.
+ */
+public class ColorTransformCache {
+
+	static Logger logger = Logger.getLogger(ColorTransformCache.class.getName());
+
+	public static final int DEFAULT_MAX_SIZE = 32;
+
+	private static final ColorTransformCache sharedCache = new ColorTransformCache(
+			Integer.getInteger("imaging.transformCache.size", DEFAULT_MAX_SIZE));
+
+	private final int maxSize;
+	private final Map<Key, Entry> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ColorTransformCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		// access-ordered LinkedHashMap gives us LRU eviction
+		this.cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if (size() > ColorTransformCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public static ColorTransformCache getShared() {
+		return sharedCache;
+	}
+
+	/**
+	 * Returns an op converting rasters with the given layout from srcProfile to
+	 * destProfile, i.e. the equivalent of
+	 * {@code new ColorConvertOp(new ICC_Profile[] {srcProfile, destProfile}, null)},
+	 * for the calling thread until it is passed to releaseRasterOp().
+	 */
+	public ColorConvertOp acquireRasterOp(ICC_Profile srcProfile, ICC_Profile destProfile, Raster raster) {
+		return getEntry(getRasterKey(srcProfile, destProfile, raster), srcProfile, destProfile, null).acquire();
+	}
+
+	/**
+	 * Returns an op from acquireRasterOp() with the same arguments for reuse.
+	 */
+	public void releaseRasterOp(ICC_Profile srcProfile, ICC_Profile destProfile, Raster raster, ColorConvertOp op) {
+		Entry entry;
+		synchronized (cache) {
+			entry = cache.get(getRasterKey(srcProfile, destProfile, raster));
+		}
+		// dropped if the entry was evicted meanwhile
+		if (entry != null) {
+			entry.release(op);
+		}
+	}
+
+	private static Key getRasterKey(ICC_Profile srcProfile, ICC_Profile destProfile, Raster raster) {
+		return new Key(Key.RASTER_OP, srcProfile, destProfile, raster.getTransferType(), raster.getNumBands(), false,
+				false);
+	}
+
+	/**
+	 * Converts the color components of the raster from srcProfile to destProfile in place.
+	 */
+	public void filterRaster(WritableRaster raster, ICC_Profile srcProfile, ICC_Profile destProfile) {
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.COLOR_CONVERT);
+		ColorConvertOp op = acquireRasterOp(srcProfile, destProfile, raster);
+		try {
+			op.filter(raster, raster);
+		} finally {
+			releaseRasterOp(srcProfile, destProfile, raster, op);
+		}
+		timer.stop(raster);
+	}
+
+	/**
+	 * Converts the image into a new image in destCS, like
+	 * {@code new ColorConvertOp(destCS, null).filter(img, null)}.
+	 */
+	public BufferedImage filterImage(BufferedImage img, ColorSpace destCS) {
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.COLOR_CONVERT);
+		BufferedImage result = convertImage(img, destCS);
+		timer.stop(result);
+		return result;
+	}
+
+	private BufferedImage convertImage(BufferedImage img, ColorSpace destCS) {
+		ColorModel cm = img.getColorModel();
+		ColorSpace srcCS = cm.getColorSpace();
+		if (!(srcCS instanceof ICC_ColorSpace) || !(destCS instanceof ICC_ColorSpace)
+				|| !(cm instanceof ComponentColorModel)) {
+			// nothing we can key on
+			return new ColorConvertOp(destCS, null).filter(img, null);
+		}
+		ICC_Profile srcProfile = ((ICC_ColorSpace) srcCS).getProfile();
+		ICC_Profile destProfile = ((ICC_ColorSpace) destCS).getProfile();
+		WritableRaster raster = img.getRaster();
+		Key key = new Key(Key.IMAGE_OP, srcProfile, destProfile, raster.getTransferType(), raster.getNumBands(),
+				cm.hasAlpha(), cm.isAlphaPremultiplied());
+		Entry entry = getEntry(key, srcProfile, destProfile, destCS);
+		if (entry.srcCS != srcCS) {
+			// ColorConvertOp only reuses its transform for the identical source profile object,
+			// so we re-label the raster with the shared color model (no pixel copy)
+			ColorModel ccm = ProfileRegistry.getShared().getColorModel(srcProfile, cm.getComponentSize(),
+					cm.hasAlpha(), cm.isAlphaPremultiplied(), cm.getTransparency(), cm.getTransferType());
+			img = new BufferedImage(ccm, raster, cm.isAlphaPremultiplied(), null);
+		}
+		ColorModel destCM = entry.getDestColorModel(img);
+		OffHeapDataBuffer.Storage storage = OffHeapRasters.getStorage(destCM, img.getWidth(), img.getHeight());
+		ColorConvertOp op = entry.acquire();
+		try {
+			if (storage != null) {
+				WritableRaster destRaster = OffHeapRasters.createCompatibleWritableRaster(destCM, img.getWidth(),
+						img.getHeight(), storage);
+				return op.filter(img, new BufferedImage(destCM, destRaster, destCM.isAlphaPremultiplied(), null));
+			}
+			return op.filter(img, null);
+		} finally {
+			entry.release(op);
+		}
+	}
+
+	private Entry getEntry(Key key, ICC_Profile srcProfile, ICC_Profile destProfile, ColorSpace destCS) {
+		synchronized (cache) {
+			Entry entry = cache.get(key);
+			if (entry != null) {
+				hits.incrementAndGet();
+				return entry;
+			}
+		}
+		misses.incrementAndGet();
+		// create outside the lock, profile parsing can be slow
+		Entry entry = new Entry(srcProfile, destProfile, destCS);
+		synchronized (cache) {
+			Entry other = cache.get(key);
+			if (other != null) {
+				// another thread was faster
+				return other;
+			}
+			cache.put(key, entry);
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("created color transform " + key);
+		}
+		return entry;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ColorTransformCache[size=" + size() + "/" + maxSize + " hits=" + getHits() + " misses=" + getMisses()
+				+ " evictions=" + getEvictions() + "]";
+	}
+
+	private static class Entry {
+		final ICC_Profile srcProfile;
+		final ICC_Profile destProfile;
+		final ColorSpace destCS;
+		final ColorSpace srcCS;
+		/** ops not used by a thread */
+		private final ConcurrentLinkedQueue<ColorConvertOp> idle = new ConcurrentLinkedQueue<ColorConvertOp>();
+		private ColorModel destCM;
+
+		Entry(ICC_Profile srcProfile, ICC_Profile destProfile, ColorSpace destCS) {
+			this.srcProfile = srcProfile;
+			this.destProfile = destProfile;
+			this.destCS = destCS;
+			this.srcCS = (destCS == null) ? null : ProfileRegistry.getShared().getColorSpace(srcProfile);
+			idle.offer(createOp());
+		}
+
+		private ColorConvertOp createOp() {
+			if (destCS == null) {
+				return new ColorConvertOp(new ICC_Profile[] { srcProfile, destProfile }, null);
+			}
+			return new ColorConvertOp(destCS, null);
+		}
+
+		/**
+		 * Returns an idle op or a new one.
+		 */
+		ColorConvertOp acquire() {
+			ColorConvertOp op = idle.poll();
+			return (op != null) ? op : createOp();
+		}
+
+		void release(ColorConvertOp op) {
+			idle.offer(op);
+		}
+
+		/**
+		 * Returns the ColorModel of the images created by op for the kind of
+		 * images of this entry.
+		 */
+		synchronized ColorModel getDestColorModel(BufferedImage img) {
+			if (destCM == null) {
+				ColorModel cm = img.getColorModel();
+				BufferedImage pixel = new BufferedImage(cm, cm.createCompatibleWritableRaster(1, 1),
+						cm.isAlphaPremultiplied(), null);
+				ColorConvertOp op = acquire();
+				try {
+					destCM = op.createCompatibleDestImage(pixel, null).getColorModel();
+				} finally {
+					release(op);
+				}
+			}
+			return destCM;
+		}
+	}
+
+	private static class Key {
+		static final int RASTER_OP = 1;
+		static final int IMAGE_OP = 2;
+
+		final int kind;
+		final byte[] srcId;
+		final byte[] destId;
+		final int transferType;
+		final int numBands;
+		final boolean hasAlpha;
+		final boolean isAlphaPre;
+		final int hash;
+
+		Key(int kind, ICC_Profile srcProfile, ICC_Profile destProfile, int transferType, int numBands,
+				boolean hasAlpha, boolean isAlphaPre) {
+			this.kind = kind;
+			ProfileRegistry registry = ProfileRegistry.getShared();
+			this.srcId = registry.getId(srcProfile);
+			this.destId = registry.getId(destProfile);
+			this.transferType = transferType;
+			this.numBands = numBands;
+			this.hasAlpha = hasAlpha;
+			this.isAlphaPre = isAlphaPre;
+			int h = kind;
+			h = 31 * h + Arrays.hashCode(srcId);
+			h = 31 * h + Arrays.hashCode(destId);
+			h = 31 * h + transferType;
+			h = 31 * h + numBands;
+			h = 31 * h + (hasAlpha ? 1 : 0) + (isAlphaPre ? 2 : 0);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key o = (Key) obj;
+			return hash == o.hash && kind == o.kind && transferType == o.transferType && numBands == o.numBands
+					&& hasAlpha == o.hasAlpha && isAlphaPre == o.isAlphaPre && Arrays.equals(srcId, o.srcId)
+					&& Arrays.equals(destId, o.destId);
+		}
+
+		@Override
+		public String toString() {
+			return "[kind=" + kind + " transferType=" + transferType + " bands=" + numBands + " alpha=" + hasAlpha
+					+ (isAlphaPre ? "(pre)" : "") + "]";
+		}
+	}
+}
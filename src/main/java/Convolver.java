@@ -0,0 +1,347 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ConvolveOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Kernel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Convolution of 8 and 16 bit images working directly on the byte[] and
+ * short[] bank arrays of PixelInterleavedSampleModel rasters.
+ *
+ * Separable kernels (like box and gaussian blurs) are detected and applied as
+ * a horizontal and a vertical 1-D pass. The image is split into bands of rows
+ * processed in parallel, each band keeps only a ring of kernel height rows of
+ * intermediate float samples.
+ *
+ * The kernel orientation and the NO_OP and ZERO_FILL edges are the same as in
+ * ConvolveOp, but the samples are rounded instead of truncated and 16 bit
+ * samples are unsigned (ConvolveOp wraps samples above 32767). Non
+ * premultiplied color is weighted by alpha while convolving, so transparent
+ * pixels don't darken their neighbours. With convolveAlpha(false) the alpha
+ * band is copied and the color bands are convolved on their own.
+ */
+public class Convolver {
+
+	/**
+	 * Handling of the pixels where the kernel doesn't fit in the image.
+	 */
+	public enum Edge {
+		/** edge pixels are set to zero, like ConvolveOp.EDGE_ZERO_FILL */
+		ZERO_FILL,
+		/** edge pixels are copied from the source, like ConvolveOp.EDGE_NO_OP */
+		NO_OP,
+		/** the source is extended by repeating the edge pixels */
+		CLAMP
+	}
+
+	/** minimum number of rows per parallel band */
+	public static final int MIN_BAND_ROWS = 16;
+
+	/** number of samples below which we don't bother with parallel processing */
+	public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private final Kernel kernel;
+	private final int kernelWidth;
+	private final int kernelHeight;
+	private final int xOrigin;
+	private final int yOrigin;
+	/** flipped kernel data, dst(x, y) = sum src(x - xOrigin + i, y - yOrigin + j) * data[j * width + i] */
+	private final float[] data;
+	/** 1-D kernels of a separable kernel, null otherwise */
+	private final float[] rowKernel;
+	private final float[] colKernel;
+	private Edge edge = Edge.NO_OP;
+	private boolean convolveAlpha = true;
+
+	public Convolver(Kernel kernel) {
+		this.kernel = kernel;
+		this.kernelWidth = kernel.getWidth();
+		this.kernelHeight = kernel.getHeight();
+		// origin of the flipped kernel
+		this.xOrigin = kernelWidth - 1 - kernel.getXOrigin();
+		this.yOrigin = kernelHeight - 1 - kernel.getYOrigin();
+		float[] kernelData = kernel.getKernelData(null);
+		this.data = new float[kernelData.length];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = kernelData[data.length - 1 - i];
+		}
+		float[][] separated = separate(data, kernelWidth, kernelHeight);
+		this.rowKernel = (separated != null) ? separated[0] : null;
+		this.colKernel = (separated != null) ? separated[1] : null;
+	}
+
+	public Convolver edge(Edge edge) {
+		this.edge = edge;
+		return this;
+	}
+
+	public Convolver convolveAlpha(boolean convolveAlpha) {
+		this.convolveAlpha = convolveAlpha;
+		return this;
+	}
+
+	public boolean isSeparable() {
+		return rowKernel != null;
+	}
+
+	/**
+	 * Splits the kernel data into a row and a column kernel with
+	 * data[j * width + i] = row[i] * col[j]. Returns {row, col} or null if the
+	 * kernel is not separable.
+	 */
+	static float[][] separate(float[] data, int width, int height) {
+		// use the largest element as pivot
+		int pivot = 0;
+		for (int i = 1; i < data.length; ++i) {
+			if (Math.abs(data[i]) > Math.abs(data[pivot])) {
+				pivot = i;
+			}
+		}
+		float max = Math.abs(data[pivot]);
+		if (max == 0) {
+			return null;
+		}
+		int pivotRow = pivot / width;
+		int pivotCol = pivot % width;
+		float[] row = Arrays.copyOfRange(data, pivotRow * width, (pivotRow + 1) * width);
+		float[] col = new float[height];
+		for (int j = 0; j < height; ++j) {
+			col[j] = data[j * width + pivotCol] / data[pivot];
+		}
+		float tolerance = max * 1e-6f;
+		for (int j = 0; j < height; ++j) {
+			for (int i = 0; i < width; ++i) {
+				if (Math.abs(data[j * width + i] - row[i] * col[j]) > tolerance) {
+					return null;
+				}
+			}
+		}
+		return new float[][] { row, col };
+	}
+
+	/**
+	 * Returns a normalized gaussian kernel with a radius of 3 sigma.
+	 */
+	public static Kernel gaussianKernel(float sigma) {
+		int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+		int size = 2 * radius + 1;
+		float[] g = new float[size];
+		float sum = 0;
+		for (int i = 0; i < size; ++i) {
+			int d = i - radius;
+			g[i] = (float) Math.exp(-d * d / (2.0 * sigma * sigma));
+			sum += g[i];
+		}
+		float[] data = new float[size * size];
+		for (int j = 0; j < size; ++j) {
+			for (int i = 0; i < size; ++i) {
+				data[j * size + i] = g[j] * g[i] / (sum * sum);
+			}
+		}
+		return new Kernel(size, size, data);
+	}
+
+	/**
+	 * Returns a 3x3 sharpening kernel that adds amount times the laplacian.
+	 */
+	public static Kernel sharpenKernel(float amount) {
+		float a = -amount;
+		return new Kernel(3, 3, new float[] { 0, a, 0, a, 1 + 4 * amount, a, 0, a, 0 });
+	}
+
+	/**
+	 * Returns a new image with the convolved image. Images with an
+	 * IndexColorModel or float samples are filtered with ConvolveOp (CLAMP is
+	 * treated as NO_OP there).
+	 */
+	public BufferedImage filter(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		int dataType = img.getRaster().getDataBuffer().getDataType();
+		if (cm instanceof IndexColorModel || dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE) {
+			int edgeCondition = (edge == Edge.ZERO_FILL) ? ConvolveOp.EDGE_ZERO_FILL : ConvolveOp.EDGE_NO_OP;
+			ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.CONVOLVE);
+			BufferedImage dst = new ConvolveOp(kernel, edgeCondition, null).filter(img, null);
+			timer.stop(dst);
+			return dst;
+		}
+		BufferedImage dst;
+		if (img.getType() != BufferedImage.TYPE_CUSTOM) {
+			// keeps the band order of types like TYPE_3BYTE_BGR
+			dst = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
+		} else {
+			dst = new BufferedImage(cm, OffHeapRasters.createCompatibleWritableRaster(cm, img.getWidth(), img.getHeight()),
+					cm.isAlphaPremultiplied(), null);
+		}
+		int alphaBand = cm.hasAlpha() ? cm.getNumComponents() - 1 : -1;
+		filter(img.getRaster(), dst.getRaster(), alphaBand, alphaBand >= 0 && !cm.isAlphaPremultiplied());
+		return dst;
+	}
+
+	/**
+	 * Convolves src into dst, which must be a different raster of the same
+	 * size. alphaBand is the index of the alpha band or -1, if premultiply is
+	 * true the color bands are weighted by alpha while convolving.
+	 */
+	public void filter(Raster src, WritableRaster dst, int alphaBand, boolean premultiply) {
+		int width = src.getWidth();
+		int height = src.getHeight();
+		int numBands = src.getNumBands();
+		if (dst.getWidth() != width || dst.getHeight() != height || dst.getNumBands() != numBands) {
+			throw new IllegalArgumentException("Rasters do not match: " + src + " " + dst);
+		}
+		if (src.getDataBuffer() == dst.getDataBuffer()) {
+			throw new IllegalArgumentException("src and dst can't be the same raster");
+		}
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.CONVOLVE);
+		BandTask task = new BandTask(src, dst, alphaBand, premultiply && convolveAlpha && alphaBand >= 0);
+		if ((long) width * height * numBands >= PARALLEL_THRESHOLD) {
+			ParallelRows.forEachBand(height, Math.max(MIN_BAND_ROWS, 4 * kernelHeight), task);
+		} else {
+			task.run(0, height);
+		}
+		timer.stop(dst);
+	}
+
+	/**
+	 * Convolves a band of rows.
+	 */
+	private final class BandTask implements ParallelRows.RowTask {
+		final Raster src;
+		final WritableRaster dst;
+		final int width, height, numBands;
+		final int alphaBand;
+		final boolean premultiply;
+		final float[] maxValues;
+		/** computed area, the rest is edge */
+		final int x0, x1, y0, y1;
+
+		BandTask(Raster src, WritableRaster dst, int alphaBand, boolean premultiply) {
+			this.src = src;
+			this.dst = dst;
+			this.width = src.getWidth();
+			this.height = src.getHeight();
+			this.numBands = src.getNumBands();
+			this.alphaBand = alphaBand;
+			this.premultiply = premultiply;
+			this.maxValues = RowAccess.getMaxValues(dst);
+			if (edge == Edge.CLAMP) {
+				x0 = 0;
+				x1 = width;
+				y0 = 0;
+				y1 = height;
+			} else {
+				// ConvolveOp leaves an edge of at least the origin on both sides
+				x0 = Math.min(xOrigin, width);
+				x1 = Math.max(x0, width - Math.max(xOrigin, kernelWidth - 1 - xOrigin));
+				y0 = Math.min(yOrigin, height);
+				y1 = Math.max(y0, height - Math.max(yOrigin, kernelHeight - 1 - yOrigin));
+			}
+		}
+
+		@Override
+		public void run(int startRow, int endRow) {
+			int r0 = Math.max(startRow, y0);
+			int r1 = Math.min(endRow, y1);
+			if (r0 < r1 && x0 < x1) {
+				convolveRows(r0, r1);
+				fillEdge(0, r0, x0, r1 - r0);
+				fillEdge(x1, r0, width - x1, r1 - r0);
+			} else {
+				r0 = r1 = Math.max(startRow, Math.min(endRow, y0));
+			}
+			fillEdge(0, startRow, width, r0 - startRow);
+			fillEdge(0, r1, width, endRow - r1);
+		}
+
+		private void fillEdge(int x, int y, int w, int h) {
+			if (w <= 0 || h <= 0) {
+				return;
+			}
+			int[] pixels = (edge == Edge.ZERO_FILL) ? new int[w * h * numBands]
+					: src.getPixels(src.getMinX() + x, src.getMinY() + y, w, h, (int[]) null);
+			dst.setPixels(dst.getMinX() + x, dst.getMinY() + y, w, h, pixels);
+		}
+
+		private void convolveRows(int r0, int r1) {
+			int nb = numBands;
+			int cw = x1 - x0;
+			int n = cw * nb;
+			// source columns of a line, clamped at the edges
+			int[] xs = new int[cw + kernelWidth - 1];
+			for (int p = 0; p < xs.length; ++p) {
+				xs[p] = Math.max(0, Math.min(width - 1, x0 - xOrigin + p));
+			}
+			RowAccess in = new RowAccess(src);
+			RowAccess out = new RowAccess(dst);
+			float[] line = new float[xs.length * nb];
+			// ring of kernel height rows, horizontally convolved for separable kernels
+			float[][] ring = new float[kernelHeight][isSeparable() ? n : line.length];
+			float[] acc = new float[n];
+			float[][] kernelRows = new float[kernelHeight][];
+			for (int j = 0; j < kernelHeight; ++j) {
+				kernelRows[j] = Arrays.copyOfRange(data, j * kernelWidth, (j + 1) * kernelWidth);
+			}
+			int[] alpha = (alphaBand >= 0 && !convolveAlpha) ? new int[cw] : null;
+			for (int s = r0 - yOrigin; s < r1 - yOrigin + kernelHeight - 1; ++s) {
+				float[] ringRow = ring[Math.floorMod(s, kernelHeight)];
+				in.read(Math.max(0, Math.min(height - 1, s)), xs, isSeparable() ? line : ringRow);
+				if (isSeparable()) {
+					if (premultiply) {
+						RowAccess.premultiply(line, numBands, alphaBand, maxValues[alphaBand]);
+					}
+					Arrays.fill(ringRow, 0);
+					convolveRow(line, rowKernel, ringRow, n);
+				} else if (premultiply) {
+					RowAccess.premultiply(ringRow, numBands, alphaBand, maxValues[alphaBand]);
+				}
+				int r = s + yOrigin - kernelHeight + 1;
+				if (r < r0) {
+					continue;
+				}
+				Arrays.fill(acc, 0);
+				for (int j = 0; j < kernelHeight; ++j) {
+					float[] row = ring[Math.floorMod(r - yOrigin + j, kernelHeight)];
+					if (isSeparable()) {
+						float k = colKernel[j];
+						for (int t = 0; t < n; ++t) {
+							acc[t] += row[t] * k;
+						}
+					} else {
+						convolveRow(row, kernelRows[j], acc, n);
+					}
+				}
+				if (premultiply) {
+					RowAccess.unpremultiply(acc, numBands, alphaBand, maxValues[alphaBand]);
+				}
+				if (alpha != null) {
+					src.getSamples(src.getMinX() + x0, src.getMinY() + r, cw, 1, alphaBand, alpha);
+					for (int p = 0; p < cw; ++p) {
+						acc[p * nb + alphaBand] = alpha[p];
+					}
+				}
+				out.write(r, x0, cw, acc, maxValues);
+			}
+		}
+
+		/**
+		 * Adds the line convolved with the 1-D kernel to acc.
+		 */
+		private void convolveRow(float[] line, float[] k, float[] acc, int n) {
+			int nb = numBands;
+			for (int i = 0; i < k.length; ++i) {
+				float ki = k[i];
+				if (ki == 0) {
+					continue;
+				}
+				int o = i * nb;
+				for (int t = 0; t < n; ++t) {
+					acc[t] += line[o + t] * ki;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,384 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Lookup tables for converting 16 bit samples to 8 bit (65536 entries) and 8
+ * bit samples to 16 bit (256 entries) with a transfer curve, e.g. linear 16 bit
+ * masters to sRGB encoded 8 bit derivatives.
+ *
+ * The tables are computed once per bit depths, curve and rounding and cached.
+ * Converting is one table lookup per sample, directly on the bank arrays of
+ * pixel interleaved rasters, in parallel bands of rows. The alpha band always
+ * gets the linear table.
+ */
+public final class DepthLut {
+
+	public enum Rounding {
+		/** keep the upper bits, like v >> 8 */
+		TRUNCATE,
+		/** nearest output value */
+		NEAREST
+	}
+
+	/**
+	 * Transfer curve from normalized input (0..1) to normalized output.
+	 */
+	public static final class Curve {
+		/** output = input */
+		public static final Curve LINEAR = new Curve("linear", x -> x);
+		/** encodes linear input with the sRGB curve */
+		public static final Curve SRGB = new Curve("sRGB", x -> (x <= 0.0031308) ? 12.92 * x
+				: 1.055 * Math.pow(x, 1 / 2.4) - 0.055);
+		/** decodes sRGB input to linear */
+		public static final Curve SRGB_TO_LINEAR = new Curve("sRGB-to-linear", x -> (x <= 0.04045) ? x / 12.92
+				: Math.pow((x + 0.055) / 1.055, 2.4));
+
+		final String name;
+		final DoubleUnaryOperator function;
+
+		Curve(String name, DoubleUnaryOperator function) {
+			this.name = name;
+			this.function = function;
+		}
+
+		/**
+		 * Returns the curve output = input^exponent, e.g. gamma(1 / 2.2) to encode
+		 * linear input with gamma 2.2.
+		 */
+		public static Curve gamma(double exponent) {
+			if (!(exponent > 0)) {
+				throw new IllegalArgumentException("exponent must be positive: " + exponent);
+			}
+			return new Curve("gamma " + exponent, x -> Math.pow(x, exponent));
+		}
+
+		/**
+		 * Returns the curve for linear, srgb, srgb-to-linear or gamma=EXPONENT.
+		 */
+		public static Curve parse(String name) {
+			String n = name.trim().toLowerCase(Locale.ROOT);
+			if (n.equals("linear")) {
+				return LINEAR;
+			} else if (n.equals("srgb")) {
+				return SRGB;
+			} else if (n.equals("srgb-to-linear")) {
+				return SRGB_TO_LINEAR;
+			} else if (n.startsWith("gamma=")) {
+				return gamma(Double.parseDouble(n.substring(6)));
+			}
+			throw new IllegalArgumentException("Unknown curve " + name);
+		}
+
+		public double eval(double x) {
+			return function.applyAsDouble(x);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/** minimum number of rows per parallel band */
+	public static final int MIN_BAND_ROWS = 32;
+
+	/** number of samples below which we don't bother with parallel processing */
+	public static final int PARALLEL_THRESHOLD = 1 << 20;
+
+	private static final int MAX_CACHED = 32;
+
+	private static final Map<String, DepthLut> cache = new LinkedHashMap<String, DepthLut>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DepthLut> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	final int inBits;
+	final int outBits;
+	final Curve curve;
+	final Rounding rounding;
+	/** the table for 8 bit output, else null */
+	final byte[] byteTable;
+	/** the table for 16 bit output, else null */
+	final short[] shortTable;
+
+	private DepthLut(int inBits, int outBits, Curve curve, Rounding rounding) {
+		this.inBits = inBits;
+		this.outBits = outBits;
+		this.curve = curve;
+		this.rounding = rounding;
+		int inMax = (1 << inBits) - 1;
+		int outMax = (1 << outBits) - 1;
+		byte[] bytes = (outBits == 8) ? new byte[inMax + 1] : null;
+		short[] shorts = (outBits == 16) ? new short[inMax + 1] : null;
+		for (int i = 0; i <= inMax; ++i) {
+			double y = Math.min(1, Math.max(0, curve.eval(i / (double) inMax)));
+			int v;
+			if (rounding == Rounding.TRUNCATE) {
+				v = Math.min(outMax, (int) (y * (outMax + 1)));
+			} else {
+				v = (int) Math.floor(y * outMax + 0.5);
+			}
+			if (bytes != null) {
+				bytes[i] = (byte) v;
+			} else {
+				shorts[i] = (short) v;
+			}
+		}
+		this.byteTable = bytes;
+		this.shortTable = shorts;
+	}
+
+	/**
+	 * Returns the (cached) table from inBits to outBits (8 or 16 each).
+	 */
+	public static DepthLut get(int inBits, int outBits, Curve curve, Rounding rounding) {
+		if ((inBits != 8 && inBits != 16) || (outBits != 8 && outBits != 16)) {
+			throw new IllegalArgumentException("Only 8 and 16 bits are supported: " + inBits + " " + outBits);
+		}
+		String key = inBits + "/" + outBits + "/" + curve + "/" + rounding;
+		synchronized (cache) {
+			DepthLut lut = cache.get(key);
+			if (lut == null) {
+				lut = new DepthLut(inBits, outBits, curve, rounding);
+				cache.put(key, lut);
+			}
+			return lut;
+		}
+	}
+
+	public static DepthLut get16To8(Curve curve, Rounding rounding) {
+		return get(16, 8, curve, rounding);
+	}
+
+	public static DepthLut get8To16(Curve curve) {
+		return get(8, 16, curve, Rounding.NEAREST);
+	}
+
+	/**
+	 * Returns the output value for the input value.
+	 */
+	public int lookup(int v) {
+		return (byteTable != null) ? byteTable[v] & 0xff : shortTable[v] & 0xffff;
+	}
+
+	/**
+	 * Returns the table of the alpha band, the linear one with the same rounding.
+	 */
+	DepthLut getAlphaLut() {
+		return (curve == Curve.LINEAR) ? this : get(inBits, outBits, Curve.LINEAR, rounding);
+	}
+
+	/**
+	 * Returns a new image with the converted samples and the color space of the
+	 * image. The curve is applied to the stored values, premultiplied colors are
+	 * not divided by alpha.
+	 */
+	public BufferedImage convert(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		if (!(cm instanceof ComponentColorModel)) {
+			throw new IllegalArgumentException("Unsupported ColorModel: " + cm);
+		}
+		int dataType = (outBits == 8) ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
+		ColorModel newCM = new ComponentColorModel(cm.getColorSpace(), cm.hasAlpha(), cm.isAlphaPremultiplied(),
+				cm.getTransparency(), dataType);
+		WritableRaster raster = OffHeapRasters.createCompatibleWritableRaster(newCM, img.getWidth(), img.getHeight());
+		apply(img.getRaster(), raster, cm.hasAlpha() ? cm.getNumComponents() - 1 : -1);
+		return new BufferedImage(newCM, raster, newCM.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Converts the samples of src into dst. alphaBand is the index of the alpha
+	 * band, which is converted linearly, or -1.
+	 */
+	public void apply(Raster src, WritableRaster dst, int alphaBand) {
+		int width = src.getWidth();
+		int height = src.getHeight();
+		int numBands = src.getNumBands();
+		if (dst.getWidth() != width || dst.getHeight() != height || dst.getNumBands() != numBands) {
+			throw new IllegalArgumentException("Rasters do not match: " + src + " " + dst);
+		}
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.DEPTH);
+		ParallelRows.RowTask task;
+		if (isInterleaved(src, inBits) && isInterleaved(dst, outBits)) {
+			task = OffHeapRasters.stagedTask(src, dst, (s, d) -> new InterleavedTask(s, d, alphaBand));
+		} else {
+			task = (startRow, endRow) -> applyRows(src, dst, alphaBand, startRow, endRow);
+		}
+		if ((long) width * height * numBands >= PARALLEL_THRESHOLD) {
+			ParallelRows.forEachBand(height, MIN_BAND_ROWS, task);
+		} else {
+			task.run(0, height);
+		}
+		timer.stop(dst);
+	}
+
+	private static boolean isInterleaved(Raster raster, int bits) {
+		DataBuffer db = raster.getDataBuffer();
+		return raster.getSampleModel() instanceof PixelInterleavedSampleModel
+				&& ((bits == 8) ? db instanceof DataBufferByte : db instanceof DataBufferUShort)
+				|| OffHeapRasters.isInterleaved(raster) && DataBuffer.getDataTypeSize(db.getDataType()) == bits;
+	}
+
+	/**
+	 * Generic version for other sample models.
+	 */
+	private void applyRows(Raster src, WritableRaster dst, int alphaBand, int startRow, int endRow) {
+		int width = src.getWidth();
+		int numBands = src.getNumBands();
+		int inMask = (1 << inBits) - 1;
+		DepthLut alphaLut = getAlphaLut();
+		int[] row = null;
+		for (int y = startRow; y < endRow; ++y) {
+			row = src.getPixels(src.getMinX(), src.getMinY() + y, width, 1, row);
+			for (int i = 0; i < row.length; ++i) {
+				DepthLut lut = (i % numBands == alphaBand) ? alphaLut : this;
+				row[i] = lut.lookup(row[i] & inMask);
+			}
+			dst.setPixels(dst.getMinX(), dst.getMinY() + y, width, 1, row);
+		}
+	}
+
+	private final class InterleavedTask implements ParallelRows.RowTask {
+		final byte[] srcBytes, dstBytes;
+		final short[] srcShorts, dstShorts;
+		final int srcBase, srcScanlineStride, srcPixelStride;
+		final int dstBase, dstScanlineStride, dstPixelStride;
+		final int[] srcBandOffsets, dstBandOffsets;
+		final int width;
+		final int numBands;
+		/** table per band */
+		final DepthLut[] luts;
+		final boolean contiguous;
+
+		InterleavedTask(Raster src, WritableRaster dst, int alphaBand) {
+			PixelInterleavedSampleModel srcSm = (PixelInterleavedSampleModel) src.getSampleModel();
+			PixelInterleavedSampleModel dstSm = (PixelInterleavedSampleModel) dst.getSampleModel();
+			DataBuffer srcDb = src.getDataBuffer();
+			DataBuffer dstDb = dst.getDataBuffer();
+			int srcBank = srcSm.getBankIndices()[0];
+			int dstBank = dstSm.getBankIndices()[0];
+			srcBytes = (srcDb instanceof DataBufferByte) ? ((DataBufferByte) srcDb).getData(srcBank) : null;
+			srcShorts = (srcDb instanceof DataBufferUShort) ? ((DataBufferUShort) srcDb).getData(srcBank) : null;
+			dstBytes = (dstDb instanceof DataBufferByte) ? ((DataBufferByte) dstDb).getData(dstBank) : null;
+			dstShorts = (dstDb instanceof DataBufferUShort) ? ((DataBufferUShort) dstDb).getData(dstBank) : null;
+			srcBase = BitDepthReducer.getBaseOffset(src);
+			srcScanlineStride = srcSm.getScanlineStride();
+			srcPixelStride = srcSm.getPixelStride();
+			srcBandOffsets = srcSm.getBandOffsets();
+			dstBase = BitDepthReducer.getBaseOffset(dst);
+			dstScanlineStride = dstSm.getScanlineStride();
+			dstPixelStride = dstSm.getPixelStride();
+			dstBandOffsets = dstSm.getBandOffsets();
+			width = src.getWidth();
+			numBands = src.getNumBands();
+			luts = new DepthLut[numBands];
+			boolean sameLuts = true;
+			for (int b = 0; b < numBands; ++b) {
+				luts[b] = (b == alphaBand) ? getAlphaLut() : DepthLut.this;
+				sameLuts &= luts[b] == DepthLut.this;
+			}
+			contiguous = sameLuts && isContiguous();
+		}
+
+		/**
+		 * Returns if both rasters have packed pixels with the same band order, so
+		 * that a row can be processed as one flat run of samples.
+		 */
+		private boolean isContiguous() {
+			if (srcPixelStride != numBands || dstPixelStride != numBands) {
+				return false;
+			}
+			for (int b = 0; b < numBands; ++b) {
+				if (srcBandOffsets[b] != dstBandOffsets[b] || srcBandOffsets[b] < 0
+						|| srcBandOffsets[b] >= numBands) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void run(int startRow, int endRow) {
+			for (int y = startRow; y < endRow; ++y) {
+				int srcPos = srcBase + y * srcScanlineStride;
+				int dstPos = dstBase + y * dstScanlineStride;
+				if (contiguous) {
+					run(DepthLut.this, srcPos, dstPos, width * numBands, 1, 1);
+				} else {
+					for (int b = 0; b < numBands; ++b) {
+						run(luts[b], srcPos + srcBandOffsets[b], dstPos + dstBandOffsets[b], width, srcPixelStride,
+								dstPixelStride);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Looks up len samples.
+		 */
+		private void run(DepthLut lut, int srcPos, int dstPos, int len, int srcStride, int dstStride) {
+			if (srcShorts != null && dstBytes != null) {
+				lookupRun(lut.byteTable, srcShorts, srcPos, dstBytes, dstPos, len, srcStride, dstStride);
+			} else if (srcBytes != null && dstShorts != null) {
+				lookupRun(lut.shortTable, srcBytes, srcPos, dstShorts, dstPos, len, srcStride, dstStride);
+			} else if (srcBytes != null) {
+				byte[] table = lut.byteTable;
+				for (int i = 0; i < len; ++i) {
+					dstBytes[dstPos + i * dstStride] = table[srcBytes[srcPos + i * srcStride] & 0xff];
+				}
+			} else {
+				short[] table = lut.shortTable;
+				for (int i = 0; i < len; ++i) {
+					dstShorts[dstPos + i * dstStride] = table[srcShorts[srcPos + i * srcStride] & 0xffff];
+				}
+			}
+		}
+	}
+
+	/**
+	 * 16 to 8 bit lookup of len samples.
+	 */
+	static void lookupRun(byte[] table, short[] src, int srcPos, byte[] dst, int dstPos, int len, int srcStride,
+			int dstStride) {
+		if (srcStride == 1 && dstStride == 1) {
+			for (int i = 0; i < len; ++i) {
+				dst[dstPos + i] = table[src[srcPos + i] & 0xffff];
+			}
+		} else {
+			for (int i = 0; i < len; ++i) {
+				dst[dstPos + i * dstStride] = table[src[srcPos + i * srcStride] & 0xffff];
+			}
+		}
+	}
+
+	/**
+	 * 8 to 16 bit lookup of len samples.
+	 */
+	static void lookupRun(short[] table, byte[] src, int srcPos, short[] dst, int dstPos, int len, int srcStride,
+			int dstStride) {
+		if (srcStride == 1 && dstStride == 1) {
+			for (int i = 0; i < len; ++i) {
+				dst[dstPos + i] = table[src[srcPos + i] & 0xff];
+			}
+		} else {
+			for (int i = 0; i < len; ++i) {
+				dst[dstPos + i * dstStride] = table[src[srcPos + i * srcStride] & 0xff];
+			}
+		}
+	}
+}
@@ -0,0 +1,493 @@
+import java.awt.color.ICC_Profile;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed cache of encoded derivatives on the local disk, bounded
+ * by the bytes of the files with LRU eviction.
+ *
+ * A derivative is identified by a Key of the source file (path, modification
+ * time and size, or a hash of its bytes), the canonical profile ID if a
+ * profile is assigned, and the parameters of the operation chain and the
+ * output format. The SHA-256 of the key is the file name, in DIR/ab/abcd...ext.
+ * Files are written to a temporary file and moved into place, so readers
+ * never see partial files, and concurrent requests for the same key create it
+ * once.
+ *
+ * The index of the files is read from the directory when the cache is
+ * created, ordered by modification time, which hits update. The shared cache
+ * is in imaging.derivativeCache.dir (default imaging-derivatives in the temp
+ * directory) with at most imaging.derivativeCache.bytes (default 1 GB).
+ */
+public class DerivativeCache {
+
+	static Logger logger = Logger.getLogger(DerivativeCache.class.getName());
+
+	public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+	private static final String TEMP_PREFIX = ".tmp-";
+
+	private static DerivativeCache sharedCache;
+
+	/**
+	 * Creates a derivative in the file, e.g. by writing an image.
+	 */
+	public interface Producer {
+		void write(File file) throws IOException;
+	}
+
+	private final Path dir;
+	private final long maxBytes;
+	/** access-ordered for LRU eviction, guarded by itself like bytes */
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long bytes = 0;
+	/** locks of the keys being created */
+	private final ConcurrentHashMap<String, Object> creating = new ConcurrentHashMap<String, Object>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Opens the cache in dir, creating the directory and evicting files beyond
+	 * maxBytes if needed.
+	 */
+	public DerivativeCache(File dir, long maxBytes) throws IOException {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.dir = dir.toPath();
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.dir);
+		load();
+	}
+
+	/**
+	 * Returns the shared cache configured by the system properties.
+	 */
+	public static synchronized DerivativeCache getShared() {
+		if (sharedCache == null) {
+			String dir = System.getProperty("imaging.derivativeCache.dir");
+			File file = (dir != null) ? new File(dir)
+					: new File(System.getProperty("java.io.tmpdir"), "imaging-derivatives");
+			try {
+				sharedCache = new DerivativeCache(file,
+						Long.getLong("imaging.derivativeCache.bytes", DEFAULT_MAX_BYTES));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Can't open derivative cache " + file, e);
+			}
+		}
+		return sharedCache;
+	}
+
+	/**
+	 * Reads the files of the cache directory into the index, oldest first, and
+	 * deletes temporary files left by crashed writers.
+	 */
+	private void load() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		final Map<Path, Long> times = new HashMap<Path, Long>();
+		Map<Path, Long> sizes = new HashMap<Path, Long>();
+		try (DirectoryStream<Path> subdirs = Files.newDirectoryStream(dir)) {
+			for (Path subdir : subdirs) {
+				if (!Files.isDirectory(subdir)) {
+					continue;
+				}
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(subdir)) {
+					for (Path file : entries) {
+						if (file.getFileName().toString().startsWith(TEMP_PREFIX)) {
+							Files.deleteIfExists(file);
+							continue;
+						}
+						BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+						times.put(file, attrs.lastModifiedTime().toMillis());
+						sizes.put(file, attrs.size());
+						files.add(file);
+					}
+				}
+			}
+		}
+		files.sort((a, b) -> Long.compare(times.get(a), times.get(b)));
+		synchronized (index) {
+			for (Path file : files) {
+				index.put(file.getFileName().toString(), sizes.get(file));
+				bytes += sizes.get(file);
+			}
+			evict();
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Opened " + this);
+		}
+	}
+
+	/**
+	 * Returns the cached file of the key, null if it isn't cached. The file may
+	 * be evicted by other threads or processes, copyTo() handles that.
+	 */
+	public File get(Key key) {
+		String name = key.getFileName();
+		Long size;
+		synchronized (index) {
+			size = index.get(name);
+		}
+		if (size == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		Path file = getPath(name);
+		try {
+			// the modification time keeps the LRU order across restarts
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// deleted behind our back
+			remove(name);
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		bytesRead.addAndGet(size);
+		return file.toFile();
+	}
+
+	/**
+	 * Copies the cached derivative to dest, returns false if it isn't cached.
+	 */
+	public boolean copyTo(Key key, File dest) throws IOException {
+		File file = get(key);
+		if (file == null) {
+			return false;
+		}
+		try {
+			Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (NoSuchFileException e) {
+			// evicted meanwhile
+			remove(key.getFileName());
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the cached file of the key, created with the producer if it isn't
+	 * cached. Threads asking for the same key wait for the first one.
+	 */
+	public File getOrCreate(Key key, Producer producer) throws IOException {
+		File file = get(key);
+		if (file != null) {
+			return file;
+		}
+		String name = key.getFileName();
+		Object lock = creating.computeIfAbsent(name, k -> new Object());
+		try {
+			synchronized (lock) {
+				synchronized (index) {
+					if (index.containsKey(name)) {
+						// created by another thread meanwhile
+						return getPath(name).toFile();
+					}
+				}
+				Path temp = createTempFile(name);
+				try {
+					producer.write(temp.toFile());
+					return add(name, temp).toFile();
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+			}
+		} finally {
+			creating.remove(name, lock);
+		}
+	}
+
+	/**
+	 * Adds a copy of the file as derivative of the key.
+	 */
+	public File put(Key key, File source) throws IOException {
+		String name = key.getFileName();
+		Path temp = createTempFile(name);
+		try {
+			Files.copy(source.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+			return add(name, temp).toFile();
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private Path createTempFile(String name) throws IOException {
+		Path subdir = getPath(name).getParent();
+		Files.createDirectories(subdir);
+		return Files.createTempFile(subdir, TEMP_PREFIX, null);
+	}
+
+	/**
+	 * Moves the complete temporary file to its place and evicts the least
+	 * recently used files beyond the maximum size.
+	 */
+	private Path add(String name, Path temp) throws IOException {
+		Path file = getPath(name);
+		long size = Files.size(temp);
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		bytesWritten.addAndGet(size);
+		synchronized (index) {
+			Long old = index.put(name, size);
+			if (old != null) {
+				bytes -= old;
+			}
+			bytes += size;
+			evict();
+		}
+		return file;
+	}
+
+	/**
+	 * Deletes the least recently used files until the cache fits, the caller
+	 * holds the index lock. The newest file stays even if it is larger than the
+	 * whole cache, it is the eldest at the next eviction.
+	 */
+	private void evict() {
+		for (Iterator<Map.Entry<String, Long>> i = index.entrySet().iterator(); bytes > maxBytes
+				&& index.size() > 1 && i.hasNext();) {
+			Map.Entry<String, Long> eldest = i.next();
+			try {
+				Files.deleteIfExists(getPath(eldest.getKey()));
+			} catch (IOException e) {
+				logger.warning("could not delete cached derivative " + eldest.getKey() + ": " + e);
+			}
+			bytes -= eldest.getValue();
+			i.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(String name) {
+		synchronized (index) {
+			Long size = index.remove(name);
+			if (size != null) {
+				bytes -= size;
+			}
+		}
+	}
+
+	private Path getPath(String name) {
+		return dir.resolve(name.substring(0, 2)).resolve(name);
+	}
+
+	/**
+	 * Deletes all cached files.
+	 */
+	public void clear() throws IOException {
+		synchronized (index) {
+			for (String name : index.keySet()) {
+				Files.deleteIfExists(getPath(name));
+			}
+			index.clear();
+			bytes = 0;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the bytes of the hits.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Returns the bytes of the files added.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public int size() {
+		synchronized (index) {
+			return index.size();
+		}
+	}
+
+	/**
+	 * Returns the bytes of the cached files.
+	 */
+	public long getBytes() {
+		synchronized (index) {
+			return bytes;
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public File getDirectory() {
+		return dir.toFile();
+	}
+
+	@Override
+	public String toString() {
+		long b;
+		int n;
+		synchronized (index) {
+			b = bytes;
+			n = index.size();
+		}
+		return "DerivativeCache[" + dir + " files=" + n + " bytes=" + b + "/" + maxBytes + " hits=" + getHits()
+				+ " misses=" + getMisses() + " evictions=" + getEvictions() + " read=" + getBytesRead() + " written="
+				+ getBytesWritten() + "]";
+	}
+
+	/**
+	 * Identity of a derivative: the source, the profile and the parameters in
+	 * the order they are added, and the file extension of the output format.
+	 */
+	public static final class Key {
+		private final StringBuilder text = new StringBuilder();
+		private String extension = "";
+		private String fileName;
+
+		private Key(String source) {
+			text.append("source=").append(source).append('\n');
+		}
+
+		private Key(Key key) {
+			text.append(key.text);
+			extension = key.extension;
+		}
+
+		/**
+		 * Key of a derivative of the file, identified by its absolute path,
+		 * modification time and size.
+		 */
+		public static Key forFile(File file) throws IOException {
+			BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			return new Key(file.getAbsolutePath() + " " + attrs.lastModifiedTime().toMillis() + " " + attrs.size());
+		}
+
+		/**
+		 * Key of a derivative of the file, identified by the hash of its
+		 * bytes, so copies and renamed files share derivatives.
+		 */
+		public static Key forContent(File file) throws IOException {
+			MessageDigest md = newDigest();
+			byte[] buffer = new byte[64 * 1024];
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					md.update(buffer, 0, n);
+				}
+			}
+			return new Key("sha256:" + toHex(md.digest()));
+		}
+
+		/**
+		 * Returns a key with the same source, profile, parameters and extension
+		 * that can be extended, e.g. for several derivatives of one source.
+		 */
+		public Key copy() {
+			return new Key(this);
+		}
+
+		/**
+		 * Adds the canonical ID of the profile assigned to the source.
+		 */
+		public Key profile(ICC_Profile profile) {
+			return param("profile", toHex(ProfileRegistry.getShared().getId(profile)));
+		}
+
+		/**
+		 * Adds a parameter of the operation chain, e.g. "scale", "0.5 bicubic".
+		 */
+		public Key param(String name, Object value) {
+			checkOpen();
+			text.append(name).append('=').append(value).append('\n');
+			return this;
+		}
+
+		/**
+		 * Sets the file extension of the output format, e.g. "tiff".
+		 */
+		public Key extension(String extension) {
+			checkOpen();
+			this.extension = extension;
+			return this;
+		}
+
+		private void checkOpen() {
+			if (fileName != null) {
+				throw new IllegalStateException("Key already used: " + this);
+			}
+		}
+
+		/**
+		 * Returns the SHA-256 of the key with the extension. The key can't be
+		 * changed afterwards.
+		 */
+		synchronized String getFileName() {
+			if (fileName == null) {
+				byte[] hash = newDigest().digest(text.toString().getBytes(StandardCharsets.UTF_8));
+				fileName = toHex(hash) + (extension.isEmpty() ? "" : "." + extension);
+			}
+			return fileName;
+		}
+
+		@Override
+		public String toString() {
+			return text.toString().replace('\n', ' ').trim() + (extension.isEmpty() ? "" : " ." + extension);
+		}
+
+		private static MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 not available", e);
+			}
+		}
+
+		static String toHex(byte[] bytes) {
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,457 @@
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.color.ICC_ProfileGray;
+import java.awt.color.ICC_ProfileRGB;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Supplier;
+
+/**
+ * Finds the pixels of an image that are outside the sRGB gamut.
+ *
+ * For matrix-shaper RGB profiles the samples are linearized with the tables
+ * of the MatrixShaperConverter and multiplied by its matrix to linear sRGB.
+ * Other profiles are converted to CIEXYZ with a cached ColorConvertOp in
+ * chunks of rows and the XYZ values are multiplied by the inverse sRGB
+ * matrix. A pixel is outside the gamut if a linear sRGB component is below 0
+ * or above 1 by more than TOLERANCE. Fully transparent pixels are skipped.
+ *
+ * The whole raster is scanned in parallel bands on primitive arrays, the
+ * bands only allocate their row buffers.
+ */
+public class GamutAnalyzer {
+
+	/** distance outside [0, 1] in linear sRGB that still counts as inside */
+	public static final float TOLERANCE = 1f / 1024;
+
+	/** default size of the cells of the coverage mask in pixels */
+	public static final int DEFAULT_CELL_SIZE = 16;
+
+	/** minimum number of rows per parallel band */
+	public static final int MIN_BAND_ROWS = 16;
+
+	/** number of rows converted to CIEXYZ at once */
+	static final int XYZ_CHUNK_ROWS = 64;
+
+	/**
+	 * Statistics of the pixels outside the gamut.
+	 */
+	public static class Result {
+		final int width;
+		final int height;
+		final int cellSize;
+		long outOfGamut = 0;
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = -1;
+		int maxY = -1;
+		float maxDistance = 0;
+		final BitSet mask;
+
+		Result(int width, int height, int cellSize) {
+			this.width = width;
+			this.height = height;
+			this.cellSize = cellSize;
+			this.mask = new BitSet();
+		}
+
+		public long getPixels() {
+			return (long) width * height;
+		}
+
+		public long getOutOfGamut() {
+			return outOfGamut;
+		}
+
+		public double getFraction() {
+			return (double) outOfGamut / getPixels();
+		}
+
+		/**
+		 * Returns the bounding box of the pixels outside the gamut, or null.
+		 */
+		public Rectangle getBounds() {
+			return (outOfGamut == 0) ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+		}
+
+		/**
+		 * Returns the largest distance of a linear sRGB component outside [0, 1].
+		 */
+		public float getMaxDistance() {
+			return maxDistance;
+		}
+
+		public int getCellSize() {
+			return cellSize;
+		}
+
+		public int getMaskWidth() {
+			return (width + cellSize - 1) / cellSize;
+		}
+
+		public int getMaskHeight() {
+			return (height + cellSize - 1) / cellSize;
+		}
+
+		/**
+		 * Returns if the mask cell has pixels outside the gamut.
+		 */
+		public boolean isOutOfGamut(int cellX, int cellY) {
+			return mask.get(cellY * getMaskWidth() + cellX);
+		}
+
+		/**
+		 * Returns the coverage mask, bit cellY * getMaskWidth() + cellX is set
+		 * for cells with pixels outside the gamut.
+		 */
+		public BitSet getMask() {
+			return (BitSet) mask.clone();
+		}
+
+		synchronized void add(Result band) {
+			outOfGamut += band.outOfGamut;
+			minX = Math.min(minX, band.minX);
+			minY = Math.min(minY, band.minY);
+			maxX = Math.max(maxX, band.maxX);
+			maxY = Math.max(maxY, band.maxY);
+			maxDistance = Math.max(maxDistance, band.maxDistance);
+			mask.or(band.mask);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d of %d pixels (%.2f%%) outside sRGB, bounds=%s, maxDistance=%.4f, cells=%d of %d",
+					outOfGamut, getPixels(), getFraction() * 100, toString(getBounds()), maxDistance,
+					mask.cardinality(), getMaskWidth() * getMaskHeight());
+		}
+
+		private static String toString(Rectangle r) {
+			return (r == null) ? "none" : r.x + "," + r.y + " " + r.width + "x" + r.height;
+		}
+	}
+
+	private static ICC_Profile xyzProfile;
+	private static float[] xyzToSrgb;
+
+	/**
+	 * Analyzes the image with the default cell size.
+	 */
+	public static Result analyze(BufferedImage img) {
+		return analyze(img, DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Analyzes the image, the coverage mask has one bit per cellSize x cellSize
+	 * pixels.
+	 */
+	public static Result analyze(BufferedImage img, int cellSize) {
+		ColorModel cm = img.getColorModel();
+		ColorSpace cs = cm.getColorSpace();
+		if (!(cs instanceof ICC_ColorSpace)) {
+			throw new IllegalArgumentException("Image has no ICC profile: " + cs);
+		}
+		ICC_Profile profile = ((ICC_ColorSpace) cs).getProfile();
+		Raster raster = img.getRaster();
+		Result result = new Result(raster.getWidth(), raster.getHeight(), Math.max(1, cellSize));
+		if (cs.isCS_sRGB() || profile instanceof ICC_ProfileGray) {
+			// gray is neutral, so always inside
+			return result;
+		}
+		int alphaBand = cm.hasAlpha() ? cm.getNumComponents() - 1 : -1;
+		Supplier<LinearSrgbRows> rowsFactory;
+		MatrixShaperConverter converter = MatrixShaperConverter.get(profile,
+				ICC_Profile.getInstance(ColorSpace.CS_sRGB));
+		if (converter != null && cm.getComponentSize(0) <= 16 && cm.getNumComponents() <= 4) {
+			boolean premultiplied = cm.isAlphaPremultiplied();
+			rowsFactory = () -> new MatrixRows(raster, alphaBand, premultiplied, converter);
+		} else {
+			Raster colors = raster;
+			if (cm.isAlphaPremultiplied()) {
+				// the CMM needs non premultiplied colors
+				WritableRaster copy = cm.createCompatibleWritableRaster(raster.getWidth(), raster.getHeight());
+				copy.setRect(-raster.getMinX(), -raster.getMinY(), raster);
+				cm.coerceData(copy, false);
+				colors = copy;
+			}
+			Raster xyzSource = colors;
+			int numColorComponents = cm.getNumColorComponents();
+			rowsFactory = () -> new XyzRows(xyzSource, alphaBand, numColorComponents, profile);
+		}
+		BandTask task = new BandTask(rowsFactory, result);
+		ParallelRows.forEachBand(raster.getHeight(), MIN_BAND_ROWS, task);
+		return result;
+	}
+
+	private static synchronized ICC_Profile getXyzProfile() {
+		if (xyzProfile == null) {
+			xyzProfile = ICC_Profile.getInstance(ColorSpace.CS_CIEXYZ);
+			// the sRGB colorants are adapted to the D50 PCS white like the CIEXYZ output
+			float[][] m = ((ICC_ProfileRGB) ICC_Profile.getInstance(ColorSpace.CS_sRGB)).getMatrix();
+			double[][] inv = MatrixShaperConverter.invert(MatrixShaperConverter.toDouble(m));
+			xyzToSrgb = new float[9];
+			for (int i = 0; i < 9; ++i) {
+				xyzToSrgb[i] = (float) inv[i / 3][i % 3];
+			}
+		}
+		return xyzProfile;
+	}
+
+	/**
+	 * Conversion of rows of a raster to linear sRGB, one instance per band.
+	 */
+	private interface LinearSrgbRows {
+		/**
+		 * Returns the number of rows that are converted at once.
+		 */
+		int getChunkRows();
+
+		/**
+		 * Sets rgb to the linear sRGB values of the pixels of the rows and
+		 * alpha to their alpha (0 for transparent pixels).
+		 */
+		void convert(int startRow, int endRow, float[] rgb, float[] alpha);
+	}
+
+	/**
+	 * Classifies the pixels of a band of rows.
+	 */
+	private static final class BandTask implements ParallelRows.RowTask {
+		final Supplier<LinearSrgbRows> rowsFactory;
+		final Result result;
+
+		BandTask(Supplier<LinearSrgbRows> rowsFactory, Result result) {
+			this.rowsFactory = rowsFactory;
+			this.result = result;
+		}
+
+		@Override
+		public void run(int startRow, int endRow) {
+			LinearSrgbRows rows = rowsFactory.get();
+			Result band = new Result(result.width, result.height, result.cellSize);
+			int width = result.width;
+			int maskWidth = band.getMaskWidth();
+			int chunkRows = rows.getChunkRows();
+			float[] rgb = new float[chunkRows * width * 3];
+			float[] alpha = new float[chunkRows * width];
+			float lo = -TOLERANCE;
+			float hi = 1 + TOLERANCE;
+			for (int y0 = startRow; y0 < endRow; y0 += chunkRows) {
+				int y1 = Math.min(endRow, y0 + chunkRows);
+				rows.convert(y0, y1, rgb, alpha);
+				for (int y = y0; y < y1; ++y) {
+					int o = (y - y0) * width;
+					int rowMinX = Integer.MAX_VALUE;
+					int rowMaxX = -1;
+					for (int x = 0; x < width; ++x) {
+						int i = (o + x) * 3;
+						float r = rgb[i], g = rgb[i + 1], b = rgb[i + 2];
+						if ((r >= lo && r <= hi && g >= lo && g <= hi && b >= lo && b <= hi) || alpha[o + x] == 0) {
+							continue;
+						}
+						float d = Math.max(Math.max(Math.max(-r, r - 1), Math.max(-g, g - 1)),
+								Math.max(-b, b - 1));
+						band.maxDistance = Math.max(band.maxDistance, d);
+						band.outOfGamut++;
+						band.mask.set((y / band.cellSize) * maskWidth + x / band.cellSize);
+						if (rowMinX > x) {
+							rowMinX = x;
+						}
+						rowMaxX = x;
+					}
+					if (rowMaxX >= 0) {
+						band.minX = Math.min(band.minX, rowMinX);
+						band.maxX = Math.max(band.maxX, rowMaxX);
+						band.minY = Math.min(band.minY, y);
+						band.maxY = y;
+					}
+				}
+			}
+			result.add(band);
+		}
+	}
+
+	/**
+	 * Linear sRGB with the tables and matrix of a matrix-shaper profile.
+	 */
+	private static final class MatrixRows implements LinearSrgbRows {
+		final RowAccess in;
+		final int width;
+		final int alphaBand;
+		final boolean premultiplied;
+		final float[] maxValues;
+		final float[][] linLut;
+		final float[] matrix;
+		final int lutMax;
+		final int[] columns;
+		final float[] line;
+
+		MatrixRows(Raster raster, int alphaBand, boolean premultiplied, MatrixShaperConverter converter) {
+			this.in = new RowAccess(raster);
+			this.width = raster.getWidth();
+			this.alphaBand = alphaBand;
+			this.premultiplied = premultiplied;
+			this.maxValues = RowAccess.getMaxValues(raster);
+			int bits = raster.getSampleModel().getSampleSize(0);
+			this.lutMax = (bits <= 8) ? 255 : 65535;
+			this.linLut = converter.getLinLut((bits <= 8) ? 8 : 16);
+			this.matrix = converter.getMatrix();
+			this.columns = new int[width];
+			for (int x = 0; x < width; ++x) {
+				columns[x] = x;
+			}
+			this.line = new float[width * raster.getNumBands()];
+		}
+
+		@Override
+		public int getChunkRows() {
+			return 1;
+		}
+
+		@Override
+		public void convert(int startRow, int endRow, float[] rgb, float[] alpha) {
+			if (!premultiplied && (in.shortData != null || in.byteData != null) && lutMax == maxValues[0]) {
+				convertDirect(startRow, rgb, alpha);
+				return;
+			}
+			in.read(startRow, columns, line);
+			int nb = in.numBands;
+			float scale = lutMax / maxValues[0];
+			final float[] linR = linLut[0], linG = linLut[1], linB = linLut[2];
+			final float m00 = matrix[0], m01 = matrix[1], m02 = matrix[2];
+			final float m10 = matrix[3], m11 = matrix[4], m12 = matrix[5];
+			final float m20 = matrix[6], m21 = matrix[7], m22 = matrix[8];
+			for (int x = 0, o = 0; x < width; ++x, o += nb) {
+				float f = scale;
+				if (alphaBand >= 0) {
+					float a = line[o + alphaBand];
+					alpha[x] = a;
+					if (premultiplied && a > 0) {
+						f = scale * maxValues[alphaBand] / a;
+					}
+				} else {
+					alpha[x] = 1;
+				}
+				float r = linR[Math.min(lutMax, (int) (line[o] * f + 0.5f))];
+				float g = linG[Math.min(lutMax, (int) (line[o + 1] * f + 0.5f))];
+				float b = linB[Math.min(lutMax, (int) (line[o + 2] * f + 0.5f))];
+				rgb[x * 3] = m00 * r + m01 * g + m02 * b;
+				rgb[x * 3 + 1] = m10 * r + m11 * g + m12 * b;
+				rgb[x * 3 + 2] = m20 * r + m21 * g + m22 * b;
+			}
+		}
+
+		/**
+		 * Reads the samples directly from the bank array.
+		 */
+		private void convertDirect(int y, float[] rgb, float[] alpha) {
+			final short[] shortData = in.shortData;
+			final byte[] byteData = in.byteData;
+			final int pixelStride = in.pixelStride;
+			final int offR = in.bandOffsets[0], offG = in.bandOffsets[1], offB = in.bandOffsets[2];
+			final int offA = (alphaBand >= 0) ? in.bandOffsets[alphaBand] : -1;
+			final float[] linR = linLut[0], linG = linLut[1], linB = linLut[2];
+			final float m00 = matrix[0], m01 = matrix[1], m02 = matrix[2];
+			final float m10 = matrix[3], m11 = matrix[4], m12 = matrix[5];
+			final float m20 = matrix[6], m21 = matrix[7], m22 = matrix[8];
+			int o = in.getRowOffset(y);
+			for (int x = 0; x < width; ++x, o += pixelStride) {
+				float r, g, b;
+				if (shortData != null) {
+					r = linR[shortData[o + offR] & 0xffff];
+					g = linG[shortData[o + offG] & 0xffff];
+					b = linB[shortData[o + offB] & 0xffff];
+					alpha[x] = (offA >= 0) ? shortData[o + offA] & 0xffff : 1;
+				} else {
+					r = linR[byteData[o + offR] & 0xff];
+					g = linG[byteData[o + offG] & 0xff];
+					b = linB[byteData[o + offB] & 0xff];
+					alpha[x] = (offA >= 0) ? byteData[o + offA] & 0xff : 1;
+				}
+				rgb[x * 3] = m00 * r + m01 * g + m02 * b;
+				rgb[x * 3 + 1] = m10 * r + m11 * g + m12 * b;
+				rgb[x * 3 + 2] = m20 * r + m21 * g + m22 * b;
+			}
+		}
+	}
+
+	/**
+	 * Linear sRGB from CIEXYZ converted by the CMM, for all other profiles.
+	 * Premultiplied images have to be converted to non premultiplied first.
+	 */
+	private static final class XyzRows implements LinearSrgbRows {
+		final Raster raster;
+		final int width;
+		final int alphaBand;
+		final int[] colorBands;
+		final ICC_Profile profile;
+		final ICC_Profile xyzProfile;
+		/** the layout of the color bands for the ColorTransformCache */
+		final Raster colorLayout;
+		final WritableRaster xyz;
+		final short[] xyzData;
+		final float[] matrix;
+
+		XyzRows(Raster raster, int alphaBand, int numColorComponents, ICC_Profile profile) {
+			this.raster = raster;
+			this.width = raster.getWidth();
+			this.alphaBand = alphaBand;
+			this.colorBands = new int[numColorComponents];
+			for (int b = 0; b < numColorComponents; ++b) {
+				colorBands[b] = b;
+			}
+			this.profile = profile;
+			this.xyzProfile = getXyzProfile();
+			this.matrix = xyzToSrgb;
+			this.colorLayout = raster.createChild(raster.getMinX(), raster.getMinY(), width, 1, 0, 0, colorBands);
+			this.xyz = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, width, XYZ_CHUNK_ROWS, 3, null);
+			this.xyzData = ((DataBufferUShort) xyz.getDataBuffer()).getData();
+		}
+
+		@Override
+		public int getChunkRows() {
+			return XYZ_CHUNK_ROWS;
+		}
+
+		@Override
+		public void convert(int startRow, int endRow, float[] rgb, float[] alpha) {
+			int rows = endRow - startRow;
+			Raster colors = raster.createChild(raster.getMinX(), raster.getMinY() + startRow, width, rows, 0, 0,
+					colorBands);
+			ColorTransformCache cache = ColorTransformCache.getShared();
+			ColorConvertOp op = cache.acquireRasterOp(profile, xyzProfile, colorLayout);
+			try {
+				op.filter(colors, xyz.createWritableChild(0, 0, width, rows, 0, 0, null));
+			} finally {
+				cache.releaseRasterOp(profile, xyzProfile, colorLayout, op);
+			}
+			// the CMM encodes XYZ as 1.15 fixed point
+			final float scale = 1f / 32768;
+			final float m00 = matrix[0], m01 = matrix[1], m02 = matrix[2];
+			final float m10 = matrix[3], m11 = matrix[4], m12 = matrix[5];
+			final float m20 = matrix[6], m21 = matrix[7], m22 = matrix[8];
+			int n = rows * width;
+			for (int i = 0; i < n; ++i) {
+				float x = (xyzData[i * 3] & 0xffff) * scale;
+				float y = (xyzData[i * 3 + 1] & 0xffff) * scale;
+				float z = (xyzData[i * 3 + 2] & 0xffff) * scale;
+				rgb[i * 3] = m00 * x + m01 * y + m02 * z;
+				rgb[i * 3 + 1] = m10 * x + m11 * y + m12 * z;
+				rgb[i * 3 + 2] = m20 * x + m21 * y + m22 * z;
+			}
+			if (alphaBand >= 0) {
+				raster.getSamples(raster.getMinX(), raster.getMinY() + startRow, width, rows, alphaBand, alpha);
+			} else {
+				Arrays.fill(alpha, 0, n, 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Loads images with ImageIO, optionally decoding only a region, a subsampled
+ * version or a subset of the bands of the image.
+ *
+ * Readers are taken from the shared ImageReaderPool and input streams are
+ * always closed after reading.
+ */
+public class ImageLoader {
+
+	static Logger logger = Logger.getLogger(ImageLoader.class.getName());
+
+	/**
+	 * Options for loading an image. The defaults load the full image with the
+	 * reader's default destination type.
+	 */
+	public static class Options {
+		/** select the first sRGB destination type */
+		boolean destSrgb = false;
+		/** select the destination type with this index (starting at 1), 0 for none */
+		int destIdx = 0;
+		/** region of the source image to read, null for the full image */
+		Rectangle sourceRegion = null;
+		/** read only every nth pixel in x and y */
+		int subsampling = 1;
+		/** read the region subsampled to at least this size, 0 for no target size */
+		int targetWidth = 0;
+		int targetHeight = 0;
+		/** read only these bands, null for all bands (not supported by the JDK PNG reader) */
+		int[] sourceBands = null;
+		/** use the shared color model of the ProfileRegistry for the image */
+		boolean canonicalProfile = true;
+		/** read the file through a memory mapping */
+		boolean mappedInput = !"false".equals(System.getProperty("imaging.mappedInput"));
+
+		public Options destSrgb(boolean destSrgb) {
+			this.destSrgb = destSrgb;
+			return this;
+		}
+
+		public Options destIdx(int destIdx) {
+			this.destIdx = destIdx;
+			return this;
+		}
+
+		public Options sourceRegion(int x, int y, int width, int height) {
+			this.sourceRegion = new Rectangle(x, y, width, height);
+			return this;
+		}
+
+		public Options subsampling(int subsampling) {
+			if (subsampling < 1) {
+				throw new IllegalArgumentException("subsampling must be positive: " + subsampling);
+			}
+			this.subsampling = subsampling;
+			return this;
+		}
+
+		public Options targetSize(int targetWidth, int targetHeight) {
+			this.targetWidth = targetWidth;
+			this.targetHeight = targetHeight;
+			return this;
+		}
+
+		public Options sourceBands(int... sourceBands) {
+			this.sourceBands = sourceBands;
+			return this;
+		}
+
+		public Options canonicalProfile(boolean canonicalProfile) {
+			this.canonicalProfile = canonicalProfile;
+			return this;
+		}
+
+		public Options mappedInput(boolean mappedInput) {
+			this.mappedInput = mappedInput;
+			return this;
+		}
+	}
+
+	public static BufferedImage loadImage(String mt, String fn) throws Exception, FileNotFoundException, IOException {
+		return loadImage(mt, fn, new Options());
+	}
+
+	public static BufferedImage loadImage(String mt, String fn, Options options)
+			throws Exception, FileNotFoundException, IOException {
+		ImageReaderPool readerPool = ImageReaderPool.getShared();
+		ImageReader reader = readerPool.acquire(mt);
+		try (ImageInputStream istream = openStream(fn, options)) {
+			// set input
+			reader.setInput(istream);
+			// choose default readParam
+			ImageReadParam readParam = reader.getDefaultReadParam();
+			// show alternative imageTypes
+			ImageTypeSpecifier destType = null;
+			int idx = 1;
+			for (Iterator<ImageTypeSpecifier> i = reader.getImageTypes(0); i.hasNext(); ++idx) {
+				ImageTypeSpecifier type = (ImageTypeSpecifier) i.next();
+				ColorModel cm = type.getColorModel();
+				ColorSpace cs = cm.getColorSpace();
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("  possible destination color model " + idx + ": " + cm + " color space: " + cs
+							+ " is sRGB=" + cs.isCS_sRGB() + " bitdepth=" + Arrays.toString(cm.getComponentSize()));
+				}
+				if (destType == null) {
+					destType = type;
+				}
+				if (options.destIdx == 0 && options.destSrgb && cs.isCS_sRGB()) {
+					logger.fine("    selected as destination");
+					readParam.setDestinationType(type);
+					destType = type;
+				}
+				if (options.destIdx > 0 && idx == options.destIdx) {
+					logger.fine("    selected as destination");
+					readParam.setDestinationType(type);
+					destType = type;
+				}
+			}
+			setSourceParams(reader, readParam, destType, options);
+
+			// read image
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Loading file: " + fn);
+				logger.fine("Using reader: " + reader);
+			}
+			ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.DECODE);
+			BufferedImage img = reader.read(0, readParam);
+			timer.stop(img);
+			if (options.canonicalProfile) {
+				timer = ImagingMetrics.start(ImagingMetrics.Stage.PROFILE);
+				img = ProfileRegistry.getShared().canonicalize(img);
+				timer.stop(img);
+			}
+			return img;
+		} finally {
+			readerPool.release(mt, reader);
+		}
+	}
+
+	/**
+	 * Opens the file as memory mapped or regular ImageInputStream.
+	 */
+	static ImageInputStream openStream(String fn, Options options) throws IOException {
+		if (options.mappedInput) {
+			return new MappedFileImageInputStream(new File(fn));
+		}
+		return new FileImageInputStream(new RandomAccessFile(fn, "r"));
+	}
+
+	/**
+	 * Sets source region, subsampling and bands from the options.
+	 */
+	static void setSourceParams(ImageReader reader, ImageReadParam readParam, ImageTypeSpecifier destType,
+			Options options) throws IOException {
+		Rectangle region = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+		if (options.sourceRegion != null) {
+			region = region.intersection(options.sourceRegion);
+			if (region.isEmpty()) {
+				throw new IllegalArgumentException("Source region " + options.sourceRegion + " is outside the image");
+			}
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Using source region " + region);
+			}
+			readParam.setSourceRegion(region);
+		}
+		int subsampling = Math.max(options.subsampling, getSubsampling(region.width, region.height,
+				options.targetWidth, options.targetHeight));
+		if (subsampling > 1) {
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Using source subsampling " + subsampling);
+			}
+			readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		}
+		if (options.sourceBands != null) {
+			if (destType == null) {
+				throw new IllegalArgumentException("Can't read band subset without image type");
+			}
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Using source bands " + Arrays.toString(options.sourceBands));
+			}
+			readParam.setSourceBands(options.sourceBands);
+			// readers only accept their own image types as destination type, so we
+			// provide a destination image with fewer bands
+			ImageTypeSpecifier bandsType = getBandSubsetType(destType, options.sourceBands.length);
+			int width = (region.width + subsampling - 1) / subsampling;
+			int height = (region.height + subsampling - 1) / subsampling;
+			readParam.setDestination(bandsType.createBufferedImage(width, height));
+			int[] destBands = new int[options.sourceBands.length];
+			for (int i = 0; i < destBands.length; ++i) {
+				destBands[i] = i;
+			}
+			readParam.setDestinationBands(destBands);
+		}
+	}
+
+	/**
+	 * Returns the largest subsampling factor that keeps the image at least
+	 * targetWidth x targetHeight.
+	 */
+	public static int getSubsampling(int width, int height, int targetWidth, int targetHeight) {
+		int subsampling = Integer.MAX_VALUE;
+		if (targetWidth > 0) {
+			subsampling = Math.min(subsampling, width / targetWidth);
+		}
+		if (targetHeight > 0) {
+			subsampling = Math.min(subsampling, height / targetHeight);
+		}
+		if (subsampling == Integer.MAX_VALUE) {
+			// no target size
+			return 1;
+		}
+		return Math.max(1, subsampling);
+	}
+
+	/**
+	 * Returns an image type like type with only numBands bands. This only works
+	 * for the color components, i.e. for dropping the alpha band.
+	 */
+	static ImageTypeSpecifier getBandSubsetType(ImageTypeSpecifier type, int numBands) {
+		ColorModel cm = type.getColorModel();
+		ColorSpace cs = cm.getColorSpace();
+		if (numBands != cs.getNumComponents()) {
+			throw new IllegalArgumentException("Band subset must contain the " + cs.getNumComponents()
+					+ " color components, not " + numBands + " bands");
+		}
+		SampleModel sm = type.getSampleModel();
+		int[] bandOffsets = new int[numBands];
+		for (int i = 0; i < numBands; ++i) {
+			bandOffsets[i] = i;
+		}
+		return ImageTypeSpecifier.createInterleaved(cs, bandOffsets, sm.getDataType(), false, false);
+	}
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+
+/**
+ * Pool of reusable ImageReaders per MIME type.
+ *
+ * The ImageReaderSpi for a MIME type is looked up once, the fastest reader of
+ * a ReaderRanking or else the first reader of ImageIO. At most maxReaders
+ * readers per type are in use at the same time, callers wait for a free reader
+ * beyond that. Readers are reset when they are returned to the pool.
+ */
+public class ImageReaderPool {
+
+	static Logger logger = Logger.getLogger(ImageReaderPool.class.getName());
+
+	private static ImageReaderPool sharedPool;
+
+	private final int maxReaders;
+	private final ReaderRanking ranking;
+	private final ConcurrentHashMap<String, TypePool> pools = new ConcurrentHashMap<String, TypePool>();
+	private final AtomicLong acquires = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	public ImageReaderPool(int maxReaders) {
+		this(maxReaders, null);
+	}
+
+	/**
+	 * Creates a pool that uses the fastest reader of the ranking for the MIME
+	 * types it has ranked, the first reader of ImageIO for the others.
+	 */
+	public ImageReaderPool(int maxReaders, ReaderRanking ranking) {
+		if (maxReaders < 1) {
+			throw new IllegalArgumentException("maxReaders must be positive: " + maxReaders);
+		}
+		this.maxReaders = maxReaders;
+		this.ranking = ranking;
+	}
+
+	/**
+	 * Returns a shared pool with the number of readers per type from the system
+	 * property imaging.readerPool.size (default: number of processors), using
+	 * the shared ReaderRanking unless imaging.readerRanking is false.
+	 */
+	public static synchronized ImageReaderPool getShared() {
+		if (sharedPool == null) {
+			sharedPool = new ImageReaderPool(
+					Integer.getInteger("imaging.readerPool.size", Runtime.getRuntime().availableProcessors()),
+					"false".equals(System.getProperty("imaging.readerRanking")) ? null : ReaderRanking.getShared());
+		}
+		return sharedPool;
+	}
+
+	/**
+	 * Returns a reader for the MIME type, waiting if all readers are in use. The
+	 * reader must be given back with release().
+	 */
+	public ImageReader acquire(String mt) throws IOException {
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.READER_SELECTION);
+		TypePool pool = getTypePool(mt);
+		acquires.incrementAndGet();
+		if (!pool.permits.tryAcquire()) {
+			// all readers in use
+			long start = System.nanoTime();
+			pool.permits.acquireUninterruptibly();
+			long waited = System.nanoTime() - start;
+			waits.incrementAndGet();
+			waitNanos.addAndGet(waited);
+			long max;
+			while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited)) {
+				// retry
+			}
+		}
+		ImageReader reader = pool.idle.poll();
+		if (reader == null) {
+			try {
+				reader = pool.spi.createReaderInstance();
+			} catch (IOException | RuntimeException e) {
+				pool.permits.release();
+				throw e;
+			}
+			pool.created.incrementAndGet();
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("created new ImageReader for type " + mt + ": " + reader);
+			}
+		}
+		timer.stop();
+		return reader;
+	}
+
+	/**
+	 * Resets the reader and returns it to the pool.
+	 */
+	public void release(String mt, ImageReader reader) {
+		TypePool pool = pools.get(mt);
+		if (pool == null) {
+			reader.dispose();
+			return;
+		}
+		try {
+			reader.reset();
+			pool.idle.offer(reader);
+		} catch (RuntimeException e) {
+			// don't keep broken readers
+			logger.warning("could not reset ImageReader: " + e);
+			reader.dispose();
+			pool.created.decrementAndGet();
+		} finally {
+			pool.permits.release();
+		}
+	}
+
+	/**
+	 * Returns the ImageReaderSpi for the MIME type, as chosen by the ranking or
+	 * ImageIO.
+	 */
+	public ImageReaderSpi getReaderSpi(String mt) throws IOException {
+		return getTypePool(mt).spi;
+	}
+
+	private TypePool getTypePool(String mt) throws IOException {
+		TypePool pool = pools.get(mt);
+		if (pool == null) {
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("getting ImageReader for type " + mt);
+			}
+			ImageReaderSpi spi = (ranking != null) ? ranking.getPreferredSpi(mt) : null;
+			if (spi == null) {
+				// let ImageIO choose Reader type
+				Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(mt);
+				if (!readers.hasNext()) {
+					throw new IOException("Can't find Reader to load File with mime-type " + mt + "!");
+				}
+				ImageReader reader = readers.next();
+				spi = reader.getOriginatingProvider();
+				reader.dispose();
+			} else if (logger.isLoggable(Level.FINE)) {
+				logger.fine("using ranked ImageReader for type " + mt + ": " + spi.getClass().getName());
+			}
+			TypePool newPool = new TypePool(spi, maxReaders);
+			pool = pools.putIfAbsent(mt, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Disposes all idle readers.
+	 */
+	public void clear() {
+		for (TypePool pool : pools.values()) {
+			ImageReader reader;
+			while ((reader = pool.idle.poll()) != null) {
+				reader.dispose();
+				pool.created.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of readers created for the MIME type (idle and in use).
+	 */
+	public int getPoolSize(String mt) {
+		TypePool pool = pools.get(mt);
+		return pool == null ? 0 : pool.created.get();
+	}
+
+	public int getIdleCount(String mt) {
+		TypePool pool = pools.get(mt);
+		return pool == null ? 0 : pool.idle.size();
+	}
+
+	public int getMaxReaders() {
+		return maxReaders;
+	}
+
+	public long getAcquires() {
+		return acquires.get();
+	}
+
+	/**
+	 * Returns the number of acquires that had to wait for a free reader.
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+
+	public long getTotalWaitNanos() {
+		return waitNanos.get();
+	}
+
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ImageReaderPool[");
+		for (String mt : pools.keySet()) {
+			sb.append(mt).append("=").append(getPoolSize(mt)).append("/").append(maxReaders).append(" ");
+		}
+		sb.append("acquires=").append(getAcquires()).append(" waits=").append(getWaits())
+				.append(" waitTime=").append(getTotalWaitNanos() / 1000000).append("ms")
+				.append(" maxWait=").append(getMaxWaitNanos() / 1000000).append("ms]");
+		return sb.toString();
+	}
+
+	private static class TypePool {
+		final ImageReaderSpi spi;
+		final ConcurrentLinkedQueue<ImageReader> idle = new ConcurrentLinkedQueue<ImageReader>();
+		final Semaphore permits;
+		final AtomicInteger created = new AtomicInteger();
+
+		TypePool(ImageReaderSpi spi, int maxReaders) {
+			this.spi = spi;
+			this.permits = new Semaphore(maxReaders, true);
+		}
+	}
+}
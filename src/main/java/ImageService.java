@@ -0,0 +1,435 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running HTTP service for the conversions, on the HTTP server of the
+ * JDK, so requests don't pay for JVM startup and a cold JIT.
+ *
+ * Usage: ImageService ROOT-DIR [PORT]
+ *
+ * GET /image?file=NAME serves a file below ROOT-DIR after the steps set by
+ * the parameters, in this order:
+ * <ul>
+ * <li>srgb=true: convert the colors to sRGB</li>
+ * <li>depth=8: reduce 16 bit images to 8 bit, the only depth supported</li>
+ * <li>scale=FACTOR[,FACTOR-Y] and filter=area|bilinear|bicubic|lanczos3
+ * (default bilinear)</li>
+ * <li>format=png|jpeg|tiff (default png), quality=0..1 and compression=TYPE</li>
+ * </ul>
+ * e.g. /image?file=photorgb-sample-t16.tiff&amp;srgb=true&amp;depth=8&amp;scale=0.5&amp;format=jpeg
+ *
+ * GET /stats returns the cache, reader pool and stage statistics.
+ *
+ * Every request runs on its own virtual thread if the JVM has them, else on a
+ * pool of imaging.service.threads (default: 4 per processor) threads. At most
+ * imaging.service.decodes (default: number of processors) requests decode and
+ * convert at the same time, the others wait. At most imaging.service.images
+ * (default: twice the decodes) requests hold a decoded image until it is
+ * encoded, so the memory for decoded images is bounded while the responses of
+ * slow clients are sent. The response is encoded straight into the chunked
+ * response body. Requests for images of more than imaging.service.maxPixels
+ * (default: 100 million) pixels after scaling are rejected. With
+ * -Dimaging.service.cache=true the encoded results are kept in the shared
+ * DerivativeCache.
+ */
+public class ImageService {
+
+	static Logger logger = Logger.getLogger(ImageService.class.getName());
+
+	public static final int DEFAULT_PORT = 8080;
+
+	/** default limit of the pixels of a result */
+	public static final long DEFAULT_MAX_PIXELS = 100000000L;
+
+	/** tries to get a cached result that isn't evicted before it is opened */
+	private static final int MAX_CACHE_ATTEMPTS = 3;
+
+	private final Path root;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int maxDecodes;
+	private final Semaphore decodes;
+	private final int maxImages;
+	private final Semaphore images;
+	private final long maxPixels;
+	private final DerivativeCache cache;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Creates the service for the files below root on the port (0 for any free
+	 * port) with at most maxDecodes concurrent decodes and maxImages decoded
+	 * images of at most maxPixels pixels, using the cache if it isn't null.
+	 * start() starts it.
+	 */
+	public ImageService(File root, int port, int threads, int maxDecodes, int maxImages, long maxPixels,
+			DerivativeCache cache) throws IOException {
+		if (maxDecodes < 1) {
+			throw new IllegalArgumentException("maxDecodes must be positive: " + maxDecodes);
+		}
+		if (maxImages < maxDecodes) {
+			throw new IllegalArgumentException("maxImages must be at least maxDecodes: " + maxImages);
+		}
+		this.root = root.toPath().toRealPath();
+		this.maxDecodes = maxDecodes;
+		this.decodes = new Semaphore(maxDecodes);
+		this.maxImages = maxImages;
+		this.images = new Semaphore(maxImages);
+		this.maxPixels = maxPixels;
+		this.cache = cache;
+		this.executor = BatchRunner.createExecutor(threads);
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(executor);
+		server.createContext("/image", this::handleImage);
+		server.createContext("/stats", this::handleStats);
+	}
+
+	public void start() {
+		server.start();
+		logger.info("Serving " + root + " on port " + getPort());
+	}
+
+	/**
+	 * Stops accepting requests, waits up to delay seconds for running requests.
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(delay, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Parameters of an image request.
+	 */
+	static class Request {
+		final Path file;
+		final boolean srgb;
+		final int depth;
+		final double scaleX;
+		final double scaleY;
+		final Resampler.Filter filter;
+		final String format;
+		final StreamingImageWriter.Options writeOptions = new StreamingImageWriter.Options();
+
+		Request(Path root, Map<String, String> params) throws IOException {
+			String name = params.get("file");
+			if (name == null) {
+				throw new IllegalArgumentException("Missing parameter file");
+			}
+			Path path = root.resolve(name).normalize();
+			if (!path.startsWith(root)) {
+				throw new IllegalArgumentException("Invalid file " + name);
+			}
+			if (!Files.isRegularFile(path)) {
+				throw new NoSuchFileException(name);
+			}
+			// no links out of root
+			file = path.toRealPath();
+			if (!file.startsWith(root)) {
+				throw new NoSuchFileException(name);
+			}
+			srgb = Boolean.parseBoolean(params.get("srgb"));
+			depth = Integer.parseInt(params.getOrDefault("depth", "0"));
+			if (depth != 0 && depth != 8) {
+				throw new IllegalArgumentException("Invalid depth " + depth + ", only depth=8 is supported");
+			}
+			String[] scale = params.getOrDefault("scale", "1").split(",");
+			scaleX = Double.parseDouble(scale[0]);
+			scaleY = (scale.length > 1) ? Double.parseDouble(scale[1]) : scaleX;
+			if (!(scaleX > 0 && scaleY > 0) || scale.length > 2) {
+				throw new IllegalArgumentException("Invalid scale " + params.get("scale"));
+			}
+			filter = Resampler.Filter.valueOf(params.getOrDefault("filter", "bilinear").toUpperCase(Locale.ROOT));
+			format = params.getOrDefault("format", "png").toLowerCase(Locale.ROOT);
+			// before the response headers are sent
+			if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+				throw new IllegalArgumentException("Unsupported format " + format);
+			}
+			if (params.containsKey("quality")) {
+				writeOptions.compressionQuality(Float.parseFloat(params.get("quality")));
+			}
+			writeOptions.compression(params.get("compression"));
+		}
+
+		/**
+		 * Throws an IllegalArgumentException if the result has more than
+		 * maxPixels pixels, with the size from the header of the file.
+		 */
+		void checkSize(long maxPixels) throws IOException {
+			String mt = BatchRunner.getMimeType(file);
+			ImageReaderPool readerPool = ImageReaderPool.getShared();
+			ImageReader reader = readerPool.acquire(mt);
+			long width;
+			long height;
+			try (ImageInputStream istream = new FileImageInputStream(file.toFile())) {
+				reader.setInput(istream, true, true);
+				// as rounded by the Resampler
+				width = Math.max(1, Math.round(reader.getWidth(0) * scaleX));
+				height = Math.max(1, Math.round(reader.getHeight(0) * scaleY));
+			} finally {
+				readerPool.release(mt, reader);
+			}
+			if (width * height > maxPixels) {
+				throw new IllegalArgumentException(
+						"Image too large: " + width + "x" + height + " pixels, at most " + maxPixels);
+			}
+		}
+
+		String getContentType() {
+			switch (format) {
+			case "jpg":
+			case "jpeg":
+				return "image/jpeg";
+			case "tif":
+			case "tiff":
+				return "image/tiff";
+			default:
+				return "image/" + format;
+			}
+		}
+
+		/**
+		 * Returns the key of the result in the DerivativeCache.
+		 */
+		DerivativeCache.Key getKey() throws IOException {
+			return DerivativeCache.Key.forFile(file.toFile()).param("srgb", srgb).param("depth", depth)
+					.param("scale", scaleX + " " + scaleY + " " + filter)
+					.param("write", writeOptions.compression + " " + writeOptions.compressionQuality)
+					.extension(format);
+		}
+	}
+
+	private void handleImage(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "Method not allowed");
+				return;
+			}
+			Request request;
+			try {
+				request = new Request(root, parseQuery(exchange.getRequestURI().getRawQuery()));
+				request.checkSize(maxPixels);
+			} catch (NoSuchFileException e) {
+				sendError(exchange, 404, "Not found: " + e.getMessage());
+				return;
+			} catch (IllegalArgumentException e) {
+				sendError(exchange, 400, e.getMessage());
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", request.getContentType());
+			if (cache != null) {
+				try (FileChannel channel = openCached(request)) {
+					long size = channel.size();
+					exchange.sendResponseHeaders(200, (size > 0) ? size : -1);
+					try (OutputStream out = exchange.getResponseBody()) {
+						WritableByteChannel body = Channels.newChannel(out);
+						for (long pos = 0; pos < size;) {
+							pos += channel.transferTo(pos, size - pos, body);
+						}
+					}
+				}
+			} else {
+				renderAndWrite(request, img -> {
+					// chunked, encoded while it is sent
+					exchange.sendResponseHeaders(200, 0);
+					try (OutputStream out = exchange.getResponseBody()) {
+						StreamingImageWriter.writeImage(img, request.format, out, request.writeOptions);
+					}
+				});
+			}
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine(exchange.getRequestURI() + " " + (System.nanoTime() - start) / 1000000 + "ms");
+			}
+		} catch (IOException | RuntimeException e) {
+			failures.incrementAndGet();
+			logger.warning("Failed " + exchange.getRequestURI() + ": " + e);
+			if (exchange.getResponseCode() < 0) {
+				sendError(exchange, 500, "Failed: " + e);
+			}
+		} catch (OutOfMemoryError e) {
+			// the image is unreachable now, the other requests go on
+			failures.incrementAndGet();
+			logger.warning("Out of memory for " + exchange.getRequestURI());
+			if (exchange.getResponseCode() < 0) {
+				sendError(exchange, 503, "Out of memory");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Opens the cached result, rendered now if it isn't cached. The open
+	 * channel stays readable if the file is evicted while it is sent, files
+	 * evicted before they are opened are rendered again.
+	 */
+	private FileChannel openCached(Request request) throws IOException {
+		for (int attempt = 1;; ++attempt) {
+			File file = cache.getOrCreate(request.getKey(), f -> renderAndWrite(request,
+					img -> StreamingImageWriter.writeImage(img, request.format, f, request.writeOptions)));
+			try {
+				return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			} catch (NoSuchFileException e) {
+				if (attempt == MAX_CACHE_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a rendered image, e.g. into the response.
+	 */
+	private interface ImageWrite {
+		void write(BufferedImage img) throws IOException;
+	}
+
+	/**
+	 * Renders the image and writes it while holding an image permit, so the
+	 * decoded image counts until it is encoded.
+	 */
+	private void renderAndWrite(Request request, ImageWrite write) throws IOException {
+		images.acquireUninterruptibly();
+		try {
+			write.write(render(request));
+		} finally {
+			images.release();
+		}
+	}
+
+	/**
+	 * Loads and converts the image while holding a decode permit.
+	 */
+	private BufferedImage render(Request request) throws IOException {
+		decodes.acquireUninterruptibly();
+		try {
+			BufferedImage img = ImageLoader.loadImage(BatchRunner.getMimeType(request.file),
+					request.file.toString());
+			if (request.srgb) {
+				img = BatchRunner.toSrgb(img);
+			}
+			if (request.depth == 8) {
+				img = BatchRunner.to8Bit(img);
+			}
+			if (request.scaleX != 1 || request.scaleY != 1) {
+				img = BatchRunner.scale(img, request.scaleX, request.scaleY, request.filter);
+			}
+			return img;
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Can't load " + request.file, e);
+		} finally {
+			decodes.release();
+		}
+	}
+
+	private void handleStats(HttpExchange exchange) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("ImageService[requests=").append(getRequests()).append(" failures=").append(getFailures())
+				.append(" decoding=").append(maxDecodes - decodes.availablePermits()).append("/").append(maxDecodes)
+				.append(" waiting=").append(decodes.getQueueLength()).append(" images=")
+				.append(maxImages - images.availablePermits()).append("/").append(maxImages).append(" waiting=")
+				.append(images.getQueueLength()).append("]\n");
+		sb.append(ImageReaderPool.getShared()).append('\n');
+		sb.append(ColorTransformCache.getShared()).append('\n');
+		if (cache != null) {
+			sb.append(cache).append('\n');
+		}
+		sb.append(ImagingMetrics.getSummary()).append('\n');
+		sendText(exchange, 200, sb.toString());
+		exchange.close();
+	}
+
+	private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+		sendText(exchange, code, message + "\n");
+	}
+
+	private static void sendText(HttpExchange exchange, int code, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String param : query.split("&")) {
+			int eq = param.indexOf('=');
+			String name = (eq < 0) ? param : param.substring(0, eq);
+			String value = (eq < 0) ? "" : param.substring(eq + 1);
+			params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return params;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: ImageService ROOT-DIR [PORT]");
+			System.err.println("  e.g. ImageService data 8080");
+			return;
+		}
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		int processors = Runtime.getRuntime().availableProcessors();
+		int decodes = Integer.getInteger("imaging.service.decodes", processors);
+		ImageService service = new ImageService(new File(args[0]), port,
+				Integer.getInteger("imaging.service.threads", 4 * processors), decodes,
+				Integer.getInteger("imaging.service.images", 2 * decodes),
+				Long.getLong("imaging.service.maxPixels", DEFAULT_MAX_PIXELS),
+				Boolean.getBoolean("imaging.service.cache") ? DerivativeCache.getShared() : null);
+		service.start();
+	}
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test client for the ImageService.
+ *
+ * Usage: ImageServiceLoadTest CLIENTS REQUESTS URL...
+ *
+ * CLIENTS threads send REQUESTS requests in total, cycling through the URLs,
+ * and the latency percentiles and the throughput are printed, e.g.
+ * ImageServiceLoadTest 8 200 "http://localhost:8080/image?file=photorgb-sample-t16.tiff&amp;srgb=true&amp;depth=8&amp;format=jpeg"
+ */
+public class ImageServiceLoadTest {
+
+	/**
+	 * Result of a load test, latencies in nanoseconds.
+	 */
+	public static class Result {
+		final long[] latencies;
+		final long elapsed;
+		final long bytes;
+		final int errors;
+
+		Result(long[] latencies, long elapsed, long bytes, int errors) {
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+			this.elapsed = elapsed;
+			this.bytes = bytes;
+			this.errors = errors;
+		}
+
+		/**
+		 * Returns the latency below which the fraction p of the requests
+		 * completed, in milliseconds.
+		 */
+		public double getPercentile(double p) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int i = (int) Math.ceil(p * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(i, latencies.length - 1))] / 1e6;
+		}
+
+		public double getRequestsPerSecond() {
+			return latencies.length * 1e9 / elapsed;
+		}
+
+		public int getErrors() {
+			return errors;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d requests in %.2f s, %.1f requests/s, %.1f MB/s, p50 %.1f ms, p99 %.1f ms, max %.1f ms, %d errors",
+					latencies.length, elapsed / 1e9, getRequestsPerSecond(), bytes * 1e3 / elapsed,
+					getPercentile(0.5), getPercentile(0.99), getPercentile(1), errors);
+		}
+	}
+
+	/**
+	 * Sends the requests from the clients and waits for all responses.
+	 */
+	public static Result run(int clients, int requests, List<URL> urls) throws Exception {
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicInteger errors = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		try {
+			long start = System.nanoTime();
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int c = 0; c < clients; c++) {
+				futures.add(pool.submit(() -> {
+					byte[] buf = new byte[64 * 1024];
+					for (int i; (i = next.getAndIncrement()) < requests;) {
+						long t = System.nanoTime();
+						try {
+							bytes.addAndGet(fetch(urls.get(i % urls.size()), buf));
+						} catch (IOException e) {
+							errors.incrementAndGet();
+						}
+						latencies[i] = System.nanoTime() - t;
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+			return new Result(latencies, System.nanoTime() - start, bytes.get(), errors.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Reads the whole response, returns its length.
+	 */
+	static long fetch(URL url, byte[] buf) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		try {
+			int code = conn.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("HTTP " + code + " for " + url);
+			}
+			long n = 0;
+			try (InputStream in = conn.getInputStream()) {
+				for (int r; (r = in.read(buf)) >= 0;) {
+					n += r;
+				}
+			}
+			return n;
+		} catch (IOException e) {
+			// release the error body with the connection
+			InputStream err = conn.getErrorStream();
+			if (err != null) {
+				err.close();
+			}
+			throw e;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: ImageServiceLoadTest CLIENTS REQUESTS URL...");
+			return;
+		}
+		int clients = Integer.parseInt(args[0]);
+		int requests = Integer.parseInt(args[1]);
+		List<URL> urls = new ArrayList<URL>();
+		for (int i = 2; i < args.length; i++) {
+			urls.add(new URL(args[i]));
+		}
+		// warm up the server and the JIT
+		run(clients, Math.min(requests, 2 * clients), urls);
+		System.out.println(run(clients, requests, urls));
+	}
+}
@@ -0,0 +1,309 @@
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms for the imaging stages, and JDK Flight
+ * Recorder events for them when the JVM has JFR.
+ *
+ * A stage is timed with
+ *
+ * <pre>
+ * ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.DECODE);
+ * ...
+ * timer.stop(img);
+ * </pre>
+ *
+ * The registry keeps the count, total and maximum time, bytes and a histogram
+ * with power of two microsecond buckets per stage. The JFR event
+ * "imaging.Stage" (disabled by default, enable it in the recording settings)
+ * also has the image size, bit depth and color space. The registry is
+ * disabled with -Dimaging.metrics=false, then start() returns a shared no-op
+ * timer unless a recording has the event enabled.
+ */
+public class ImagingMetrics {
+
+	static Logger logger = Logger.getLogger(ImagingMetrics.class.getName());
+
+	public enum Stage {
+		READER_SELECTION, DECODE, PROFILE, COLOR_CONVERT, DEPTH, SCALE, CONVOLVE, ENCODE
+	}
+
+	/** number of histogram buckets, bucket i counts latencies below 2^i microseconds */
+	public static final int BUCKETS = 32;
+
+	private static final boolean enabled = !"false".equals(System.getProperty("imaging.metrics"));
+
+	private static final boolean jfrAvailable = isJfrAvailable();
+
+	private static final StageStats[] stats = new StageStats[Stage.values().length];
+
+	static {
+		for (Stage stage : Stage.values()) {
+			stats[stage.ordinal()] = new StageStats(stage);
+		}
+	}
+
+	private static final Timer NO_TIMER = new Timer(null, 0, null);
+
+	private ImagingMetrics() {
+	}
+
+	private static boolean isJfrAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			logger.fine("JFR not available, no imaging events");
+			return false;
+		}
+	}
+
+	/**
+	 * Starts timing a stage.
+	 */
+	public static Timer start(Stage stage) {
+		Object event = jfrAvailable ? ImagingStageEvent.begin(stage) : null;
+		if (!enabled && event == null) {
+			return NO_TIMER;
+		}
+		return new Timer(stage, System.nanoTime(), event);
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static StageStats getStats(Stage stage) {
+		return stats[stage.ordinal()];
+	}
+
+	/**
+	 * Resets the statistics of all stages.
+	 */
+	public static void reset() {
+		for (StageStats s : stats) {
+			s.reset();
+		}
+	}
+
+	/**
+	 * Returns one line per stage that has been timed.
+	 */
+	public static String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (StageStats s : stats) {
+			if (s.getCount() > 0) {
+				if (sb.length() > 0) {
+					sb.append('\n');
+				}
+				sb.append(s);
+			}
+		}
+		return "ImagingMetrics[" + (sb.length() > 0 ? "\n" + sb + "\n" : "") + "]";
+	}
+
+	/**
+	 * Returns a short name of the color space for the events: sRGB, the ICC
+	 * profile ID or the color space type.
+	 */
+	static String getColorSpaceName(ColorSpace cs) {
+		if (cs == null) {
+			return null;
+		}
+		if (cs.isCS_sRGB()) {
+			return "sRGB";
+		}
+		if (cs instanceof ICC_ColorSpace) {
+			byte[] id = ProfileRegistry.getShared().getId(((ICC_ColorSpace) cs).getProfile());
+			StringBuilder sb = new StringBuilder("ICC ");
+			for (byte b : id) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		}
+		return "type " + cs.getType();
+	}
+
+	/**
+	 * Returns the size of the samples of the raster in bytes.
+	 */
+	static long getBytes(Raster raster) {
+		return (long) raster.getWidth() * raster.getHeight() * raster.getNumBands()
+				* DataBuffer.getDataTypeSize(raster.getTransferType()) / 8;
+	}
+
+	/**
+	 * Timing of one stage, stop() records it.
+	 */
+	public static final class Timer {
+		final Stage stage;
+		final long start;
+		final Object event;
+
+		Timer(Stage stage, long start, Object event) {
+			this.stage = stage;
+			this.start = start;
+			this.event = event;
+		}
+
+		/**
+		 * Records a stage without an image.
+		 */
+		public void stop() {
+			stop(0, 0, 0, null, 0);
+		}
+
+		/**
+		 * Records a stage that produced or consumed the image.
+		 */
+		public void stop(BufferedImage img) {
+			if (stage == null) {
+				return;
+			}
+			stop(img, getBytes(img.getRaster()));
+		}
+
+		/**
+		 * Records a stage that produced or consumed the image with the given bytes.
+		 */
+		public void stop(RenderedImage img, long bytes) {
+			if (stage == null) {
+				return;
+			}
+			String colorSpace = (event != null) ? getColorSpaceName(img.getColorModel().getColorSpace()) : null;
+			stop(img.getWidth(), img.getHeight(), img.getSampleModel().getSampleSize(0), colorSpace, bytes);
+		}
+
+		/**
+		 * Records a stage that produced or consumed the raster.
+		 */
+		public void stop(Raster raster) {
+			if (stage == null) {
+				return;
+			}
+			stop(raster.getWidth(), raster.getHeight(), raster.getSampleModel().getSampleSize(0), null,
+					getBytes(raster));
+		}
+
+		public void stop(int width, int height, int bits, String colorSpace, long bytes) {
+			if (stage == null) {
+				return;
+			}
+			long nanos = System.nanoTime() - start;
+			if (enabled) {
+				stats[stage.ordinal()].add(nanos, bytes);
+			}
+			if (event != null) {
+				ImagingStageEvent.commit(event, width, height, bits, colorSpace, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Statistics of one stage.
+	 */
+	public static final class StageStats {
+		final Stage stage;
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		StageStats(Stage stage) {
+			this.stage = stage;
+		}
+
+		void add(long nanos, long n) {
+			count.increment();
+			totalNanos.add(nanos);
+			bytes.add(n);
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+				// retry
+			}
+			long micros = nanos / 1000;
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+		}
+
+		void reset() {
+			count.reset();
+			totalNanos.reset();
+			bytes.reset();
+			maxNanos.set(0);
+			for (int i = 0; i < BUCKETS; ++i) {
+				buckets.set(i, 0);
+			}
+		}
+
+		public Stage getStage() {
+			return stage;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.sum();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		/**
+		 * Returns the number of latencies in bucket i, i.e. from 2^(i-1) to
+		 * below 2^i microseconds (below 1 microsecond for bucket 0).
+		 */
+		public long getBucketCount(int i) {
+			return buckets.get(i);
+		}
+
+		/**
+		 * Returns the upper bound of the histogram bucket with the quantile q
+		 * (0..1) of the latencies in nanoseconds, 0 if there are none.
+		 */
+		public long getQuantileNanos(double q) {
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; ++i) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(q * total);
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				sum += counts[i];
+				if (sum >= Math.max(1, rank)) {
+					return Math.min(getMaxNanos(), (1L << i) * 1000);
+				}
+			}
+			return getMaxNanos();
+		}
+
+		@Override
+		public String toString() {
+			long n = getCount();
+			return String.format("%s count=%d total=%dms mean=%.2fms p50<=%.2fms p99<=%.2fms max=%.2fms bytes=%d",
+					stage, n, getTotalNanos() / 1000000, (n > 0) ? getTotalNanos() / 1e6 / n : 0.0,
+					getQuantileNanos(0.5) / 1e6, getQuantileNanos(0.99) / 1e6, getMaxNanos() / 1e6, getBytes());
+		}
+	}
+}
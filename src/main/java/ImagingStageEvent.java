@@ -0,0 +1,66 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one imaging stage. Only loaded by ImagingMetrics if the JVM
+ * has JFR.
+ */
+@Name("imaging.Stage")
+@Label("Imaging Stage")
+@Category("Imaging")
+@Description("Reader selection, decode, profile, color conversion, bit depth, scale, convolve or encode of an image")
+@Enabled(false)
+@StackTrace(false)
+final class ImagingStageEvent extends Event {
+
+	@Label("Stage")
+	String stage;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	@Label("Bits")
+	@Description("Bits of the first sample")
+	int bits;
+
+	@Label("Color Space")
+	@Description("sRGB, the ICC profile ID or the color space type")
+	String colorSpace;
+
+	@Label("Bytes")
+	@Description("Size of the samples, or of the file for encode")
+	@DataAmount
+	long bytes;
+
+	/**
+	 * Returns a started event if the event is enabled in a recording, else null.
+	 */
+	static Object begin(ImagingMetrics.Stage stage) {
+		ImagingStageEvent event = new ImagingStageEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.stage = stage.name();
+		event.begin();
+		return event;
+	}
+
+	static void commit(Object e, int width, int height, int bits, String colorSpace, long bytes) {
+		ImagingStageEvent event = (ImagingStageEvent) e;
+		event.width = width;
+		event.height = height;
+		event.bits = bits;
+		event.colorSpace = colorSpace;
+		event.bytes = bytes;
+		event.commit();
+	}
+}
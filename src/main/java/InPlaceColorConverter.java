@@ -0,0 +1,266 @@
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * In place color conversion of RGB rasters with or without alpha.
+ *
+ * 8 and 16 bit pixel interleaved rasters between matrix-shaper profiles are
+ * converted directly on the byte[] or short[] data: the three color samples
+ * of every pixel are converted and the alpha sample is skipped, so images
+ * with alpha convert as fast as images without. Premultiplied colors are
+ * divided by alpha before and multiplied by alpha after the conversion,
+ * fully transparent pixels are left alone.
+ *
+ * Other profiles go through the CMM. For pixel interleaved rasters the color
+ * samples of chunks of rows are copied into a packed RGB raster for the
+ * ColorConvertOp and back, which also divides and multiplies premultiplied
+ * colors. A createWritableChild view on the color bands isn't safe there:
+ * ColorConvertOp writes into the alpha samples of such 8 bit views. Other
+ * layouts are converted on views.
+ *
+ * Bands of rows are converted in parallel on the shared pool of ParallelRows
+ * or the pool set with pool().
+ */
+public class InPlaceColorConverter {
+
+	/** minimum number of rows per parallel band */
+	public static final int MIN_BAND_ROWS = 16;
+
+	/** number of pixels below which we don't bother with parallel processing */
+	public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	/** rows converted at a time by the CMM */
+	public static final int CHUNK_ROWS = 16;
+
+	private final ICC_Profile srcProfile;
+	private final ICC_Profile destProfile;
+	private ForkJoinPool pool;
+	private boolean matrixShaper = true;
+
+	public InPlaceColorConverter(ICC_Profile srcProfile, ICC_Profile destProfile) {
+		this.srcProfile = srcProfile;
+		this.destProfile = destProfile;
+	}
+
+	/**
+	 * Converts on the given pool instead of the shared pool.
+	 */
+	public InPlaceColorConverter pool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Sets if the pure Java matrix-shaper conversion may be used (default true),
+	 * false always uses the CMM.
+	 */
+	public InPlaceColorConverter matrixShaper(boolean matrixShaper) {
+		this.matrixShaper = matrixShaper;
+		return this;
+	}
+
+	/**
+	 * Converts the colors of an image with a ComponentColorModel with three
+	 * color components in place. The image keeps its ColorModel, the caller has
+	 * to replace it if the profile matters.
+	 */
+	public void convert(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		if (!(cm instanceof ComponentColorModel) || cm.getNumColorComponents() != 3) {
+			throw new IllegalArgumentException("Unsupported ColorModel: " + cm);
+		}
+		convert(img.getRaster(), cm.isAlphaPremultiplied());
+	}
+
+	/**
+	 * Converts the colors of a raster with three color bands and an optional
+	 * fourth alpha band in place. premultiplied is ignored without alpha.
+	 */
+	public void convert(WritableRaster raster, boolean premultiplied) {
+		int numBands = raster.getNumBands();
+		if (numBands != 3 && numBands != 4) {
+			throw new IllegalArgumentException("Need 3 color and an optional alpha band: " + raster);
+		}
+		boolean premultipliedColors = premultiplied && numBands == 4;
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.COLOR_CONVERT);
+		MatrixShaperConverter converter = matrixShaper ? MatrixShaperConverter.get(srcProfile, destProfile) : null;
+		ParallelRows.RowTask task;
+		if (converter != null && MatrixShaperConverter.isSupportedInPlace(raster)) {
+			task = converter.createInPlaceTask(raster, premultipliedColors);
+		} else {
+			task = OffHeapRasters.stagedTask(raster, raster, (s, d) -> new CmmRows(d, premultipliedColors));
+		}
+		if ((long) raster.getWidth() * raster.getHeight() >= PARALLEL_THRESHOLD) {
+			ParallelRows.forEachBand(pool != null ? pool : ParallelRows.getSharedPool(), raster.getHeight(),
+					MIN_BAND_ROWS, task);
+		} else {
+			task.run(0, raster.getHeight());
+		}
+		timer.stop(raster);
+	}
+
+	/**
+	 * Converts bands of rows with the CMM.
+	 */
+	private final class CmmRows implements ParallelRows.RowTask {
+		final WritableRaster raster;
+		final boolean premultiplied;
+		/** the layout of the color bands for the ColorTransformCache */
+		final Raster colors;
+		final int maxSample;
+
+		CmmRows(WritableRaster raster, boolean premultiplied) {
+			this.raster = raster;
+			this.premultiplied = premultiplied;
+			this.colors = colorBands(raster);
+			this.maxSample = (1 << raster.getSampleModel().getSampleSize(0)) - 1;
+		}
+
+		@Override
+		public void run(int startRow, int endRow) {
+			int x = raster.getMinX();
+			int width = raster.getWidth();
+			if (raster.getNumBands() == 3) {
+				int y = raster.getMinY() + startRow;
+				WritableRaster band = raster.createWritableChild(x, y, width, endRow - startRow, x, y, null);
+				filter(band);
+			} else if (RowAccess.isInterleaved(raster)) {
+				runPacked(startRow, endRow);
+			} else {
+				// the CMM takes the slow path for these layouts anyway
+				int[] pixels = null;
+				for (int row = startRow; row < endRow; row += CHUNK_ROWS) {
+					int y = raster.getMinY() + row;
+					int height = Math.min(CHUNK_ROWS, endRow - row);
+					if (premultiplied) {
+						pixels = raster.getPixels(x, y, width, height, pixels);
+						scaleColors(pixels, width * height * 4, true);
+						raster.setPixels(x, y, width, height, pixels);
+					}
+					WritableRaster colors = colorBands(raster.createWritableChild(x, y, width, height, x, y, null));
+					filter(colors);
+					if (premultiplied) {
+						raster.getPixels(x, y, width, height, pixels);
+						scaleColors(pixels, width * height * 4, false);
+						raster.setPixels(x, y, width, height, pixels);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Converts the raster in place with an op of this thread.
+		 */
+		private void filter(WritableRaster colorRaster) {
+			ColorTransformCache cache = ColorTransformCache.getShared();
+			ColorConvertOp cco = cache.acquireRasterOp(srcProfile, destProfile, colors);
+			try {
+				cco.filter(colorRaster, colorRaster);
+			} finally {
+				cache.releaseRasterOp(srcProfile, destProfile, colors, cco);
+			}
+		}
+
+		/**
+		 * Copies the colors of chunks of rows into a packed RGB raster, converts
+		 * that and copies them back. ColorConvertOp writes into the alpha samples
+		 * of 8 bit views with only the color bands.
+		 */
+		private void runPacked(int startRow, int endRow) {
+			int width = raster.getWidth();
+			int rows = Math.min(CHUNK_ROWS, endRow - startRow);
+			RowAccess access = new RowAccess(raster);
+			WritableRaster packed = Raster.createInterleavedRaster(raster.getTransferType(), width, rows, 3, null);
+			RowAccess buffer = new RowAccess(packed);
+			for (int row = startRow; row < endRow; row += rows) {
+				int n = Math.min(rows, endRow - row);
+				copyColors(access, buffer, row, n, true);
+				WritableRaster colors = (n == rows) ? packed : packed.createWritableChild(0, 0, width, n, 0, 0, null);
+				filter(colors);
+				copyColors(access, buffer, row, n, false);
+			}
+		}
+
+		/**
+		 * Copies the colors of n rows from row on into the packed buffer or back,
+		 * unpremultiplied in the buffer.
+		 */
+		private void copyColors(RowAccess access, RowAccess buffer, int row, int n, boolean toBuffer) {
+			int width = raster.getWidth();
+			int[] offsets = access.bandOffsets;
+			int alphaOffset = offsets[3];
+			float max = maxSample;
+			for (int r = 0; r < n; ++r) {
+				int p = access.base + (row + r) * access.scanlineStride;
+				int q = r * width * 3;
+				for (int x = 0; x < width; ++x, p += access.pixelStride, q += 3) {
+					float f = 1;
+					if (premultiplied) {
+						int a = get(access, p + alphaOffset);
+						if (a == 0) {
+							continue;
+						}
+						f = toBuffer ? max / a : a / max;
+					}
+					for (int c = 0; c < 3; ++c) {
+						if (toBuffer) {
+							set(buffer, q + c, scale(get(access, p + offsets[c]), f));
+						} else {
+							set(access, p + offsets[c], scale(get(buffer, q + c), f));
+						}
+					}
+				}
+			}
+		}
+
+		private int scale(int v, float f) {
+			return premultiplied ? Math.min(maxSample, (int) (v * f + 0.5f)) : v;
+		}
+
+		/**
+		 * Divides (unpremultiply) or multiplies the colors of RGBA pixels by alpha.
+		 */
+		private void scaleColors(int[] pixels, int length, boolean unpremultiply) {
+			float max = maxSample;
+			for (int i = 0; i < length; i += 4) {
+				int a = pixels[i + 3];
+				if (a == 0) {
+					continue;
+				}
+				float f = unpremultiply ? max / a : a / max;
+				for (int c = i; c < i + 3; ++c) {
+					pixels[c] = scale(pixels[c], f);
+				}
+			}
+		}
+	}
+
+	private static int get(RowAccess access, int i) {
+		return (access.shortData != null) ? access.shortData[i] & 0xffff : access.byteData[i] & 0xff;
+	}
+
+	private static void set(RowAccess access, int i, int v) {
+		if (access.shortData != null) {
+			access.shortData[i] = (short) v;
+		} else {
+			access.byteData[i] = (byte) v;
+		}
+	}
+
+	/**
+	 * Returns a view on the color bands of a raster with alpha, or the raster.
+	 */
+	private static WritableRaster colorBands(WritableRaster raster) {
+		if (raster.getNumBands() == 3) {
+			return raster;
+		}
+		return raster.createWritableChild(raster.getMinX(), raster.getMinY(), raster.getWidth(),
+				raster.getHeight(), raster.getMinX(), raster.getMinY(), new int[] { 0, 1, 2 });
+	}
+}
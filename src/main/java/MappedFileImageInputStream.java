@@ -0,0 +1,183 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream reading a local file through memory mappings.
+ *
+ * Reads are copied directly from the mapped pages without read syscalls.
+ * Files larger than the chunk size (1 GB by default) are mapped in several
+ * chunks, which are mapped when they are first read. The mappings are
+ * released when the stream is closed.
+ */
+public class MappedFileImageInputStream extends ImageInputStreamImpl {
+
+	static Logger logger = Logger.getLogger(MappedFileImageInputStream.class.getName());
+
+	public static final long DEFAULT_CHUNK_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	private final long length;
+	private final long chunkSize;
+	private MappedByteBuffer[] chunks;
+
+	public MappedFileImageInputStream(File file) throws IOException {
+		this(file, DEFAULT_CHUNK_SIZE);
+	}
+
+	public MappedFileImageInputStream(File file, long chunkSize) throws IOException {
+		if (chunkSize < 1 || chunkSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			this.channel = raf.getChannel();
+			this.length = channel.size();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		this.chunkSize = chunkSize;
+		this.chunks = new MappedByteBuffer[(int) ((length + chunkSize - 1) / chunkSize)];
+	}
+
+	private MappedByteBuffer getChunk(int idx) throws IOException {
+		if (chunks == null) {
+			throw new IOException("Stream closed");
+		}
+		MappedByteBuffer chunk = chunks[idx];
+		if (chunk == null) {
+			long start = idx * chunkSize;
+			chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, length - start));
+			chunks[idx] = chunk;
+		}
+		return chunk;
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= length) {
+			return -1;
+		}
+		MappedByteBuffer chunk = getChunk((int) (streamPos / chunkSize));
+		int b = chunk.get((int) (streamPos % chunkSize)) & 0xff;
+		++streamPos;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " b.length=" + b.length);
+		}
+		bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+		if (streamPos >= length) {
+			return -1;
+		}
+		int total = (int) Math.min(len, length - streamPos);
+		int remaining = total;
+		while (remaining > 0) {
+			MappedByteBuffer chunk = getChunk((int) (streamPos / chunkSize));
+			int pos = (int) (streamPos % chunkSize);
+			int n = Math.min(remaining, chunk.capacity() - pos);
+			// cast to Buffer for Java 8 compatibility of the compiled code
+			((Buffer) chunk).position(pos);
+			chunk.get(b, off, n);
+			off += n;
+			remaining -= n;
+			streamPos += n;
+		}
+		return total;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public boolean isCached() {
+		return true;
+	}
+
+	@Override
+	public boolean isCachedMemory() {
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		MappedByteBuffer[] mapped = chunks;
+		chunks = null;
+		try {
+			if (mapped != null) {
+				for (MappedByteBuffer chunk : mapped) {
+					if (chunk != null) {
+						unmap(chunk);
+					}
+				}
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static Object unsafe;
+	private static Method invokeCleaner;
+	private static boolean unmapSupported = true;
+
+	/**
+	 * Releases the mapping (or direct buffer) now instead of waiting for the GC.
+	 * Only safe if the buffer is never accessed again.
+	 */
+	static synchronized void unmap(ByteBuffer buffer) {
+		if (!unmapSupported) {
+			return;
+		}
+		try {
+			if (invokeCleaner == null) {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+				try {
+					// Java 9+
+					invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				} catch (NoSuchMethodException e) {
+					invokeCleaner = null;
+				}
+			}
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+			} else {
+				// Java 8
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// restricted: the GC will unmap the buffer
+			logger.fine("can not unmap buffers explicitly: " + e);
+			unmapSupported = false;
+		}
+	}
+}
@@ -0,0 +1,637 @@
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.color.ICC_ProfileRGB;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pure Java color conversion between RGB matrix/TRC ("matrix-shaper") ICC
+ * profiles.
+ *
+ * The source TRCs are precomputed as lookup tables for 8 and 16 bit input, the
+ * two colorant matrices are combined into one 3x3 matrix and the inverse
+ * destination TRCs are precomputed as interpolated encoding tables. Profiles
+ * with AToB/BToA LUTs are not handled and need the CMM.
+ *
+ * Compared to ColorConvertOp (LCMS) the 16 bit output differs by at most 12
+ * (of 65535) and 8 bit output of 16 bit input by at most 1, checked with the
+ * images in data/ and random 16 bit input. For 8 bit to 8 bit LCMS uses an
+ * interpolated device link that is off by up to 15 for out of gamut colors,
+ * here the result is the same as the 16 bit CMM result rounded to 8 bit.
+ *
+ * The fast path can be disabled with -Dimaging.matrixShaper=false.
+ */
+public class MatrixShaperConverter {
+
+	static Logger logger = Logger.getLogger(MatrixShaperConverter.class.getName());
+
+	/** number of intervals of the encoding tables on the linear scale */
+	public static final int ENCODE_LUT_SIZE = 1 << 14;
+
+	/** minimum number of rows per parallel band */
+	public static final int MIN_BAND_ROWS = 16;
+
+	/** number of pixels below which we don't bother with parallel processing */
+	public static final int PARALLEL_THRESHOLD = 1 << 18;
+
+	private static final boolean enabled = !"false".equals(System.getProperty("imaging.matrixShaper"));
+
+	private static final Object NOT_MATRIX_SHAPER = new Object();
+
+	/** converters by source and destination profile ID */
+	private static final Map<String, Object> converters = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+			return size() > ColorTransformCache.DEFAULT_MAX_SIZE;
+		}
+	};
+
+	private final Curve[] srcCurves;
+	private final Curve[] destCurves;
+	/** combined matrix from linear source RGB to linear destination RGB, row-major */
+	private final float[] matrix;
+	/** linearization tables per channel for 8 and 16 bit input */
+	private float[][] linLut8;
+	private float[][] linLut16;
+	/** encoding tables per channel for 8 and 16 bit output */
+	private float[][] encodeLut8;
+	private float[][] encodeLut16;
+
+	MatrixShaperConverter(ICC_ProfileRGB srcProfile, ICC_ProfileRGB destProfile) {
+		this.srcCurves = getCurves(srcProfile);
+		this.destCurves = getCurves(destProfile);
+		double[][] src = toDouble(srcProfile.getMatrix());
+		double[][] destInv = invert(toDouble(destProfile.getMatrix()));
+		this.matrix = new float[9];
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				double v = 0;
+				for (int k = 0; k < 3; ++k) {
+					v += destInv[i][k] * src[k][j];
+				}
+				matrix[i * 3 + j] = (float) v;
+			}
+		}
+	}
+
+	/**
+	 * Returns a (cached) converter from srcProfile to destProfile, or null if one
+	 * of them is not a matrix-shaper profile or the fast path is disabled with
+	 * -Dimaging.matrixShaper=false.
+	 */
+	public static MatrixShaperConverter get(ICC_Profile srcProfile, ICC_Profile destProfile) {
+		if (!enabled) {
+			return null;
+		}
+		ProfileRegistry registry = ProfileRegistry.getShared();
+		String key = Arrays.toString(registry.getId(srcProfile)) + Arrays.toString(registry.getId(destProfile));
+		synchronized (converters) {
+			Object converter = converters.get(key);
+			if (converter != null) {
+				return converter == NOT_MATRIX_SHAPER ? null : (MatrixShaperConverter) converter;
+			}
+		}
+		Object converter = NOT_MATRIX_SHAPER;
+		if (isMatrixShaper(srcProfile) && isMatrixShaper(destProfile)) {
+			try {
+				converter = new MatrixShaperConverter((ICC_ProfileRGB) srcProfile, (ICC_ProfileRGB) destProfile);
+			} catch (IllegalArgumentException e) {
+				logger.fine("can't use matrix-shaper conversion: " + e);
+			}
+		}
+		synchronized (converters) {
+			converters.put(key, converter);
+		}
+		return converter == NOT_MATRIX_SHAPER ? null : (MatrixShaperConverter) converter;
+	}
+
+	/**
+	 * Returns if the profile is an RGB matrix/TRC profile without LUT-based transforms.
+	 */
+	public static boolean isMatrixShaper(ICC_Profile profile) {
+		return profile instanceof ICC_ProfileRGB && profile.getData(ICC_Profile.icSigAToB0Tag) == null
+				&& profile.getData(ICC_Profile.icSigBToA0Tag) == null;
+	}
+
+	/**
+	 * Converts the color bands of src from srcProfile to destProfile into dest
+	 * with the fast path if possible, returns false if the caller has to use
+	 * the CMM.
+	 */
+	public static boolean tryConvert(Raster src, WritableRaster dest, ICC_Profile srcProfile,
+			ICC_Profile destProfile) {
+		MatrixShaperConverter converter = get(srcProfile, destProfile);
+		if (converter == null || !converter.canConvert(src, dest)) {
+			return false;
+		}
+		converter.convert(src, dest);
+		return true;
+	}
+
+	/**
+	 * Converts the image to destCS with 8 bit depth like ColorConvertOp.filter(img, null)
+	 * if possible, returns null if the caller has to use the CMM.
+	 */
+	public static BufferedImage tryConvert(BufferedImage img, ColorSpace destCS) {
+		ColorModel cm = img.getColorModel();
+		ColorSpace srcCS = cm.getColorSpace();
+		if (!(srcCS instanceof ICC_ColorSpace) || !(destCS instanceof ICC_ColorSpace)
+				|| !(cm instanceof ComponentColorModel) || cm.isAlphaPremultiplied()) {
+			return null;
+		}
+		MatrixShaperConverter converter = get(((ICC_ColorSpace) srcCS).getProfile(),
+				((ICC_ColorSpace) destCS).getProfile());
+		if (converter == null) {
+			return null;
+		}
+		// same destination as ColorConvertOp.createCompatibleDestImage, e.g. isCS_sRGB() for the sRGB instance
+		boolean hasAlpha = cm.hasAlpha();
+		int[] bits = new int[hasAlpha ? 4 : 3];
+		Arrays.fill(bits, 8);
+		ColorModel destCM = new ComponentColorModel(destCS, bits, hasAlpha, false,
+				cm.getTransparency(), DataBuffer.TYPE_BYTE);
+		WritableRaster destRaster = OffHeapRasters.createCompatibleWritableRaster(destCM, img.getWidth(), img.getHeight());
+		WritableRaster srcRaster = img.getRaster();
+		Raster srcColor = srcRaster;
+		WritableRaster destColor = destRaster;
+		if (hasAlpha) {
+			int[] colorBands = { 0, 1, 2 };
+			srcColor = srcRaster.createChild(srcRaster.getMinX(), srcRaster.getMinY(), srcRaster.getWidth(),
+					srcRaster.getHeight(), 0, 0, colorBands);
+			destColor = destRaster.createWritableChild(0, 0, destRaster.getWidth(), destRaster.getHeight(), 0, 0,
+					colorBands);
+		}
+		if (!converter.canConvert(srcColor, destColor)) {
+			return null;
+		}
+		converter.convert(srcColor, destColor);
+		if (hasAlpha) {
+			copyAlpha(srcRaster, destRaster, cm.getComponentSize(3));
+		}
+		return new BufferedImage(destCM, destRaster, false, null);
+	}
+
+	private static void copyAlpha(Raster src, WritableRaster dest, int srcBits) {
+		int width = src.getWidth();
+		int alphaBand = src.getNumBands() - 1;
+		int[] row = null;
+		for (int y = 0; y < src.getHeight(); ++y) {
+			row = src.getSamples(src.getMinX(), src.getMinY() + y, width, 1, alphaBand, row);
+			if (srcBits == 16) {
+				for (int i = 0; i < width; ++i) {
+					row[i] = ((row[i] & 0xffff) * 255 + 32895) >>> 16;
+				}
+			}
+			dest.setSamples(0, y, width, 1, dest.getNumBands() - 1, row);
+		}
+	}
+
+	/**
+	 * Returns if the rasters are three band pixel interleaved 8 or 16 bit rasters
+	 * of the same size.
+	 */
+	public boolean canConvert(Raster src, Raster dest) {
+		return isSupported(src) && isSupported(dest) && src.getNumBands() == 3 && dest.getNumBands() == 3
+				&& src.getWidth() == dest.getWidth() && src.getHeight() == dest.getHeight();
+	}
+
+	private static boolean isSupported(Raster raster) {
+		DataBuffer db = raster.getDataBuffer();
+		return raster.getSampleModel() instanceof PixelInterleavedSampleModel
+				&& (db instanceof DataBufferByte || db instanceof DataBufferUShort || db instanceof OffHeapDataBuffer);
+	}
+
+	/**
+	 * Converts src into dest, which may be the same raster.
+	 */
+	public void convert(Raster src, WritableRaster dest) {
+		if (!canConvert(src, dest)) {
+			throw new IllegalArgumentException("Unsupported rasters: " + src + " " + dest);
+		}
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.COLOR_CONVERT);
+		ParallelRows.RowTask task = OffHeapRasters.stagedTask(src, dest, (s, d) -> new RowConverter(s, d, false));
+		if ((long) src.getWidth() * src.getHeight() >= PARALLEL_THRESHOLD) {
+			ParallelRows.forEachBand(src.getHeight(), MIN_BAND_ROWS, task);
+		} else {
+			task.run(0, src.getHeight());
+		}
+		timer.stop(dest);
+	}
+
+	/**
+	 * Returns a task converting the color samples of an 8 or 16 bit pixel
+	 * interleaved raster with 3 bands, or 4 with alpha last, in place. The
+	 * alpha samples are skipped, if premultiplied is true the colors are
+	 * divided by alpha before and multiplied by alpha after the conversion.
+	 */
+	ParallelRows.RowTask createInPlaceTask(WritableRaster raster, boolean premultiplied) {
+		int numBands = raster.getNumBands();
+		if (!isSupported(raster) || numBands < 3 || numBands > 4 || (premultiplied && numBands != 4)) {
+			throw new IllegalArgumentException("Unsupported raster: " + raster);
+		}
+		return OffHeapRasters.stagedTask(raster, raster, (s, d) -> new RowConverter(d, d, premultiplied));
+	}
+
+	/**
+	 * Returns if the raster can be converted with createInPlaceTask.
+	 */
+	static boolean isSupportedInPlace(Raster raster) {
+		return isSupported(raster) && (raster.getNumBands() == 3 || raster.getNumBands() == 4);
+	}
+
+	/**
+	 * Returns the matrix from linear source RGB to linear destination RGB,
+	 * row-major.
+	 */
+	float[] getMatrix() {
+		return matrix;
+	}
+
+	/**
+	 * Returns the linearization tables per channel for 8 or 16 bit samples.
+	 */
+	synchronized float[][] getLinLut(int bits) {
+		if (bits == 8) {
+			if (linLut8 == null) {
+				linLut8 = createLinLut(srcCurves, 255);
+			}
+			return linLut8;
+		}
+		if (linLut16 == null) {
+			linLut16 = createLinLut(srcCurves, 65535);
+		}
+		return linLut16;
+	}
+
+	private synchronized float[][] getEncodeLut(int bits) {
+		if (bits == 8) {
+			if (encodeLut8 == null) {
+				encodeLut8 = createEncodeLut(destCurves, 255);
+			}
+			return encodeLut8;
+		}
+		if (encodeLut16 == null) {
+			encodeLut16 = createEncodeLut(destCurves, 65535);
+		}
+		return encodeLut16;
+	}
+
+	private static float[][] createLinLut(Curve[] curves, int max) {
+		float[][] luts = new float[3][max + 1];
+		for (int c = 0; c < 3; ++c) {
+			for (int i = 0; i <= max; ++i) {
+				luts[c][i] = (float) curves[c].eval(i / (double) max);
+			}
+		}
+		return luts;
+	}
+
+	/**
+	 * Tables of the output code (not rounded) for ENCODE_LUT_SIZE + 1 linear values.
+	 */
+	private static float[][] createEncodeLut(Curve[] curves, int max) {
+		float[][] luts = new float[3][ENCODE_LUT_SIZE + 2];
+		for (int c = 0; c < 3; ++c) {
+			for (int i = 0; i <= ENCODE_LUT_SIZE; ++i) {
+				luts[c][i] = (float) (curves[c].invert(i / (double) ENCODE_LUT_SIZE) * max);
+			}
+			// guard entry for interpolation at 1.0
+			luts[c][ENCODE_LUT_SIZE + 1] = luts[c][ENCODE_LUT_SIZE];
+		}
+		return luts;
+	}
+
+	private final class RowConverter implements ParallelRows.RowTask {
+		final short[] srcShort, destShort;
+		final byte[] srcByte, destByte;
+		final int srcBase, srcScanlineStride, srcPixelStride;
+		final int destBase, destScanlineStride, destPixelStride;
+		final int[] srcBandOffsets, destBandOffsets;
+		final int width;
+		final float[][] linLut;
+		final float[][] encodeLut;
+		final int maxOut;
+		/** colors are premultiplied with the fourth band, only in place (src == dest) */
+		final boolean premultiplied;
+		/** max / alpha and alpha / max for every alpha value */
+		final float[] unpremultiplyFactors, premultiplyFactors;
+
+		RowConverter(Raster src, WritableRaster dest, boolean premultiplied) {
+			PixelInterleavedSampleModel srcSm = (PixelInterleavedSampleModel) src.getSampleModel();
+			PixelInterleavedSampleModel destSm = (PixelInterleavedSampleModel) dest.getSampleModel();
+			int srcBank = srcSm.getBankIndices()[0];
+			int destBank = destSm.getBankIndices()[0];
+			DataBuffer srcDb = src.getDataBuffer();
+			DataBuffer destDb = dest.getDataBuffer();
+			srcShort = (srcDb instanceof DataBufferUShort) ? ((DataBufferUShort) srcDb).getData(srcBank) : null;
+			srcByte = (srcDb instanceof DataBufferByte) ? ((DataBufferByte) srcDb).getData(srcBank) : null;
+			destShort = (destDb instanceof DataBufferUShort) ? ((DataBufferUShort) destDb).getData(destBank) : null;
+			destByte = (destDb instanceof DataBufferByte) ? ((DataBufferByte) destDb).getData(destBank) : null;
+			srcBase = BitDepthReducer.getBaseOffset(src);
+			srcScanlineStride = srcSm.getScanlineStride();
+			srcPixelStride = srcSm.getPixelStride();
+			srcBandOffsets = srcSm.getBandOffsets();
+			destBase = BitDepthReducer.getBaseOffset(dest);
+			destScanlineStride = destSm.getScanlineStride();
+			destPixelStride = destSm.getPixelStride();
+			destBandOffsets = destSm.getBandOffsets();
+			width = src.getWidth();
+			linLut = getLinLut(srcShort != null ? 16 : 8);
+			maxOut = destShort != null ? 65535 : 255;
+			encodeLut = getEncodeLut(destShort != null ? 16 : 8);
+			this.premultiplied = premultiplied;
+			if (premultiplied) {
+				unpremultiplyFactors = new float[maxOut + 1];
+				premultiplyFactors = new float[maxOut + 1];
+				for (int a = 1; a <= maxOut; ++a) {
+					unpremultiplyFactors[a] = (float) maxOut / a;
+					premultiplyFactors[a] = a / (float) maxOut;
+				}
+			} else {
+				unpremultiplyFactors = null;
+				premultiplyFactors = null;
+			}
+		}
+
+		@Override
+		public void run(int startRow, int endRow) {
+			if (premultiplied) {
+				runPremultiplied(startRow, endRow);
+				return;
+			}
+			final float[] linR = linLut[0], linG = linLut[1], linB = linLut[2];
+			final float[] encR = encodeLut[0], encG = encodeLut[1], encB = encodeLut[2];
+			final int sr = srcBandOffsets[0], sg = srcBandOffsets[1], sb = srcBandOffsets[2];
+			final int dr = destBandOffsets[0], dg = destBandOffsets[1], db = destBandOffsets[2];
+			final SampleKernels kernels = SampleKernels.get();
+			// linear planes of a row for the matrix kernel
+			final float[] r = new float[width], g = new float[width], b = new float[width];
+			for (int y = startRow; y < endRow; ++y) {
+				int sp = srcBase + y * srcScanlineStride;
+				for (int x = 0; x < width; ++x, sp += srcPixelStride) {
+					if (srcShort != null) {
+						r[x] = linR[srcShort[sp + sr] & 0xffff];
+						g[x] = linG[srcShort[sp + sg] & 0xffff];
+						b[x] = linB[srcShort[sp + sb] & 0xffff];
+					} else {
+						r[x] = linR[srcByte[sp + sr] & 0xff];
+						g[x] = linG[srcByte[sp + sg] & 0xff];
+						b[x] = linB[srcByte[sp + sb] & 0xff];
+					}
+				}
+				kernels.applyMatrix(matrix, r, g, b, width);
+				int dp = destBase + y * destScanlineStride;
+				for (int x = 0; x < width; ++x, dp += destPixelStride) {
+					int or = encode(encR, r[x]);
+					int og = encode(encG, g[x]);
+					int ob = encode(encB, b[x]);
+					if (destShort != null) {
+						destShort[dp + dr] = (short) or;
+						destShort[dp + dg] = (short) og;
+						destShort[dp + db] = (short) ob;
+					} else {
+						destByte[dp + dr] = (byte) or;
+						destByte[dp + dg] = (byte) og;
+						destByte[dp + db] = (byte) ob;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Converts rows in place like run, with the colors divided by alpha for
+		 * the lookup and multiplied by alpha again after encoding.
+		 */
+		private void runPremultiplied(int startRow, int endRow) {
+			final float[] linR = linLut[0], linG = linLut[1], linB = linLut[2];
+			final float[] encR = encodeLut[0], encG = encodeLut[1], encB = encodeLut[2];
+			final float m00 = matrix[0], m01 = matrix[1], m02 = matrix[2];
+			final float m10 = matrix[3], m11 = matrix[4], m12 = matrix[5];
+			final float m20 = matrix[6], m21 = matrix[7], m22 = matrix[8];
+			final int or = srcBandOffsets[0], og = srcBandOffsets[1], ob = srcBandOffsets[2];
+			final int oa = srcBandOffsets[3];
+			final int max = maxOut;
+			for (int y = startRow; y < endRow; ++y) {
+				int p = srcBase + y * srcScanlineStride;
+				for (int x = 0; x < width; ++x, p += srcPixelStride) {
+					int a = (srcShort != null) ? srcShort[p + oa] & 0xffff : srcByte[p + oa] & 0xff;
+					if (a == 0) {
+						// nothing to convert
+						continue;
+					}
+					float unpre = unpremultiplyFactors[a];
+					float pre = premultiplyFactors[a];
+					float r, g, b;
+					if (srcShort != null) {
+						r = linR[Math.min(max, (int) ((srcShort[p + or] & 0xffff) * unpre + 0.5f))];
+						g = linG[Math.min(max, (int) ((srcShort[p + og] & 0xffff) * unpre + 0.5f))];
+						b = linB[Math.min(max, (int) ((srcShort[p + ob] & 0xffff) * unpre + 0.5f))];
+					} else {
+						r = linR[Math.min(max, (int) ((srcByte[p + or] & 0xff) * unpre + 0.5f))];
+						g = linG[Math.min(max, (int) ((srcByte[p + og] & 0xff) * unpre + 0.5f))];
+						b = linB[Math.min(max, (int) ((srcByte[p + ob] & 0xff) * unpre + 0.5f))];
+					}
+					int cr = (int) (encode(encR, m00 * r + m01 * g + m02 * b) * pre + 0.5f);
+					int cg = (int) (encode(encG, m10 * r + m11 * g + m12 * b) * pre + 0.5f);
+					int cb = (int) (encode(encB, m20 * r + m21 * g + m22 * b) * pre + 0.5f);
+					if (srcShort != null) {
+						srcShort[p + or] = (short) cr;
+						srcShort[p + og] = (short) cg;
+						srcShort[p + ob] = (short) cb;
+					} else {
+						srcByte[p + or] = (byte) cr;
+						srcByte[p + og] = (byte) cg;
+						srcByte[p + ob] = (byte) cb;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the rounded output code for the linear value v (clipped to 0..1).
+	 */
+	private static int encode(float[] lut, float v) {
+		if (!(v > 0f)) {
+			// also NaN
+			return (int) (lut[0] + 0.5f);
+		}
+		if (v >= 1f) {
+			return (int) (lut[ENCODE_LUT_SIZE] + 0.5f);
+		}
+		float idx = v * ENCODE_LUT_SIZE;
+		int i = (int) idx;
+		float f = idx - i;
+		return (int) (lut[i] + f * (lut[i + 1] - lut[i]) + 0.5f);
+	}
+
+	/*
+	 * Tone reproduction curves
+	 */
+
+	private static Curve[] getCurves(ICC_ProfileRGB profile) {
+		return new Curve[] { Curve.fromTag(profile.getData(ICC_Profile.icSigRedTRCTag)),
+				Curve.fromTag(profile.getData(ICC_Profile.icSigGreenTRCTag)),
+				Curve.fromTag(profile.getData(ICC_Profile.icSigBlueTRCTag)) };
+	}
+
+	/**
+	 * TRC from a 'curv' or 'para' tag.
+	 */
+	static class Curve {
+		static final int CURV = 0x63757276;
+		static final int PARA = 0x70617261;
+
+		/** table of a sampled 'curv', null for parametric curves */
+		final float[] table;
+		/** parametric function type and parameters g, a, b, c, d, e, f */
+		final int function;
+		final double[] p = new double[7];
+
+		private Curve(float[] table, int function, double[] params) {
+			this.table = table;
+			this.function = function;
+			System.arraycopy(params, 0, p, 0, params.length);
+		}
+
+		static Curve fromTag(byte[] tag) {
+			if (tag == null || tag.length < 12) {
+				throw new IllegalArgumentException("Missing TRC tag");
+			}
+			ByteBuffer buf = ByteBuffer.wrap(tag);
+			int type = buf.getInt(0);
+			if (type == CURV) {
+				int count = buf.getInt(8);
+				if (count == 0) {
+					// identity
+					return new Curve(null, 0, new double[] { 1.0 });
+				} else if (count == 1) {
+					// u8Fixed8Number gamma
+					return new Curve(null, 0, new double[] { (buf.getShort(12) & 0xffff) / 256.0 });
+				}
+				float[] table = new float[count];
+				for (int i = 0; i < count; ++i) {
+					table[i] = (buf.getShort(12 + 2 * i) & 0xffff) / 65535f;
+				}
+				return new Curve(table, -1, new double[0]);
+			} else if (type == PARA) {
+				int function = buf.getShort(8);
+				int[] numParams = { 1, 3, 4, 5, 7 };
+				if (function < 0 || function >= numParams.length) {
+					throw new IllegalArgumentException("Unknown parametric curve type " + function);
+				}
+				double[] params = new double[numParams[function]];
+				for (int i = 0; i < params.length; ++i) {
+					// s15Fixed16Number
+					params[i] = buf.getInt(12 + 4 * i) / 65536.0;
+				}
+				return new Curve(null, function, params);
+			}
+			throw new IllegalArgumentException("Unsupported TRC type " + Integer.toHexString(type));
+		}
+
+		/**
+		 * Returns the linear value for the encoded value x in 0..1.
+		 */
+		double eval(double x) {
+			if (table != null) {
+				double idx = x * (table.length - 1);
+				int i = (int) idx;
+				if (i >= table.length - 1) {
+					return table[table.length - 1];
+				}
+				return table[i] + (idx - i) * (table[i + 1] - table[i]);
+			}
+			double g = p[0], a = p[1], b = p[2], c = p[3], d = p[4], e = p[5], f = p[6];
+			switch (function) {
+			case 0:
+				return Math.pow(x, g);
+			case 1:
+				return (x >= -b / a) ? Math.pow(a * x + b, g) : 0;
+			case 2:
+				return (x >= -b / a) ? Math.pow(a * x + b, g) + c : c;
+			case 3:
+				return (x >= d) ? Math.pow(a * x + b, g) : c * x;
+			default:
+				return (x >= d) ? Math.pow(a * x + b, g) + e : c * x + f;
+			}
+		}
+
+		/**
+		 * Returns the encoded value in 0..1 for the linear value y by bisection
+		 * (the curves are monotonic).
+		 */
+		double invert(double y) {
+			if (table == null && function == 0) {
+				return Math.pow(y, 1.0 / p[0]);
+			}
+			double lo = 0, hi = 1;
+			boolean increasing = eval(1) >= eval(0);
+			for (int i = 0; i < 40; ++i) {
+				double mid = (lo + hi) / 2;
+				if ((eval(mid) < y) == increasing) {
+					lo = mid;
+				} else {
+					hi = mid;
+				}
+			}
+			return Math.max(0, Math.min(1, (lo + hi) / 2));
+		}
+	}
+
+	/*
+	 * 3x3 matrix helpers
+	 */
+
+	static double[][] toDouble(float[][] m) {
+		double[][] d = new double[3][3];
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				d[i][j] = m[i][j];
+			}
+		}
+		return d;
+	}
+
+	static double[][] invert(double[][] m) {
+		double det = m[0][0] * (m[1][1] * m[2][2] - m[1][2] * m[2][1])
+				- m[0][1] * (m[1][0] * m[2][2] - m[1][2] * m[2][0])
+				+ m[0][2] * (m[1][0] * m[2][1] - m[1][1] * m[2][0]);
+		if (Math.abs(det) < 1e-12) {
+			throw new IllegalArgumentException("Colorant matrix is singular");
+		}
+		double[][] inv = new double[3][3];
+		inv[0][0] = (m[1][1] * m[2][2] - m[1][2] * m[2][1]) / det;
+		inv[0][1] = (m[0][2] * m[2][1] - m[0][1] * m[2][2]) / det;
+		inv[0][2] = (m[0][1] * m[1][2] - m[0][2] * m[1][1]) / det;
+		inv[1][0] = (m[1][2] * m[2][0] - m[1][0] * m[2][2]) / det;
+		inv[1][1] = (m[0][0] * m[2][2] - m[0][2] * m[2][0]) / det;
+		inv[1][2] = (m[0][2] * m[1][0] - m[0][0] * m[1][2]) / det;
+		inv[2][0] = (m[1][0] * m[2][1] - m[1][1] * m[2][0]) / det;
+		inv[2][1] = (m[0][1] * m[2][0] - m[0][0] * m[2][1]) / det;
+		inv[2][2] = (m[0][0] * m[1][1] - m[0][1] * m[1][0]) / det;
+		return inv;
+	}
+
+	static {
+		if (!enabled && logger.isLoggable(Level.FINE)) {
+			logger.fine("matrix-shaper conversion disabled");
+		}
+	}
+}
@@ -0,0 +1,237 @@
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * DataBuffer of 8 or 16 bit samples outside of the Java heap, in direct
+ * ByteBuffers or in a memory mapped temporary file.
+ *
+ * Large rasters with this buffer don't fill the old generation and don't
+ * cause full GCs, and mapped buffers aren't limited by -XX:MaxDirectMemorySize
+ * and are paged out by the OS if memory is short. The samples of a bank are
+ * stored in chunks of up to 1 GB (2^30 bytes or 2^29 16 bit samples) because
+ * a ByteBuffer has less than 2 GB. The DataBuffer API still limits a bank to
+ * 2^31-1 samples.
+ *
+ * Works with the standard sample models, e.g. a PixelInterleavedSampleModel
+ * from OffHeapRasters, and with ColorModels and BufferedImages. getElem and
+ * setElem go through the ByteBuffers, the conversions copy rows with
+ * getElems and setElems into heap arrays and back instead.
+ *
+ * The memory is freed when the buffer is garbage collected or with dispose().
+ */
+public final class OffHeapDataBuffer extends DataBuffer {
+
+	public enum Storage {
+		/** direct ByteBuffers */
+		DIRECT,
+		/** a memory mapped temporary file */
+		MAPPED
+	}
+
+	/** log2 of the bytes of a chunk */
+	static final int CHUNK_BYTES_SHIFT = 30;
+
+	private final Storage storage;
+	/** log2 of the samples of a chunk */
+	private final int chunkShift;
+	private final int chunkMask;
+	/** the allocated buffers, for dispose() */
+	private ByteBuffer[][] buffers;
+	/** chunks per bank, null for 16 bit */
+	private ByteBuffer[][] byteChunks;
+	/** chunks per bank, null for 8 bit */
+	private ShortBuffer[][] shortChunks;
+
+	/**
+	 * Creates a buffer of TYPE_BYTE or TYPE_USHORT with numBanks banks of
+	 * size samples. Mapped buffers are created in the directory of the system
+	 * property imaging.offHeap.dir, else java.io.tmpdir.
+	 */
+	public OffHeapDataBuffer(int dataType, int size, int numBanks, Storage storage) {
+		super(dataType, size, numBanks);
+		if (dataType != TYPE_BYTE && dataType != TYPE_USHORT) {
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid size " + size);
+		}
+		this.storage = storage;
+		int bytesPerSample = getDataTypeSize(dataType) / 8;
+		chunkShift = CHUNK_BYTES_SHIFT - Integer.numberOfTrailingZeros(bytesPerSample);
+		chunkMask = (1 << chunkShift) - 1;
+		int numChunks = Math.max(1, (int) (((long) size + chunkMask) >>> chunkShift));
+		buffers = new ByteBuffer[numBanks][numChunks];
+		byteChunks = (dataType == TYPE_BYTE) ? new ByteBuffer[numBanks][numChunks] : null;
+		shortChunks = (dataType == TYPE_USHORT) ? new ShortBuffer[numBanks][numChunks] : null;
+		try {
+			if (storage == Storage.MAPPED) {
+				map(size, bytesPerSample);
+			} else {
+				for (int b = 0; b < numBanks; ++b) {
+					for (int c = 0; c < numChunks; ++c) {
+						buffers[b][c] = ByteBuffer.allocateDirect(getChunkSamples(size, c) * bytesPerSample);
+					}
+				}
+			}
+		} catch (IOException e) {
+			dispose();
+			throw new UncheckedIOException("Can't map " + numBanks + "x" + size + " samples", e);
+		}
+		for (int b = 0; b < numBanks; ++b) {
+			for (int c = 0; c < numChunks; ++c) {
+				ByteBuffer buffer = buffers[b][c].order(ByteOrder.nativeOrder());
+				if (byteChunks != null) {
+					byteChunks[b][c] = buffer;
+				} else {
+					shortChunks[b][c] = buffer.asShortBuffer();
+				}
+			}
+		}
+	}
+
+	private int getChunkSamples(int size, int chunk) {
+		return (int) Math.min(1 << chunkShift, size - ((long) chunk << chunkShift));
+	}
+
+	/**
+	 * Maps all chunks of all banks from one temporary file, which is deleted
+	 * right away, the mappings stay valid.
+	 */
+	private void map(int size, int bytesPerSample) throws IOException {
+		String dir = System.getProperty("imaging.offHeap.dir");
+		File file = File.createTempFile("imaging", ".raster", (dir != null) ? new File(dir) : null);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			long bankBytes = (long) size * bytesPerSample;
+			raf.setLength(bankBytes * buffers.length);
+			FileChannel channel = raf.getChannel();
+			for (int b = 0; b < buffers.length; ++b) {
+				for (int c = 0; c < buffers[b].length; ++c) {
+					long start = b * bankBytes + ((long) c << chunkShift) * bytesPerSample;
+					buffers[b][c] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+							(long) getChunkSamples(size, c) * bytesPerSample);
+				}
+			}
+		} finally {
+			if (!file.delete()) {
+				// e.g. Windows can't delete mapped files
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		if (dataType == TYPE_BYTE) {
+			return byteChunks[bank][i >>> chunkShift].get(i & chunkMask) & 0xff;
+		}
+		return shortChunks[bank][i >>> chunkShift].get(i & chunkMask) & 0xffff;
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		if (dataType == TYPE_BYTE) {
+			byteChunks[bank][i >>> chunkShift].put(i & chunkMask, (byte) val);
+		} else {
+			shortChunks[bank][i >>> chunkShift].put(i & chunkMask, (short) val);
+		}
+	}
+
+	/**
+	 * Copies len 8 bit samples from index i of the bank into dst.
+	 */
+	public void getElems(int bank, int i, byte[] dst, int off, int len) {
+		while (len > 0) {
+			ByteBuffer chunk = byteChunks[bank][i >>> chunkShift].duplicate();
+			int pos = i & chunkMask;
+			int n = Math.min(len, chunk.capacity() - pos);
+			// cast to Buffer for Java 8 compatibility of the compiled code
+			((Buffer) chunk).position(pos);
+			chunk.get(dst, off, n);
+			i += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copies len 8 bit samples from src to index i of the bank.
+	 */
+	public void setElems(int bank, int i, byte[] src, int off, int len) {
+		while (len > 0) {
+			ByteBuffer chunk = byteChunks[bank][i >>> chunkShift].duplicate();
+			int pos = i & chunkMask;
+			int n = Math.min(len, chunk.capacity() - pos);
+			((Buffer) chunk).position(pos);
+			chunk.put(src, off, n);
+			i += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copies len 16 bit samples from index i of the bank into dst.
+	 */
+	public void getElems(int bank, int i, short[] dst, int off, int len) {
+		while (len > 0) {
+			ShortBuffer chunk = shortChunks[bank][i >>> chunkShift].duplicate();
+			int pos = i & chunkMask;
+			int n = Math.min(len, chunk.capacity() - pos);
+			((Buffer) chunk).position(pos);
+			chunk.get(dst, off, n);
+			i += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copies len 16 bit samples from src to index i of the bank.
+	 */
+	public void setElems(int bank, int i, short[] src, int off, int len) {
+		while (len > 0) {
+			ShortBuffer chunk = shortChunks[bank][i >>> chunkShift].duplicate();
+			int pos = i & chunkMask;
+			int n = Math.min(len, chunk.capacity() - pos);
+			((Buffer) chunk).position(pos);
+			chunk.put(src, off, n);
+			i += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Frees the memory now instead of when the buffer is garbage collected. The
+	 * buffer and rasters on it must not be used afterwards.
+	 */
+	public synchronized void dispose() {
+		ByteBuffer[][] allocated = buffers;
+		buffers = null;
+		if (allocated == null) {
+			return;
+		}
+		// later accesses fail instead of touching freed memory
+		byteChunks = null;
+		shortChunks = null;
+		for (ByteBuffer[] bank : allocated) {
+			for (ByteBuffer buffer : bank) {
+				if (buffer != null) {
+					MappedFileImageInputStream.unmap(buffer);
+				}
+			}
+		}
+	}
+}
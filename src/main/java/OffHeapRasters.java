@@ -0,0 +1,250 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.function.BiFunction;
+
+/**
+ * Creates the rasters of the conversion, depth and scaling results on the
+ * heap or, for large images, with an OffHeapDataBuffer.
+ *
+ * Off heap rasters are used for 8 and 16 bit ComponentColorModels with
+ * -Dimaging.offHeap=direct or mapped for rasters of at least
+ * imaging.offHeap.minBytes (64 MB by default). They have the same pixel
+ * interleaved layout as ColorModel.createCompatibleWritableRaster.
+ *
+ * The conversions run their byte[] and short[] loops on off heap rasters
+ * through stagedTask, which copies chunks of rows into heap rasters and back.
+ */
+public final class OffHeapRasters {
+
+	public static final long DEFAULT_MIN_BYTES = 64L << 20;
+
+	/** size of the heap copies of rows of stagedTask */
+	static final int STAGE_BYTES = 1 << 20;
+
+	private static final OffHeapDataBuffer.Storage defaultStorage = parseStorage(
+			System.getProperty("imaging.offHeap"));
+
+	private static final long minBytes = Long.getLong("imaging.offHeap.minBytes", DEFAULT_MIN_BYTES);
+
+	private OffHeapRasters() {
+	}
+
+	/**
+	 * Returns the storage for direct or mapped, null for false or heap.
+	 */
+	static OffHeapDataBuffer.Storage parseStorage(String value) {
+		if (value == null || value.equalsIgnoreCase("false") || value.equalsIgnoreCase("heap")) {
+			return null;
+		}
+		return OffHeapDataBuffer.Storage.valueOf(value.toUpperCase());
+	}
+
+	/**
+	 * Returns the storage of large rasters, null if they are on the heap.
+	 */
+	public static OffHeapDataBuffer.Storage getDefaultStorage() {
+		return defaultStorage;
+	}
+
+	/**
+	 * Creates a raster compatible with the ColorModel, off heap if configured
+	 * and the raster is large enough.
+	 */
+	public static WritableRaster createCompatibleWritableRaster(ColorModel cm, int width, int height) {
+		return createCompatibleWritableRaster(cm, width, height, getStorage(cm, width, height));
+	}
+
+	/**
+	 * Returns the storage of a raster compatible with the ColorModel, null if
+	 * it is created on the heap.
+	 */
+	public static OffHeapDataBuffer.Storage getStorage(ColorModel cm, int width, int height) {
+		if (defaultStorage == null || !isSupported(cm)) {
+			return null;
+		}
+		long bytes = (long) width * height * cm.getNumComponents()
+				* DataBuffer.getDataTypeSize(cm.getTransferType()) / 8;
+		return (bytes >= minBytes) ? defaultStorage : null;
+	}
+
+	/**
+	 * Creates a raster compatible with the ColorModel in the storage, on the
+	 * heap if storage is null or the ColorModel isn't supported.
+	 */
+	public static WritableRaster createCompatibleWritableRaster(ColorModel cm, int width, int height,
+			OffHeapDataBuffer.Storage storage) {
+		if (storage == null || !isSupported(cm)) {
+			return cm.createCompatibleWritableRaster(width, height);
+		}
+		int numBands = cm.getNumComponents();
+		long size = (long) width * height * numBands;
+		if (width <= 0 || height <= 0 || size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid raster size " + width + "x" + height + "x" + numBands);
+		}
+		int[] bandOffsets = new int[numBands];
+		for (int b = 0; b < numBands; ++b) {
+			bandOffsets[b] = b;
+		}
+		PixelInterleavedSampleModel sm = new PixelInterleavedSampleModel(cm.getTransferType(), width, height,
+				numBands, width * numBands, bandOffsets);
+		return Raster.createWritableRaster(sm, new OffHeapDataBuffer(cm.getTransferType(), (int) size, 1, storage),
+				null);
+	}
+
+	private static boolean isSupported(ColorModel cm) {
+		int transferType = cm.getTransferType();
+		return cm instanceof ComponentColorModel
+				&& (transferType == DataBuffer.TYPE_BYTE || transferType == DataBuffer.TYPE_USHORT);
+	}
+
+	public static boolean isOffHeap(Raster raster) {
+		return raster.getDataBuffer() instanceof OffHeapDataBuffer;
+	}
+
+	/**
+	 * Returns if the raster is pixel interleaved on an OffHeapDataBuffer.
+	 */
+	static boolean isInterleaved(Raster raster) {
+		return raster.getSampleModel() instanceof PixelInterleavedSampleModel && isOffHeap(raster);
+	}
+
+	/**
+	 * Returns the task created by factory for src and dst, which may be the same
+	 * raster, if both are on the heap. Otherwise returns a task that runs tasks
+	 * created by factory on chunks of rows: pixel interleaved off heap rasters
+	 * are copied into heap rasters with the same layout (dst too, for the
+	 * samples the task doesn't write) and dst is copied back, other rasters are
+	 * passed as child rasters of the rows. The rows of these tasks start at 0.
+	 */
+	static ParallelRows.RowTask stagedTask(Raster src, WritableRaster dst,
+			BiFunction<Raster, WritableRaster, ParallelRows.RowTask> factory) {
+		if (!isOffHeap(src) && !isOffHeap(dst)) {
+			return factory.apply(src, dst);
+		}
+		int rowBytes = dst.getSampleModel().getNumDataElements() * dst.getWidth()
+				* DataBuffer.getDataTypeSize(dst.getTransferType()) / 8;
+		int chunkRows = Math.max(1, STAGE_BYTES / Math.max(1, rowBytes));
+		return (startRow, endRow) -> {
+			int rows = Math.min(chunkRows, endRow - startRow);
+			// the heap copies are reused for all chunks of the band
+			WritableRaster dstBuffer = isInterleaved(dst) ? createRowBuffer(dst, rows) : null;
+			WritableRaster srcBuffer = (src != dst && isInterleaved(src)) ? createRowBuffer(src, rows) : null;
+			for (int y = startRow; y < endRow; y += rows) {
+				int n = Math.min(rows, endRow - y);
+				WritableRaster dstRows = (dstBuffer != null) ? copyRows(dst, y, n, dstBuffer)
+						: dst.createWritableChild(dst.getMinX(), dst.getMinY() + y, dst.getWidth(), n, 0, 0, null);
+				Raster srcRows = dstRows;
+				if (src != dst) {
+					srcRows = (srcBuffer != null) ? copyRows(src, y, n, srcBuffer)
+							: src.createChild(src.getMinX(), src.getMinY() + y, src.getWidth(), n, 0, 0, null);
+				}
+				factory.apply(srcRows, dstRows).run(0, n);
+				if (dstBuffer != null) {
+					writeRows(dstRows, dst, y);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Creates a heap raster for rows of a pixel interleaved off heap raster,
+	 * with the same pixel stride and band offsets.
+	 */
+	static WritableRaster createRowBuffer(Raster raster, int rows) {
+		PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+		int[] bandOffsets = sm.getBandOffsets().clone();
+		int minOffset = getMinOffset(bandOffsets);
+		for (int b = 0; b < bandOffsets.length; ++b) {
+			bandOffsets[b] -= minOffset;
+		}
+		int stride = Math.max(getRowSpan(raster), raster.getWidth() * sm.getPixelStride());
+		int size = rows * stride;
+		DataBuffer heap = (raster.getTransferType() == DataBuffer.TYPE_BYTE) ? new DataBufferByte(size)
+				: new DataBufferUShort(size);
+		PixelInterleavedSampleModel heapSm = new PixelInterleavedSampleModel(raster.getTransferType(),
+				raster.getWidth(), rows, sm.getPixelStride(), stride, bandOffsets);
+		return Raster.createWritableRaster(heapSm, heap, null);
+	}
+
+	/**
+	 * Copies n rows from row y on of a pixel interleaved off heap raster into
+	 * the buffer from createRowBuffer, returns the buffer or a child raster of
+	 * its first n rows.
+	 */
+	static WritableRaster copyRows(Raster raster, int y, int n, WritableRaster buffer) {
+		transferRows(buffer, raster, y, n, true);
+		return (n == buffer.getHeight()) ? buffer : buffer.createWritableChild(0, 0, buffer.getWidth(), n, 0, 0, null);
+	}
+
+	/**
+	 * Copies the rows from copyRows back to row y of the off heap raster.
+	 */
+	static void writeRows(Raster rows, WritableRaster raster, int y) {
+		transferRows(rows, raster, y, rows.getHeight(), false);
+	}
+
+	private static void transferRows(Raster rows, Raster raster, int y, int n, boolean toRows) {
+		PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+		OffHeapDataBuffer db = (OffHeapDataBuffer) raster.getDataBuffer();
+		int stride = ((PixelInterleavedSampleModel) rows.getSampleModel()).getScanlineStride();
+		int span = getRowSpan(raster);
+		int bank = sm.getBankIndices()[0];
+		int pos = BitDepthReducer.getBaseOffset(raster) + getMinOffset(sm.getBandOffsets())
+				+ y * sm.getScanlineStride();
+		DataBuffer heap = rows.getDataBuffer();
+		byte[] bytes = (heap instanceof DataBufferByte) ? ((DataBufferByte) heap).getData() : null;
+		short[] shorts = (heap instanceof DataBufferUShort) ? ((DataBufferUShort) heap).getData() : null;
+		for (int r = 0; r < n; ++r, pos += sm.getScanlineStride()) {
+			if (bytes != null) {
+				if (toRows) {
+					db.getElems(bank, pos, bytes, r * stride, span);
+				} else {
+					db.setElems(bank, pos, bytes, r * stride, span);
+				}
+			} else if (toRows) {
+				db.getElems(bank, pos, shorts, r * stride, span);
+			} else {
+				db.setElems(bank, pos, shorts, r * stride, span);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of samples from the first to the last sample of a row.
+	 */
+	static int getRowSpan(Raster raster) {
+		PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+		int[] bandOffsets = sm.getBandOffsets();
+		int max = bandOffsets[0];
+		for (int offset : bandOffsets) {
+			max = Math.max(max, offset);
+		}
+		return (raster.getWidth() - 1) * sm.getPixelStride() + max - getMinOffset(bandOffsets) + 1;
+	}
+
+	private static int getMinOffset(int[] bandOffsets) {
+		int min = bandOffsets[0];
+		for (int offset : bandOffsets) {
+			min = Math.min(min, offset);
+		}
+		return min;
+	}
+
+	/**
+	 * Frees the memory of an off heap image now, does nothing for other images.
+	 * The image must not be used afterwards.
+	 */
+	public static void dispose(BufferedImage img) {
+		DataBuffer db = img.getRaster().getDataBuffer();
+		if (db instanceof OffHeapDataBuffer) {
+			((OffHeapDataBuffer) db).dispose();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+import java.awt.color.ICC_Profile;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Color conversion of a WritableRaster split into horizontal bands that are
+ * converted in parallel on a ForkJoinPool.
+ *
+ * Each band is a createWritableChild view on the original raster, so the
+ * conversion is still in place and gives the same output as one serial
+ * ColorConvertOp.filter call. ColorConvertOp is not thread-safe, so every band
+ * is converted with its own op from the ColorTransformCache.
+ */
+public class ParallelColorConverter {
+
+	static Logger logger = Logger.getLogger(ParallelColorConverter.class.getName());
+
+	/** minimum number of rows per band, smaller bands cost more than they gain */
+	public static final int DEFAULT_MIN_BAND_ROWS = 16;
+
+	private static ParallelColorConverter sharedConverter;
+
+	private final ForkJoinPool pool;
+	private final int minBandRows;
+	private final ColorTransformCache transformCache;
+
+	public ParallelColorConverter(int parallelism) {
+		this(new ForkJoinPool(parallelism), DEFAULT_MIN_BAND_ROWS, ColorTransformCache.getShared());
+	}
+
+	public ParallelColorConverter(ForkJoinPool pool, int minBandRows, ColorTransformCache transformCache) {
+		this.pool = pool;
+		this.minBandRows = Math.max(1, minBandRows);
+		this.transformCache = transformCache;
+	}
+
+	/**
+	 * Returns a shared converter on the shared pool of ParallelRows.
+	 */
+	public static synchronized ParallelColorConverter getShared() {
+		if (sharedConverter == null) {
+			sharedConverter = new ParallelColorConverter(ParallelRows.getSharedPool(), DEFAULT_MIN_BAND_ROWS,
+					ColorTransformCache.getShared());
+		}
+		return sharedConverter;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Converts the color components of the raster from srcProfile to destProfile in place.
+	 */
+	public void filterRaster(WritableRaster raster, ICC_Profile srcProfile, ICC_Profile destProfile) {
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("converting raster with parallelism " + pool.getParallelism());
+		}
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.COLOR_CONVERT);
+		ParallelRows.forEachBand(pool, raster.getHeight(), minBandRows, (startRow, endRow) -> {
+			int x = raster.getMinX();
+			int y = raster.getMinY() + startRow;
+			WritableRaster band = raster.createWritableChild(x, y, raster.getWidth(), endRow - startRow, x, y, null);
+			ColorConvertOp cco = transformCache.acquireRasterOp(srcProfile, destProfile, band);
+			try {
+				cco.filter(band, band);
+			} finally {
+				transformCache.releaseRasterOp(srcProfile, destProfile, band, cco);
+			}
+		});
+		timer.stop(raster);
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
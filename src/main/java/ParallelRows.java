@@ -0,0 +1,83 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs work on bands of image rows in parallel on a ForkJoinPool.
+ */
+public class ParallelRows {
+
+	/** number of bands per thread, for load balancing */
+	public static final int BANDS_PER_THREAD = 4;
+
+	private static ForkJoinPool sharedPool;
+
+	public interface RowTask {
+		/**
+		 * Processes rows startRow (inclusive) to endRow (exclusive).
+		 */
+		void run(int startRow, int endRow);
+	}
+
+	/**
+	 * Returns a shared pool with parallelism from the system property
+	 * imaging.parallelism (default: number of processors).
+	 */
+	public static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) {
+			int parallelism = Integer.getInteger("imaging.parallelism", Runtime.getRuntime().availableProcessors());
+			sharedPool = new ForkJoinPool(Math.max(1, parallelism));
+		}
+		return sharedPool;
+	}
+
+	/**
+	 * Runs the task on bands of at least minBandRows rows on the shared pool.
+	 */
+	public static void forEachBand(int rows, int minBandRows, RowTask task) {
+		forEachBand(getSharedPool(), rows, minBandRows, task);
+	}
+
+	/**
+	 * Runs the task on bands of at least minBandRows rows on the given pool.
+	 * Runs on the calling thread if there is only one band.
+	 */
+	public static void forEachBand(ForkJoinPool pool, int rows, int minBandRows, RowTask task) {
+		int parallelism = pool.getParallelism();
+		int bandRows = Math.max(Math.max(1, minBandRows),
+				(rows + parallelism * BANDS_PER_THREAD - 1) / (parallelism * BANDS_PER_THREAD));
+		if (parallelism == 1 || rows <= bandRows) {
+			// not worth splitting
+			task.run(0, rows);
+			return;
+		}
+		pool.invoke(new BandTask(task, 0, rows, bandRows));
+	}
+
+	private static class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final RowTask task;
+		final int startRow;
+		final int endRow;
+		final int bandRows;
+
+		BandTask(RowTask task, int startRow, int endRow, int bandRows) {
+			this.task = task;
+			this.startRow = startRow;
+			this.endRow = endRow;
+			this.bandRows = bandRows;
+		}
+
+		@Override
+		protected void compute() {
+			int rows = endRow - startRow;
+			if (rows <= bandRows) {
+				task.run(startRow, endRow);
+			} else {
+				// split at a band boundary
+				int mid = startRow + ((rows / bandRows + 1) / 2) * bandRows;
+				invokeAll(new BandTask(task, startRow, mid, bandRows), new BandTask(task, mid, endRow, bandRows));
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of canonical ICC profiles with shared ICC_ColorSpace and
+ * ComponentColorModel instances.
+ *
+ * Profiles are identified by the profile ID in the ICC header or, if that is
+ * empty, by the MD5 of the profile data computed the same way. The registry
+ * holds at most maxProfiles profiles and evicts the least recently used.
+ */
+public class ProfileRegistry {
+
+	static Logger logger = Logger.getLogger(ProfileRegistry.class.getName());
+
+	public static final int DEFAULT_MAX_PROFILES = 256;
+
+	private static final ProfileRegistry sharedRegistry = new ProfileRegistry(
+			Integer.getInteger("imaging.profileRegistry.size", DEFAULT_MAX_PROFILES));
+
+	private final int maxProfiles;
+	private final Map<ProfileId, Entry> profiles;
+	/**
+	 * entries of profile instances we have seen, to avoid hashing them again.
+	 * The entries are weak too because they reference their profile.
+	 */
+	private final Map<ICC_Profile, WeakReference<Entry>> instances =
+			new WeakHashMap<ICC_Profile, WeakReference<Entry>>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ProfileRegistry(int maxProfiles) {
+		if (maxProfiles < 1) {
+			throw new IllegalArgumentException("maxProfiles must be positive: " + maxProfiles);
+		}
+		this.maxProfiles = maxProfiles;
+		this.profiles = new LinkedHashMap<ProfileId, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ProfileId, Entry> eldest) {
+				return size() > ProfileRegistry.this.maxProfiles;
+			}
+		};
+	}
+
+	public static ProfileRegistry getShared() {
+		return sharedRegistry;
+	}
+
+	/**
+	 * Returns the canonical instance of the profile.
+	 */
+	public ICC_Profile getProfile(ICC_Profile profile) {
+		return getEntry(profile).profile;
+	}
+
+	/**
+	 * Returns the profile ID (see getProfileId) of the profile.
+	 */
+	public byte[] getId(ICC_Profile profile) {
+		return getEntry(profile).id.clone();
+	}
+
+	/**
+	 * Returns the shared color space for the profile.
+	 */
+	public ICC_ColorSpace getColorSpace(ICC_Profile profile) {
+		return getEntry(profile).colorSpace;
+	}
+
+	/**
+	 * Returns a shared ComponentColorModel for the profile.
+	 */
+	public ComponentColorModel getColorModel(ICC_Profile profile, int[] bits, boolean hasAlpha,
+			boolean isAlphaPremultiplied, int transparency, int transferType) {
+		Entry entry = getEntry(profile);
+		ColorModelKey key = new ColorModelKey(bits, hasAlpha, isAlphaPremultiplied, transparency, transferType);
+		synchronized (entry) {
+			ComponentColorModel cm = entry.colorModels.get(key);
+			if (cm == null) {
+				cm = new ComponentColorModel(entry.colorSpace, bits, hasAlpha, isAlphaPremultiplied, transparency,
+						transferType);
+				entry.colorModels.put(key, cm);
+			}
+			return cm;
+		}
+	}
+
+	/**
+	 * Returns the image with the shared ColorModel for its profile, sharing the
+	 * raster of the original image. Returns the image unchanged if it has no ICC
+	 * profile, an sRGB color space or a ColorModel that is not a
+	 * ComponentColorModel.
+	 */
+	public BufferedImage canonicalize(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		ColorSpace cs = cm.getColorSpace();
+		if (!(cm instanceof ComponentColorModel) || !(cs instanceof ICC_ColorSpace) || cs.isCS_sRGB()) {
+			return img;
+		}
+		ComponentColorModel ccm = getColorModel(((ICC_ColorSpace) cs).getProfile(), cm.getComponentSize(),
+				cm.hasAlpha(), cm.isAlphaPremultiplied(), cm.getTransparency(), cm.getTransferType());
+		if (ccm == cm) {
+			return img;
+		}
+		return new BufferedImage(ccm, img.getRaster(), img.isAlphaPremultiplied(), null);
+	}
+
+	private Entry getEntry(ICC_Profile profile) {
+		synchronized (instances) {
+			WeakReference<Entry> ref = instances.get(profile);
+			Entry entry = (ref != null) ? ref.get() : null;
+			if (entry != null) {
+				hits.incrementAndGet();
+				return entry;
+			}
+		}
+		ProfileId id = new ProfileId(getProfileId(profile));
+		Entry entry;
+		synchronized (profiles) {
+			entry = profiles.get(id);
+			if (entry == null) {
+				misses.incrementAndGet();
+				entry = new Entry(profile, id.id);
+				profiles.put(id, entry);
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("registered new profile " + id + " (" + profiles.size() + " profiles)");
+				}
+			} else {
+				hits.incrementAndGet();
+			}
+		}
+		synchronized (instances) {
+			instances.put(profile, new WeakReference<Entry>(entry));
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the 16 byte ICC profile ID from the header, or the MD5 of the
+	 * profile computed like the profile ID if the header has no ID.
+	 */
+	public static byte[] getProfileId(ICC_Profile profile) {
+		byte[] data = profile.getData();
+		if (data.length >= 100) {
+			byte[] id = Arrays.copyOfRange(data, 84, 100);
+			for (byte b : id) {
+				if (b != 0) {
+					return id;
+				}
+			}
+			// ICC.1 7.2.18: MD5 with profile flags, rendering intent and profile ID set to zero
+			Arrays.fill(data, 44, 48, (byte) 0);
+			Arrays.fill(data, 64, 68, (byte) 0);
+		}
+		try {
+			return MessageDigest.getInstance("MD5").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of distinct profiles in the registry.
+	 */
+	public int size() {
+		synchronized (profiles) {
+			return profiles.size();
+		}
+	}
+
+	public int getMaxProfiles() {
+		return maxProfiles;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ProfileRegistry[profiles=" + size() + "/" + maxProfiles + " hits=" + getHits() + " misses="
+				+ getMisses() + "]";
+	}
+
+	private static class Entry {
+		final ICC_Profile profile;
+		final byte[] id;
+		final ICC_ColorSpace colorSpace;
+		final Map<ColorModelKey, ComponentColorModel> colorModels = new HashMap<ColorModelKey, ComponentColorModel>();
+
+		Entry(ICC_Profile profile, byte[] id) {
+			this.profile = profile;
+			this.id = id;
+			ColorSpace srgb = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+			if (profile == ((ICC_ColorSpace) srgb).getProfile()) {
+				// keep the color space that knows it is sRGB
+				this.colorSpace = (ICC_ColorSpace) srgb;
+			} else {
+				this.colorSpace = new ICC_ColorSpace(profile);
+			}
+		}
+	}
+
+	private static class ProfileId {
+		final byte[] id;
+		final int hash;
+
+		ProfileId(byte[] id) {
+			this.id = id;
+			this.hash = Arrays.hashCode(id);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof ProfileId && Arrays.equals(id, ((ProfileId) obj).id);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : id) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		}
+	}
+
+	private static class ColorModelKey {
+		final int[] bits;
+		final boolean hasAlpha;
+		final boolean isAlphaPremultiplied;
+		final int transparency;
+		final int transferType;
+
+		ColorModelKey(int[] bits, boolean hasAlpha, boolean isAlphaPremultiplied, int transparency,
+				int transferType) {
+			this.bits = bits == null ? null : bits.clone();
+			this.hasAlpha = hasAlpha;
+			this.isAlphaPremultiplied = isAlphaPremultiplied;
+			this.transparency = transparency;
+			this.transferType = transferType;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(bits) * 31 + transferType * 7 + transparency + (hasAlpha ? 1 : 0)
+					+ (isAlphaPremultiplied ? 2 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ColorModelKey)) {
+				return false;
+			}
+			ColorModelKey o = (ColorModelKey) obj;
+			return Arrays.equals(bits, o.bits) && hasAlpha == o.hasAlpha
+					&& isAlphaPremultiplied == o.isAlphaPremultiplied && transparency == o.transparency
+					&& transferType == o.transferType;
+		}
+	}
+}
@@ -0,0 +1,371 @@
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Builds the tile pyramid of an image for zooming viewers, as Deep Zoom (DZI)
+ * or static IIIF Image API 3.0 (level 0) tile tree.
+ *
+ * The master is read once. Every level is derived from the level above by
+ * halving it with area averages (Resampler.Filter.AREA), at the bit depth and
+ * in the color space of the master. The levels are cut into tiles that are
+ * rendered and written in parallel: every tile is converted to sRGB in place,
+ * reduced to 8 bit and written as JPEG or PNG. JPEG tiles drop the alpha
+ * band.
+ *
+ * Usage: PyramidGenerator INPUT OUTPUT-DIR [dzi|iiif] [TILE-SIZE] [jpg|png]
+ *
+ * DZI writes OUTPUT-DIR/NAME.dzi and the tiles to
+ * OUTPUT-DIR/NAME_files/LEVEL/COLUMN_ROW.jpg, from level 0 (1x1 pixel) to the
+ * full size. IIIF writes OUTPUT-DIR/NAME/info.json and the tiles to
+ * OUTPUT-DIR/NAME/X,Y,W,H/WIDTH,HEIGHT/0/default.jpg for the scale factors
+ * 1, 2, 4, ... down to the first level that fits into one tile, plus
+ * full/WIDTH,HEIGHT/0/default.jpg for the levels that fit into one tile.
+ *
+ * Tiles are rendered on the shared pool of ParallelRows (imaging.parallelism)
+ * or the pool set in the options.
+ */
+public class PyramidGenerator {
+
+	static Logger logger = Logger.getLogger(PyramidGenerator.class.getName());
+
+	public enum Layout {
+		DZI, IIIF
+	}
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	public static final float DEFAULT_QUALITY = 0.9f;
+
+	public static class Options {
+		Layout layout = Layout.DZI;
+		int tileSize = DEFAULT_TILE_SIZE;
+		/** pixels shared with the neighbor tiles, DZI only */
+		int overlap = 1;
+		String format = "jpg";
+		float quality = DEFAULT_QUALITY;
+		/** base URI of the IIIF id, null for a relative id */
+		String baseUri = null;
+		ForkJoinPool pool = null;
+
+		public Options layout(Layout layout) {
+			this.layout = layout;
+			return this;
+		}
+
+		public Options tileSize(int tileSize) {
+			if (tileSize < 1) {
+				throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+			}
+			this.tileSize = tileSize;
+			return this;
+		}
+
+		public Options overlap(int overlap) {
+			if (overlap < 0) {
+				throw new IllegalArgumentException("Invalid overlap: " + overlap);
+			}
+			this.overlap = overlap;
+			return this;
+		}
+
+		/**
+		 * Sets the tile format, jpg (default) or png.
+		 */
+		public Options format(String format) {
+			this.format = format.toLowerCase(Locale.ROOT);
+			return this;
+		}
+
+		/**
+		 * Sets the JPEG quality 0..1.
+		 */
+		public Options quality(float quality) {
+			this.quality = quality;
+			return this;
+		}
+
+		public Options baseUri(String baseUri) {
+			this.baseUri = baseUri;
+			return this;
+		}
+
+		public Options pool(ForkJoinPool pool) {
+			this.pool = pool;
+			return this;
+		}
+	}
+
+	private final Options options;
+	private final StreamingImageWriter.Options writeOptions;
+
+	public PyramidGenerator(Options options) {
+		this.options = options;
+		this.writeOptions = new StreamingImageWriter.Options();
+		if (isJpeg()) {
+			writeOptions.compressionQuality(options.quality);
+		}
+	}
+
+	private ForkJoinPool getPool() {
+		return (options.pool != null) ? options.pool : ParallelRows.getSharedPool();
+	}
+
+	private boolean isJpeg() {
+		return options.format.equals("jpg") || options.format.equals("jpeg");
+	}
+
+	/**
+	 * Loads the file and writes its pyramid to outputDir, named like the file
+	 * without extension. Returns the number of tiles.
+	 */
+	public int generate(String mt, String fn, File outputDir) throws Exception {
+		String name = new File(fn).getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return generate(ImageLoader.loadImage(mt, fn), outputDir, name);
+	}
+
+	/**
+	 * Writes the pyramid of the image to outputDir. Returns the number of
+	 * tiles.
+	 */
+	public int generate(BufferedImage img, File outputDir, String name) throws IOException {
+		long start = System.nanoTime();
+		int width = img.getWidth();
+		int height = img.getHeight();
+		File root = (options.layout == Layout.DZI) ? new File(outputDir, name + "_files") : new File(outputDir, name);
+		if (!root.isDirectory() && !root.mkdirs()) {
+			throw new IOException("Can't create output directory " + root);
+		}
+		// DZI levels go down to 1x1, IIIF levels to the first that fits into a tile
+		int maxLevel = getMaxLevel(width, height);
+		List<Integer> scaleFactors = new ArrayList<Integer>();
+		List<int[]> sizes = new ArrayList<int[]>();
+		AtomicInteger tiles = new AtomicInteger();
+		BufferedImage level = img;
+		for (int n = maxLevel; n >= 0; --n) {
+			int scale = 1 << (maxLevel - n);
+			boolean last = (n == 0) || (options.layout == Layout.IIIF && level.getWidth() <= options.tileSize
+					&& level.getHeight() <= options.tileSize);
+			// the next level is computed while the tiles of this one are written
+			BufferedImage current = level;
+			ForkJoinTask<BufferedImage> next = last ? null : getPool().submit(() -> halve(current));
+			if (options.layout == Layout.DZI) {
+				renderLevel(level, new File(root, Integer.toString(n)), scale, img, tiles);
+			} else {
+				renderLevel(level, root, scale, img, tiles);
+				scaleFactors.add(scale);
+			}
+			if (last) {
+				sizes.add(new int[] { level.getWidth(), level.getHeight() });
+				break;
+			}
+			level = next.join();
+		}
+		if (options.layout == Layout.DZI) {
+			writeDzi(new File(outputDir, name + ".dzi"), width, height);
+		} else {
+			writeInfo(new File(root, "info.json"), name, width, height, scaleFactors, sizes);
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		logger.info(String.format(Locale.ROOT, "Wrote %d tiles of %s %dx%d in %.2fs: %.2f tiles/s", tiles.get(),
+				name, width, height, secs, tiles.get() / secs));
+		return tiles.get();
+	}
+
+	/**
+	 * Returns the number of halvings down to 1x1, the DZI level of the full
+	 * size.
+	 */
+	static int getMaxLevel(int width, int height) {
+		int max = Math.max(width, height);
+		return (max <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(max - 1);
+	}
+
+	/**
+	 * Returns the image halved with area averages, rounding the size up.
+	 */
+	static BufferedImage halve(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		WritableRaster raster = OffHeapRasters.createCompatibleWritableRaster(cm, (img.getWidth() + 1) / 2,
+				(img.getHeight() + 1) / 2);
+		int alphaBand = cm.hasAlpha() ? cm.getNumComponents() - 1 : -1;
+		Resampler.resize(img.getRaster(), raster, Resampler.Filter.AREA, alphaBand,
+				alphaBand >= 0 && !cm.isAlphaPremultiplied());
+		return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Renders and writes the tiles of one level in parallel, scale is the
+	 * reduction from the full size image.
+	 */
+	private void renderLevel(BufferedImage level, File dir, int scale, BufferedImage full, AtomicInteger tiles)
+			throws IOException {
+		if (options.layout == Layout.DZI && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create output directory " + dir);
+		}
+		int ts = options.tileSize;
+		int columns = (level.getWidth() + ts - 1) / ts;
+		int rows = (level.getHeight() + ts - 1) / ts;
+		ParallelRows.RowTask task = (startTile, endTile) -> {
+			for (int t = startTile; t < endTile; ++t) {
+				try {
+					writeTile(level, dir, scale, full, t % columns, t / columns);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				tiles.incrementAndGet();
+			}
+		};
+		try {
+			ParallelRows.forEachBand(getPool(), columns * rows, 1, task);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void writeTile(BufferedImage level, File dir, int scale, BufferedImage full, int column, int row)
+			throws IOException {
+		int ts = options.tileSize;
+		int overlap = (options.layout == Layout.DZI) ? options.overlap : 0;
+		int x0 = Math.max(0, column * ts - overlap);
+		int y0 = Math.max(0, row * ts - overlap);
+		int x1 = Math.min(level.getWidth(), (column + 1) * ts + overlap);
+		int y1 = Math.min(level.getHeight(), (row + 1) * ts + overlap);
+		BufferedImage tile = renderTile(level, x0, y0, x1 - x0, y1 - y0);
+		String ext = isJpeg() ? "jpg" : options.format;
+		if (options.layout == Layout.DZI) {
+			StreamingImageWriter.writeImage(tile, options.format, new File(dir, column + "_" + row + "." + ext),
+					writeOptions);
+			return;
+		}
+		// region in full size coordinates
+		int x = x0 * scale;
+		int y = y0 * scale;
+		String region = x + "," + y + "," + Math.min(tile.getWidth() * scale, full.getWidth() - x) + ","
+				+ Math.min(tile.getHeight() * scale, full.getHeight() - y);
+		String size = tile.getWidth() + "," + tile.getHeight();
+		writeIiif(tile, new File(dir, region + "/" + size + "/0/default." + ext));
+		if (x1 - x0 == level.getWidth() && y1 - y0 == level.getHeight()) {
+			// the whole level
+			writeIiif(tile, new File(dir, "full/" + size + "/0/default." + ext));
+		}
+	}
+
+	private void writeIiif(BufferedImage tile, File file) throws IOException {
+		File parent = file.getParentFile();
+		if (!parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Can't create output directory " + parent);
+		}
+		StreamingImageWriter.writeImage(tile, options.format, file, writeOptions);
+	}
+
+	/**
+	 * Copies the region of the level, converts it to sRGB and reduces it to 8
+	 * bit.
+	 */
+	private BufferedImage renderTile(BufferedImage level, int x, int y, int width, int height) {
+		ColorModel cm = level.getColorModel();
+		WritableRaster raster = cm.createCompatibleWritableRaster(width, height);
+		raster.setDataElements(0, 0, level.getRaster().createChild(x, y, width, height, 0, 0, null));
+		BufferedImage tile = new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+		tile = BatchRunner.to8Bit(BatchRunner.toSrgb(tile));
+		if (isJpeg() && tile.getColorModel().hasAlpha()) {
+			tile = dropAlpha(tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Returns the color bands of an 8 bit sRGB image with alpha.
+	 */
+	private static BufferedImage dropAlpha(BufferedImage img) {
+		ICC_Profile srgbProfile = ((ICC_ColorSpace) ColorSpace.getInstance(ColorSpace.CS_sRGB)).getProfile();
+		ColorModel cm = ProfileRegistry.getShared().getColorModel(srgbProfile, new int[] { 8, 8, 8 }, false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		WritableRaster raster = cm.createCompatibleWritableRaster(img.getWidth(), img.getHeight());
+		raster.setRect(img.getRaster().createChild(0, 0, img.getWidth(), img.getHeight(), 0, 0,
+				new int[] { 0, 1, 2 }));
+		return new BufferedImage(cm, raster, false, null);
+	}
+
+	private void writeDzi(File file, int width, int height) throws IOException {
+		try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			w.write("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\""
+					+ (isJpeg() ? "jpg" : options.format) + "\" Overlap=\"" + options.overlap + "\" TileSize=\""
+					+ options.tileSize + "\">\n");
+			w.write("  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n");
+			w.write("</Image>\n");
+		}
+	}
+
+	private void writeInfo(File file, String name, int width, int height, List<Integer> scaleFactors,
+			List<int[]> sizes) throws IOException {
+		String id = (options.baseUri != null) ? options.baseUri + "/" + name : name;
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"@context\": \"http://iiif.io/api/image/3/context.json\",\n");
+		sb.append("  \"id\": \"").append(id.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+		sb.append("  \"type\": \"ImageService3\",\n");
+		sb.append("  \"protocol\": \"http://iiif.io/api/image\",\n");
+		sb.append("  \"profile\": \"level0\",\n");
+		sb.append("  \"width\": ").append(width).append(",\n");
+		sb.append("  \"height\": ").append(height).append(",\n");
+		sb.append("  \"sizes\": [");
+		for (int i = 0; i < sizes.size(); ++i) {
+			sb.append(i > 0 ? ", " : "").append("{ \"width\": ").append(sizes.get(i)[0]).append(", \"height\": ")
+					.append(sizes.get(i)[1]).append(" }");
+		}
+		sb.append("],\n");
+		sb.append("  \"tiles\": [{ \"width\": ").append(options.tileSize).append(", \"scaleFactors\": [");
+		for (int i = 0; i < scaleFactors.size(); ++i) {
+			sb.append(i > 0 ? ", " : "").append(scaleFactors.get(i));
+		}
+		sb.append("] }]\n");
+		sb.append("}\n");
+		Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || args.length > 5) {
+			System.err.println("Usage: PyramidGenerator INPUT OUTPUT-DIR [dzi|iiif] [TILE-SIZE] [jpg|png]");
+			System.err.println("  e.g. PyramidGenerator data/photorgb-sample-t16.tiff output-pyramid iiif 256");
+			return;
+		}
+		Options options = new Options();
+		if (args.length > 2) {
+			options.layout(Layout.valueOf(args[2].toUpperCase(Locale.ROOT)));
+		}
+		if (args.length > 3) {
+			options.tileSize(Integer.parseInt(args[3]));
+		}
+		if (args.length > 4) {
+			options.format(args[4]);
+		}
+		new PyramidGenerator(options).generate(BatchRunner.getMimeType(new File(args[0]).toPath()), args[0],
+				new File(args[1]));
+		logger.info(ImagingMetrics.getSummary());
+	}
+}
@@ -0,0 +1,409 @@
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Ranks the ImageReaders of a MIME type by their decode speed on sample files
+ * and remembers the fastest correct reader in a properties file.
+ *
+ * Without a ranking ImageReaderPool uses the first reader ImageIO returns,
+ * which depends on the plugins on the classpath, e.g. the JDK or the
+ * jai-imageio TIFF reader. rank() decodes every sample with every reader of
+ * the type, the reader ImageIO returns first is the reference. A reader is
+ * correct if its images have the size, ICC profile, bit depth and raw pixel
+ * values of the reference images. Correct readers are ranked by the median
+ * decode time per pixel, for every bit depth of the samples. Because the bit
+ * depth of a file is only known after a reader has parsed it, the pool uses
+ * one reader per MIME type: the correct reader with the lowest sum over the
+ * bit depths of its time relative to the fastest reader.
+ *
+ * The shared ranking is stored in imaging.readerRanking.file (default
+ * imaging-reader-ranking.properties in the temp directory) and used by the
+ * shared ImageReaderPool unless imaging.readerRanking is false. Create it with
+ *
+ * java ReaderRanking data
+ */
+public class ReaderRanking {
+
+	static Logger logger = Logger.getLogger(ReaderRanking.class.getName());
+
+	public static final int DEFAULT_RUNS = 5;
+
+	private static ReaderRanking sharedRanking;
+
+	private final File file;
+	/** "MIME-TYPE" to the chosen ImageReaderSpi class and "MIME-TYPE.BITS" to the ranking */
+	private final Properties properties = new Properties();
+	private int warmups = 2;
+	private int runs = DEFAULT_RUNS;
+
+	/**
+	 * Creates an empty ranking stored in the file.
+	 */
+	public ReaderRanking(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the shared ranking from the file in imaging.readerRanking.file,
+	 * empty if the file doesn't exist or can't be read.
+	 */
+	public static synchronized ReaderRanking getShared() {
+		if (sharedRanking == null) {
+			String fn = System.getProperty("imaging.readerRanking.file");
+			sharedRanking = new ReaderRanking((fn != null) ? new File(fn)
+					: new File(System.getProperty("java.io.tmpdir"), "imaging-reader-ranking.properties"));
+			try {
+				sharedRanking.load();
+			} catch (IOException e) {
+				logger.warning("can't read reader ranking " + sharedRanking.file + ": " + e);
+			}
+		}
+		return sharedRanking;
+	}
+
+	/**
+	 * Loads the ranking from its file if it exists.
+	 */
+	public ReaderRanking load() throws IOException {
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				synchronized (properties) {
+					properties.load(in);
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the number of untimed and timed decodes of every sample.
+	 */
+	public ReaderRanking runs(int warmups, int runs) {
+		if (warmups < 0 || runs < 1) {
+			throw new IllegalArgumentException("Invalid runs: " + warmups + "/" + runs);
+		}
+		this.warmups = warmups;
+		this.runs = runs;
+		return this;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the ImageReaderSpi ranked fastest for the MIME type, null if the
+	 * type isn't ranked or the reader isn't available anymore.
+	 */
+	public ImageReaderSpi getPreferredSpi(String mt) {
+		String name;
+		synchronized (properties) {
+			name = properties.getProperty(mt);
+		}
+		if (name == null) {
+			return null;
+		}
+		for (ImageReaderSpi spi : getReaderSpis(mt)) {
+			if (spi.getClass().getName().equals(name)) {
+				return spi;
+			}
+		}
+		logger.warning("ranked reader " + name + " for " + mt + " not found");
+		return null;
+	}
+
+	/**
+	 * Returns the correct reader classes for the MIME type and bit depth from
+	 * fastest to slowest, empty if they weren't ranked.
+	 */
+	public List<String> getRanking(String mt, int bits) {
+		String ranking;
+		synchronized (properties) {
+			ranking = properties.getProperty(mt + "." + bits);
+		}
+		List<String> names = new ArrayList<String>();
+		if (ranking != null && !ranking.isEmpty()) {
+			for (String entry : ranking.split(",")) {
+				names.add(entry.substring(0, entry.indexOf('=')));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Returns the ImageReaderSpis ImageIO has for the MIME type, in the order
+	 * of ImageIO.
+	 */
+	static List<ImageReaderSpi> getReaderSpis(String mt) {
+		List<ImageReaderSpi> spis = new ArrayList<ImageReaderSpi>();
+		for (Iterator<ImageReader> i = ImageIO.getImageReadersByMIMEType(mt); i.hasNext();) {
+			ImageReader reader = i.next();
+			spis.add(reader.getOriginatingProvider());
+			reader.dispose();
+		}
+		return spis;
+	}
+
+	/**
+	 * Ranks the readers of the MIME type on the samples and sets the reader for
+	 * the type. Returns the decode times in nanoseconds per pixel by reader
+	 * class and bit depth, NaN for incorrect results.
+	 */
+	public Map<String, Map<Integer, Double>> rank(String mt, List<File> samples) throws IOException {
+		List<ImageReaderSpi> spis = getReaderSpis(mt);
+		if (spis.isEmpty()) {
+			throw new IOException("Can't find Reader to load File with mime-type " + mt + "!");
+		}
+		Map<String, Map<Integer, Double>> times = new LinkedHashMap<String, Map<Integer, Double>>();
+		// number of samples per bit depth for the mean times
+		Map<Integer, Integer> counts = new TreeMap<Integer, Integer>();
+		for (File sample : samples) {
+			BufferedImage reference = decode(spis.get(0), sample);
+			int bits = reference.getSampleModel().getSampleSize(0);
+			double pixels = (double) reference.getWidth() * reference.getHeight();
+			counts.merge(bits, 1, Integer::sum);
+			for (ImageReaderSpi spi : spis) {
+				Map<Integer, Double> readerTimes = times.computeIfAbsent(spi.getClass().getName(),
+						k -> new TreeMap<Integer, Double>());
+				double time;
+				try {
+					BufferedImage img = (spi == spis.get(0)) ? reference : decode(spi, sample);
+					String difference = compare(reference, img);
+					if (difference != null) {
+						logger.info(spi.getClass().getName() + " is incorrect for " + sample + ": " + difference);
+						time = Double.NaN;
+					} else {
+						time = measure(spi, sample) / pixels;
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.info(spi.getClass().getName() + " can't read " + sample + ": " + e);
+					time = Double.NaN;
+				}
+				readerTimes.merge(bits, time, Double::sum);
+			}
+		}
+		for (Map<Integer, Double> readerTimes : times.values()) {
+			for (Map.Entry<Integer, Double> e : readerTimes.entrySet()) {
+				e.setValue(e.getValue() / counts.get(e.getKey()));
+			}
+		}
+		update(mt, times, counts.keySet());
+		return times;
+	}
+
+	private void update(String mt, Map<String, Map<Integer, Double>> times, Iterable<Integer> depths) {
+		Map<String, Double> scores = new LinkedHashMap<String, Double>();
+		for (String name : times.keySet()) {
+			scores.put(name, 0.0);
+		}
+		synchronized (properties) {
+			for (int bits : depths) {
+				List<String> names = new ArrayList<String>();
+				double best = Double.MAX_VALUE;
+				for (Map.Entry<String, Map<Integer, Double>> e : times.entrySet()) {
+					double time = e.getValue().get(bits);
+					if (!Double.isNaN(time)) {
+						names.add(e.getKey());
+						best = Math.min(best, time);
+					}
+				}
+				names.sort((a, b) -> Double.compare(times.get(a).get(bits), times.get(b).get(bits)));
+				StringBuilder sb = new StringBuilder();
+				for (String name : names) {
+					if (sb.length() > 0) {
+						sb.append(',');
+					}
+					sb.append(name).append('=').append(String.format(Locale.ROOT, "%.2f", times.get(name).get(bits)));
+				}
+				properties.setProperty(mt + "." + bits, sb.toString());
+				for (Map.Entry<String, Double> e : scores.entrySet()) {
+					e.setValue(e.getValue() + times.get(e.getKey()).get(bits) / best);
+				}
+			}
+			String chosen = null;
+			for (Map.Entry<String, Double> e : scores.entrySet()) {
+				if (!Double.isNaN(e.getValue()) && (chosen == null || e.getValue() < scores.get(chosen))) {
+					chosen = e.getKey();
+				}
+			}
+			if (chosen != null) {
+				properties.setProperty(mt, chosen);
+			} else {
+				properties.remove(mt);
+			}
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("reader for " + mt + ": " + chosen + " scores " + scores);
+			}
+		}
+	}
+
+	/**
+	 * Writes the ranking to its file.
+	 */
+	public void save() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		Path tmp = Files.createTempFile(dir.toPath(), ".tmp-", ".properties");
+		try {
+			try (OutputStream out = new FileOutputStream(tmp.toFile())) {
+				synchronized (properties) {
+					properties.store(out, "ImageReader ranking: MIME-TYPE.BITS=READER=NS-PER-PIXEL,...");
+				}
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Returns the median decode time of the sample in nanoseconds, reusing the
+	 * reader like the ImageReaderPool.
+	 */
+	private long measure(ImageReaderSpi spi, File sample) throws IOException {
+		ImageReader reader = spi.createReaderInstance();
+		try {
+			for (int i = 0; i < warmups; i++) {
+				decode(reader, sample);
+			}
+			long[] times = new long[runs];
+			for (int i = 0; i < runs; i++) {
+				long start = System.nanoTime();
+				decode(reader, sample);
+				times[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(times);
+			return times[runs / 2];
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	private static BufferedImage decode(ImageReaderSpi spi, File sample) throws IOException {
+		ImageReader reader = spi.createReaderInstance();
+		try {
+			return decode(reader, sample);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	private static BufferedImage decode(ImageReader reader, File sample) throws IOException {
+		try (ImageInputStream istream = ImageLoader.openStream(sample.getPath(), new ImageLoader.Options())) {
+			reader.setInput(istream);
+			return reader.read(0);
+		} finally {
+			reader.reset();
+		}
+	}
+
+	/**
+	 * Returns how the image differs from the reference, null if it doesn't.
+	 */
+	static String compare(BufferedImage reference, BufferedImage img) {
+		if (img.getWidth() != reference.getWidth() || img.getHeight() != reference.getHeight()) {
+			return "size " + img.getWidth() + "x" + img.getHeight();
+		}
+		Raster r = reference.getRaster();
+		Raster raster = img.getRaster();
+		if (raster.getNumBands() != r.getNumBands()
+				|| !Arrays.equals(raster.getSampleModel().getSampleSize(), r.getSampleModel().getSampleSize())) {
+			return "bands " + Arrays.toString(raster.getSampleModel().getSampleSize());
+		}
+		if (!isSameColorSpace(reference.getColorModel().getColorSpace(), img.getColorModel().getColorSpace())) {
+			return "color space " + img.getColorModel().getColorSpace();
+		}
+		if (img.getColorModel().hasAlpha() != reference.getColorModel().hasAlpha()
+				|| img.isAlphaPremultiplied() != reference.isAlphaPremultiplied()) {
+			return "alpha " + img.getColorModel();
+		}
+		int w = r.getWidth();
+		int[] expected = null;
+		int[] actual = null;
+		for (int y = 0; y < r.getHeight(); y++) {
+			expected = r.getPixels(r.getMinX(), r.getMinY() + y, w, 1, expected);
+			actual = raster.getPixels(raster.getMinX(), raster.getMinY() + y, w, 1, actual);
+			if (!Arrays.equals(expected, actual)) {
+				return "pixels in row " + y;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isSameColorSpace(ColorSpace a, ColorSpace b) {
+		if (a == b) {
+			return true;
+		}
+		if (a instanceof ICC_ColorSpace && b instanceof ICC_ColorSpace) {
+			return Arrays.equals(((ICC_ColorSpace) a).getProfile().getData(),
+					((ICC_ColorSpace) b).getProfile().getData());
+		}
+		return a.getType() == b.getType() && a.isCS_sRGB() == b.isCS_sRGB();
+	}
+
+	@Override
+	public String toString() {
+		synchronized (properties) {
+			return "ReaderRanking[" + file + " " + new TreeMap<Object, Object>(properties) + "]";
+		}
+	}
+
+	/**
+	 * Ranks the readers on the images in the directory, grouped by MIME type,
+	 * and saves the shared ranking.
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : "data");
+		File[] files = dir.listFiles(File::isFile);
+		if (files == null) {
+			System.err.println("Usage: ReaderRanking [DATA-DIR]");
+			return;
+		}
+		Arrays.sort(files);
+		Map<String, List<File>> samples = new TreeMap<String, List<File>>();
+		for (File f : files) {
+			try {
+				samples.computeIfAbsent(BatchRunner.getMimeType(f.toPath()), k -> new ArrayList<File>()).add(f);
+			} catch (IOException e) {
+				logger.fine("skipping " + f + ": " + e);
+			}
+		}
+		ReaderRanking ranking = getShared();
+		for (Map.Entry<String, List<File>> e : samples.entrySet()) {
+			Map<String, Map<Integer, Double>> times = ranking.rank(e.getKey(), e.getValue());
+			ImageReaderSpi spi = ranking.getPreferredSpi(e.getKey());
+			System.out.println(e.getKey() + ": " + ((spi != null) ? spi.getClass().getName() : "no reader ranked"));
+			for (Map.Entry<String, Map<Integer, Double>> t : times.entrySet()) {
+				System.out.println("  " + t.getKey() + " ns/pixel by bit depth " + t.getValue());
+			}
+		}
+		ranking.save();
+		System.out.println("saved " + ranking.getFile());
+	}
+}
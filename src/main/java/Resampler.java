@@ -0,0 +1,291 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Resizing of 8 and 16 bit images with area average, bilinear, bicubic and
+ * Lanczos filters.
+ *
+ * The filter weights are computed once per axis. For reductions the filter
+ * is widened by the reduction factor so that every source pixel contributes
+ * and fine detail doesn't alias. Bands of output rows are resized in parallel,
+ * each band filters the source rows it needs horizontally into a ring of
+ * float rows and combines them vertically, so the samples keep their full 16
+ * bit precision until they are rounded into the destination.
+ *
+ * Reductions by at least PYRAMID_FACTOR first halve the image with area
+ * averages, which is much cheaper than a filter widened by a large factor.
+ *
+ * The destination has the ColorModel (and ICC profile) of the source.
+ */
+public class Resampler {
+
+	public enum Filter {
+		/** average of the covered source area */
+		AREA(0.5),
+		BILINEAR(1),
+		/** Catmull-Rom cubic (a = -0.5) */
+		BICUBIC(2),
+		LANCZOS3(3);
+
+		/** radius of the filter in source pixels */
+		final double support;
+
+		Filter(double support) {
+			this.support = support;
+		}
+
+		double weight(double x) {
+			x = Math.abs(x);
+			switch (this) {
+			case AREA:
+				return (x <= 0.5) ? 1 : 0;
+			case BILINEAR:
+				return (x < 1) ? 1 - x : 0;
+			case BICUBIC:
+				if (x < 1) {
+					return (1.5 * x - 2.5) * x * x + 1;
+				} else if (x < 2) {
+					return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+				}
+				return 0;
+			case LANCZOS3:
+				if (x < 1e-9) {
+					return 1;
+				} else if (x < 3) {
+					double px = Math.PI * x;
+					return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+				}
+				return 0;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+	}
+
+	/** minimum number of rows per parallel band */
+	public static final int MIN_BAND_ROWS = 16;
+
+	/** number of destination samples below which we don't bother with parallel processing */
+	public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	/** reductions by this factor or more start with area averaged halvings */
+	public static final int PYRAMID_FACTOR = 4;
+
+	private final Filter filter;
+	private boolean pyramid = true;
+
+	public Resampler(Filter filter) {
+		this.filter = filter;
+	}
+
+	public Resampler pyramid(boolean pyramid) {
+		this.pyramid = pyramid;
+		return this;
+	}
+
+	/**
+	 * Returns the image scaled by the factors, at least one pixel.
+	 */
+	public BufferedImage scale(BufferedImage img, double scaleX, double scaleY) {
+		int width = Math.max(1, (int) Math.round(img.getWidth() * scaleX));
+		int height = Math.max(1, (int) Math.round(img.getHeight() * scaleY));
+		return resize(img, width, height);
+	}
+
+	/**
+	 * Returns the image resized to width x height.
+	 */
+	public BufferedImage resize(BufferedImage img, int width, int height) {
+		if (pyramid) {
+			while (img.getWidth() >= width * PYRAMID_FACTOR || img.getHeight() >= height * PYRAMID_FACTOR) {
+				int w = (img.getWidth() >= width * PYRAMID_FACTOR) ? img.getWidth() / 2 : img.getWidth();
+				int h = (img.getHeight() >= height * PYRAMID_FACTOR) ? img.getHeight() / 2 : img.getHeight();
+				img = resizeImage(img, w, h, Filter.AREA);
+			}
+		}
+		return resizeImage(img, width, height, filter);
+	}
+
+	private static BufferedImage resizeImage(BufferedImage img, int width, int height, Filter filter) {
+		ColorModel cm = img.getColorModel();
+		WritableRaster raster = OffHeapRasters.createCompatibleWritableRaster(cm, width, height);
+		int alphaBand = cm.hasAlpha() ? cm.getNumComponents() - 1 : -1;
+		resize(img.getRaster(), raster, filter, alphaBand, alphaBand >= 0 && !cm.isAlphaPremultiplied());
+		return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Resizes src into dst with the filter. alphaBand is the index of the
+	 * alpha band or -1, if premultiply is true the color bands are weighted by
+	 * alpha.
+	 */
+	public static void resize(Raster src, WritableRaster dst, Filter filter, int alphaBand, boolean premultiply) {
+		if (src.getNumBands() != dst.getNumBands()) {
+			throw new IllegalArgumentException("Rasters do not match: " + src + " " + dst);
+		}
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.SCALE);
+		Weights xWeights = new Weights(src.getWidth(), dst.getWidth(), filter);
+		Weights yWeights = new Weights(src.getHeight(), dst.getHeight(), filter);
+		BandTask task = new BandTask(src, dst, xWeights, yWeights, alphaBand, premultiply && alphaBand >= 0);
+		if ((long) dst.getWidth() * dst.getHeight() * dst.getNumBands() >= PARALLEL_THRESHOLD) {
+			ParallelRows.forEachBand(dst.getHeight(), MIN_BAND_ROWS, task);
+		} else {
+			task.run(0, dst.getHeight());
+		}
+		timer.stop(dst);
+	}
+
+	/**
+	 * Normalized filter weights for one axis. Output pixel i is the sum of the
+	 * source pixels start[i] .. start[i] + count[i] - 1 times
+	 * weights[i * maxCount + k].
+	 */
+	static final class Weights {
+		final int[] start;
+		final int[] count;
+		final float[] weights;
+		final int maxCount;
+
+		Weights(int srcSize, int dstSize, Filter filter) {
+			double scale = (double) dstSize / srcSize;
+			// widen the filter for reductions
+			double filterScale = Math.max(1, 1 / scale);
+			double support = filter.support * filterScale;
+			this.maxCount = (int) Math.ceil(2 * support) + 2;
+			this.start = new int[dstSize];
+			this.count = new int[dstSize];
+			this.weights = new float[dstSize * maxCount];
+			double[] w = new double[maxCount];
+			for (int i = 0; i < dstSize; ++i) {
+				double center = (i + 0.5) / scale;
+				int min = Math.max(0, (int) Math.floor(center - support));
+				int max = Math.min(srcSize, (int) Math.ceil(center + support));
+				int n = 0;
+				double sum = 0;
+				for (int s = min; s < max && n < maxCount; ++s) {
+					if (filter == Filter.AREA) {
+						// overlap of the source pixel with the output pixel
+						double lo = Math.max(s, center - support);
+						double hi = Math.min(s + 1, center + support);
+						w[n] = Math.max(0, hi - lo);
+					} else {
+						w[n] = filter.weight((s + 0.5 - center) / filterScale);
+					}
+					sum += w[n++];
+				}
+				if (sum == 0) {
+					// can't happen with these filters, but keep the nearest pixel
+					min = Math.min(srcSize - 1, Math.max(0, (int) center));
+					w[0] = sum = 1;
+					n = 1;
+				}
+				// drop zero weights at the ends
+				int first = 0;
+				while (w[first] == 0) {
+					++first;
+				}
+				while (w[n - 1] == 0) {
+					--n;
+				}
+				start[i] = min + first;
+				count[i] = n - first;
+				for (int k = first; k < n; ++k) {
+					weights[i * maxCount + k - first] = (float) (w[k] / sum);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resizes a band of output rows.
+	 */
+	private static final class BandTask implements ParallelRows.RowTask {
+		final Raster src;
+		final WritableRaster dst;
+		final Weights xWeights;
+		final Weights yWeights;
+		final int numBands;
+		final int alphaBand;
+		final boolean premultiply;
+		final float[] maxValues;
+
+		BandTask(Raster src, WritableRaster dst, Weights xWeights, Weights yWeights, int alphaBand,
+				boolean premultiply) {
+			this.src = src;
+			this.dst = dst;
+			this.xWeights = xWeights;
+			this.yWeights = yWeights;
+			this.numBands = src.getNumBands();
+			this.alphaBand = alphaBand;
+			this.premultiply = premultiply;
+			this.maxValues = RowAccess.getMaxValues(dst);
+		}
+
+		@Override
+		public void run(int startRow, int endRow) {
+			int nb = numBands;
+			int srcWidth = src.getWidth();
+			int dstWidth = dst.getWidth();
+			int n = dstWidth * nb;
+			int[] xs = new int[srcWidth];
+			for (int x = 0; x < srcWidth; ++x) {
+				xs[x] = x;
+			}
+			RowAccess in = new RowAccess(src);
+			RowAccess out = new RowAccess(dst);
+			float[] line = new float[srcWidth * nb];
+			// horizontally resized source rows, source row s is in ring[s % ringSize]
+			int ringSize = yWeights.maxCount;
+			float[][] ring = new float[ringSize][n];
+			float[] acc = new float[n];
+			// next source row to load
+			int next = yWeights.start[startRow];
+			for (int y = startRow; y < endRow; ++y) {
+				int s0 = yWeights.start[y];
+				int s1 = s0 + yWeights.count[y];
+				next = Math.max(next, s0);
+				for (; next < s1; ++next) {
+					in.read(next, xs, line);
+					if (premultiply) {
+						RowAccess.premultiply(line, numBands, alphaBand, maxValues[alphaBand]);
+					}
+					resizeRow(line, ring[next % ringSize]);
+				}
+				Arrays.fill(acc, 0);
+				int wo = y * yWeights.maxCount;
+				for (int s = s0; s < s1; ++s) {
+					float w = yWeights.weights[wo + s - s0];
+					float[] row = ring[s % ringSize];
+					for (int t = 0; t < n; ++t) {
+						acc[t] += row[t] * w;
+					}
+				}
+				if (premultiply) {
+					RowAccess.unpremultiply(acc, numBands, alphaBand, maxValues[alphaBand]);
+				}
+				out.write(y, 0, dstWidth, acc, maxValues);
+			}
+		}
+
+		private void resizeRow(float[] line, float[] row) {
+			int nb = numBands;
+			int maxCount = xWeights.maxCount;
+			float[] weights = xWeights.weights;
+			for (int x = 0; x < row.length / nb; ++x) {
+				int so = xWeights.start[x] * nb;
+				int count = xWeights.count[x];
+				int wo = x * maxCount;
+				for (int b = 0; b < nb; ++b) {
+					float sum = 0;
+					for (int k = 0, o = so + b; k < count; ++k, o += nb) {
+						sum += line[o] * weights[wo + k];
+					}
+					row[x * nb + b] = sum;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Access to rows of a raster as float samples for the filters, directly on
+ * the bank array of 8 and 16 bit PixelInterleavedSampleModel rasters and with
+ * getPixels/setPixels otherwise. For off heap rasters byteData or shortData
+ * is a copy of the current row.
+ */
+final class RowAccess {
+	final Raster raster;
+	final int numBands;
+	final byte[] byteData;
+	final short[] shortData;
+	final int base, scanlineStride, pixelStride;
+	final int[] bandOffsets;
+	int[] pixels;
+	/** the off heap buffer or null */
+	final OffHeapDataBuffer offHeap;
+	final int offHeapBank, offHeapBase, offHeapStride;
+	/** samples from the first to the last sample of a pixel */
+	final int pixelSpan;
+
+	RowAccess(Raster raster) {
+		this.raster = raster;
+		this.numBands = raster.getNumBands();
+		if (isInterleaved(raster)) {
+			PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+			DataBuffer db = raster.getDataBuffer();
+			int bank = sm.getBankIndices()[0];
+			this.byteData = (db instanceof DataBufferByte) ? ((DataBufferByte) db).getData(bank) : null;
+			this.shortData = (db instanceof DataBufferUShort) ? ((DataBufferUShort) db).getData(bank) : null;
+			this.base = BitDepthReducer.getBaseOffset(raster);
+			this.scanlineStride = sm.getScanlineStride();
+			this.pixelStride = sm.getPixelStride();
+			this.bandOffsets = sm.getBandOffsets();
+			this.offHeap = null;
+			this.offHeapBank = 0;
+			this.offHeapBase = 0;
+			this.offHeapStride = 0;
+			this.pixelSpan = 0;
+		} else if (OffHeapRasters.isInterleaved(raster)) {
+			PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+			int span = OffHeapRasters.getRowSpan(raster);
+			int minOffset = span;
+			for (int offset : sm.getBandOffsets()) {
+				minOffset = Math.min(minOffset, offset);
+			}
+			this.offHeap = (OffHeapDataBuffer) raster.getDataBuffer();
+			this.offHeapBank = sm.getBankIndices()[0];
+			this.offHeapBase = BitDepthReducer.getBaseOffset(raster) + minOffset;
+			this.offHeapStride = sm.getScanlineStride();
+			this.byteData = (offHeap.getDataType() == DataBuffer.TYPE_BYTE) ? new byte[span] : null;
+			this.shortData = (offHeap.getDataType() == DataBuffer.TYPE_USHORT) ? new short[span] : null;
+			// the row copy starts with the first sample
+			this.base = -minOffset;
+			this.scanlineStride = 0;
+			this.pixelStride = sm.getPixelStride();
+			this.bandOffsets = sm.getBandOffsets();
+			this.pixelSpan = span - (raster.getWidth() - 1) * pixelStride;
+		} else {
+			this.offHeap = null;
+			this.offHeapBank = 0;
+			this.offHeapBase = 0;
+			this.offHeapStride = 0;
+			this.pixelSpan = 0;
+			this.byteData = null;
+			this.shortData = null;
+			this.base = 0;
+			this.scanlineStride = 0;
+			this.pixelStride = 0;
+			this.bandOffsets = null;
+		}
+	}
+
+	/**
+	 * Returns the index of the first pixel of row y in byteData or shortData,
+	 * off heap rows are copied there first.
+	 */
+	int getRowOffset(int y) {
+		if (offHeap != null) {
+			copyRow(y, 0, (byteData != null) ? byteData.length : shortData.length, true);
+		}
+		return base + y * scanlineStride;
+	}
+
+	/**
+	 * Copies len samples from start of the off heap row y into the row copy or
+	 * back.
+	 */
+	private void copyRow(int y, int start, int len, boolean toCopy) {
+		int pos = offHeapBase + y * offHeapStride + start;
+		if (byteData != null) {
+			if (toCopy) {
+				offHeap.getElems(offHeapBank, pos, byteData, start, len);
+			} else {
+				offHeap.setElems(offHeapBank, pos, byteData, start, len);
+			}
+		} else if (toCopy) {
+			offHeap.getElems(offHeapBank, pos, shortData, start, len);
+		} else {
+			offHeap.setElems(offHeapBank, pos, shortData, start, len);
+		}
+	}
+
+	/**
+	 * Reads the pixels at columns xs of row y into line.
+	 */
+	void read(int y, int[] xs, float[] line) {
+		int nb = numBands;
+		int rowBase = (byteData != null || shortData != null) ? getRowOffset(y) : 0;
+		if (shortData != null) {
+			for (int p = 0; p < xs.length; ++p) {
+				int o = rowBase + xs[p] * pixelStride;
+				for (int b = 0; b < nb; ++b) {
+					line[p * nb + b] = shortData[o + bandOffsets[b]] & 0xffff;
+				}
+			}
+		} else if (byteData != null) {
+			for (int p = 0; p < xs.length; ++p) {
+				int o = rowBase + xs[p] * pixelStride;
+				for (int b = 0; b < nb; ++b) {
+					line[p * nb + b] = byteData[o + bandOffsets[b]] & 0xff;
+				}
+			}
+		} else {
+			pixels = raster.getPixels(raster.getMinX(), raster.getMinY() + y, raster.getWidth(), 1, pixels);
+			for (int p = 0; p < xs.length; ++p) {
+				for (int b = 0; b < nb; ++b) {
+					line[p * nb + b] = pixels[xs[p] * nb + b];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the rounded and clamped samples of row y starting at column x.
+	 */
+	void write(int y, int x, int numPixels, float[] samples, float[] maxValues) {
+		int nb = numBands;
+		int n = numPixels * nb;
+		int o = base + y * scanlineStride + x * pixelStride;
+		if (offHeap != null) {
+			// keeps the samples of other bands between the pixels
+			copyRow(y, x * pixelStride, (numPixels - 1) * pixelStride + pixelSpan, true);
+		}
+		if (shortData != null) {
+			for (int p = 0; p < numPixels; ++p, o += pixelStride) {
+				for (int b = 0; b < nb; ++b) {
+					shortData[o + bandOffsets[b]] = (short) clamp(samples[p * nb + b], maxValues[b]);
+				}
+			}
+		} else if (byteData != null) {
+			for (int p = 0; p < numPixels; ++p, o += pixelStride) {
+				for (int b = 0; b < nb; ++b) {
+					byteData[o + bandOffsets[b]] = (byte) clamp(samples[p * nb + b], maxValues[b]);
+				}
+			}
+		} else {
+			if (pixels == null || pixels.length < n) {
+				pixels = new int[n];
+			}
+			for (int i = 0; i < n; ++i) {
+				pixels[i] = clamp(samples[i], maxValues[i % nb]);
+			}
+			((WritableRaster) raster).setPixels(raster.getMinX() + x, raster.getMinY() + y, numPixels, 1, pixels);
+		}
+		if (offHeap != null) {
+			copyRow(y, x * pixelStride, (numPixels - 1) * pixelStride + pixelSpan, false);
+		}
+	}
+
+	private static int clamp(float v, float max) {
+		return (v <= 0) ? 0 : (v >= max) ? (int) max : (int) (v + 0.5f);
+	}
+
+	/**
+	 * Multiplies the color samples of a line of pixels by alpha.
+	 */
+	static void premultiply(float[] line, int numBands, int alphaBand, float maxAlpha) {
+		SampleKernels.get().premultiply(line, numBands, alphaBand, maxAlpha);
+	}
+
+	/**
+	 * Divides the color samples of a line of pixels by alpha.
+	 */
+	static void unpremultiply(float[] line, int numBands, int alphaBand, float maxAlpha) {
+		SampleKernels.get().unpremultiply(line, numBands, alphaBand, maxAlpha);
+	}
+
+	/**
+	 * Returns the maximum sample value of every band.
+	 */
+	static float[] getMaxValues(Raster raster) {
+		float[] maxValues = new float[raster.getNumBands()];
+		for (int b = 0; b < maxValues.length; ++b) {
+			maxValues[b] = (1 << raster.getSampleModel().getSampleSize(b)) - 1;
+		}
+		return maxValues;
+	}
+
+	static boolean isInterleaved(Raster raster) {
+		DataBuffer db = raster.getDataBuffer();
+		return raster.getSampleModel() instanceof PixelInterleavedSampleModel
+				&& (db instanceof DataBufferByte || db instanceof DataBufferUShort);
+	}
+}
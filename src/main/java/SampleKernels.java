@@ -0,0 +1,149 @@
+import java.lang.reflect.InvocationTargetException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The innermost primitive loops of the conversions: 16 to 8 bit reduction,
+ * 3x3 color matrix, alpha premultiplication and packing of RGB samples into
+ * TYPE_INT_RGB pixels.
+ *
+ * This class has the scalar Java 8 loops. The multi-release jar has a
+ * VectorKernels subclass for Java 17 and later with SIMD versions using the
+ * incubating Vector API, which is used when the JVM runs with --add-modules
+ * jdk.incubator.vector and imaging.vector isn't false. All implementations
+ * give the same results.
+ */
+class SampleKernels {
+
+	static Logger logger = Logger.getLogger(SampleKernels.class.getName());
+
+	private static final SampleKernels scalar = new SampleKernels();
+	/** why the vector kernels are not available, set by loadVectorKernels() */
+	private static Throwable vectorError;
+	private static final SampleKernels vector = loadVectorKernels();
+	private static final SampleKernels shared = (vector != null
+			&& !"false".equals(System.getProperty("imaging.vector"))) ? vector : scalar;
+
+	SampleKernels() {
+	}
+
+	/**
+	 * Returns the kernels used by the conversions.
+	 */
+	static SampleKernels get() {
+		return shared;
+	}
+
+	static SampleKernels getScalar() {
+		return scalar;
+	}
+
+	/**
+	 * Returns the Vector API kernels, null if they are not available.
+	 */
+	static SampleKernels getVector() {
+		return vector;
+	}
+
+	/**
+	 * Returns why the Vector API kernels are not available, e.g. an
+	 * UnsupportedOperationException if the vectors are too small.
+	 */
+	static Throwable getVectorError() {
+		return vectorError;
+	}
+
+	private static SampleKernels loadVectorKernels() {
+		try {
+			// only in META-INF/versions/17 of the jar
+			return (SampleKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			// the exception of the constructor
+			vectorError = (e instanceof InvocationTargetException) ? e.getCause() : e;
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Vector API kernels not available: " + vectorError);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Keeps the upper 8 bits of len contiguous samples.
+	 */
+	void truncate(short[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		for (int i = 0; i < len; ++i) {
+			dst[dstPos + i] = (byte) (src[srcPos + i] >> 8);
+		}
+	}
+
+	/**
+	 * Rounds len contiguous samples to the nearest 8 bit value.
+	 */
+	void round(short[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		for (int i = 0; i < len; ++i) {
+			dst[dstPos + i] = (byte) (((src[srcPos + i] & 0xffff) * 255 + 32895) >>> 16);
+		}
+	}
+
+	/**
+	 * Multiplies len colors in the planes r, g and b with the 3x3 row major
+	 * matrix m in place.
+	 */
+	void applyMatrix(float[] m, float[] r, float[] g, float[] b, int len) {
+		final float m00 = m[0], m01 = m[1], m02 = m[2];
+		final float m10 = m[3], m11 = m[4], m12 = m[5];
+		final float m20 = m[6], m21 = m[7], m22 = m[8];
+		for (int i = 0; i < len; ++i) {
+			float vr = r[i], vg = g[i], vb = b[i];
+			r[i] = m00 * vr + m01 * vg + m02 * vb;
+			g[i] = m10 * vr + m11 * vg + m12 * vb;
+			b[i] = m20 * vr + m21 * vg + m22 * vb;
+		}
+	}
+
+	/**
+	 * Multiplies the color samples of a line of pixels by alpha.
+	 */
+	void premultiply(float[] line, int numBands, int alphaBand, float maxAlpha) {
+		float scale = 1 / maxAlpha;
+		for (int o = 0; o < line.length; o += numBands) {
+			float a = line[o + alphaBand] * scale;
+			for (int b = 0; b < numBands; ++b) {
+				if (b != alphaBand) {
+					line[o + b] *= a;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Divides the color samples of a line of pixels by alpha.
+	 */
+	void unpremultiply(float[] line, int numBands, int alphaBand, float maxAlpha) {
+		for (int o = 0; o < line.length; o += numBands) {
+			float a = line[o + alphaBand];
+			float scale = (a > 0) ? maxAlpha / a : 0;
+			for (int b = 0; b < numBands; ++b) {
+				if (b != alphaBand) {
+					line[o + b] *= scale;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Packs len pixels of interleaved 8 bit samples with the red, green and
+	 * blue samples at bandOffsets into 0xRRGGBB ints.
+	 */
+	void packRgb(byte[] src, int srcPos, int pixelStride, int[] bandOffsets, int[] dst, int dstPos, int len) {
+		final int or = bandOffsets[0], og = bandOffsets[1], ob = bandOffsets[2];
+		for (int i = 0, p = srcPos; i < len; ++i, p += pixelStride) {
+			dst[dstPos + i] = (src[p + or] & 0xff) << 16 | (src[p + og] & 0xff) << 8 | (src[p + ob] & 0xff);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SampleKernels[scalar]";
+	}
+}
@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Compares the results of the Vector API kernels with the scalar kernels and
+ * exits with status 1 if they differ.
+ *
+ * The samples are random, including the extreme values and transparent
+ * pixels. Every kernel runs with all lengths up to MAX_LENGTH and with offsets,
+ * so every vector loop runs with every tail length. The arrays end with the
+ * last sample so reads beyond it fail.
+ *
+ * The vector kernels are only loaded from the Java 17 layer and with the
+ * jdk.incubator.vector module, e.g.
+ *
+ * java --add-modules jdk.incubator.vector -cp target/java-imaging-test-1.0-SNAPSHOT.jar SampleKernelsCheck
+ *
+ * The java17 build profile runs it in the test phase with the preferred and
+ * with 256 bit vectors. It is skipped if the CPU has no 256 bit vectors.
+ */
+public class SampleKernelsCheck {
+
+	static Logger logger = Logger.getLogger(SampleKernelsCheck.class.getName());
+
+	/** more than 4 vectors of 512 bits of shorts */
+	public static final int MAX_LENGTH = 150;
+
+	/** a length with many vectors */
+	private static final int LONG_LENGTH = 10007;
+
+	/** red, green and blue offsets of RGB, BGR, RGBA and BGRA pixels */
+	private static final int[][] BAND_OFFSETS = { { 0, 1, 2 }, { 2, 1, 0 }, { 0, 1, 2, 3 }, { 2, 1, 0, 3 } };
+
+	private static final float[] MATRIX = { 0.8225f, 0.1774f, 0f, 0.0332f, 0.9669f, 0f, 0.0171f, 0.0724f, 0.9108f };
+
+	/**
+	 * Returns the kernels and parameters where actual gives other results than
+	 * expected, empty if all results are identical.
+	 */
+	public static List<String> compare(SampleKernels expected, SampleKernels actual, long seed) {
+		Random random = new Random(seed);
+		List<String> differences = new ArrayList<String>();
+		for (int srcPos = 0; srcPos < 4; srcPos += 3) {
+			for (int dstPos = 0; dstPos < 2; ++dstPos) {
+				for (int len = 0; len <= MAX_LENGTH + 1; ++len) {
+					// the last length is the long one
+					int n = (len <= MAX_LENGTH) ? len : LONG_LENGTH;
+					String params = " len=" + n + " srcPos=" + srcPos + " dstPos=" + dstPos;
+					short[] src = randomShorts(random, srcPos + n);
+					if (!sameReduction(expected, actual, src, srcPos, dstPos, n, false)) {
+						differences.add("truncate" + params);
+					}
+					if (!sameReduction(expected, actual, src, srcPos, dstPos, n, true)) {
+						differences.add("round" + params);
+					}
+				}
+			}
+		}
+		for (int len = 0; len <= MAX_LENGTH + 1; ++len) {
+			int n = (len <= MAX_LENGTH) ? len : LONG_LENGTH;
+			if (!sameMatrix(expected, actual, random, n)) {
+				differences.add("applyMatrix len=" + n);
+			}
+		}
+		for (int[] bandOffsets : BAND_OFFSETS) {
+			for (int srcPos = 0; srcPos < 2; ++srcPos) {
+				for (int len = 0; len <= MAX_LENGTH + 1; ++len) {
+					int n = (len <= MAX_LENGTH) ? len : LONG_LENGTH;
+					if (!sameRgb(expected, actual, random, bandOffsets, srcPos, n)) {
+						differences.add("packRgb bandOffsets=" + Arrays.toString(bandOffsets) + " len=" + n + " srcPos="
+								+ srcPos);
+					}
+				}
+			}
+		}
+		for (int numBands = 2; numBands <= 4; ++numBands) {
+			for (int alphaBand = 0; alphaBand < numBands; alphaBand += numBands - 1) {
+				for (int pixels = 0; pixels <= MAX_LENGTH / 2 + 1; ++pixels) {
+					int n = (pixels <= MAX_LENGTH / 2) ? pixels : LONG_LENGTH;
+					String params = " bands=" + numBands + " alpha=" + alphaBand + " pixels=" + n;
+					String difference = compareAlpha(expected, actual, random, numBands, alphaBand, n);
+					if (difference != null) {
+						differences.add(difference + params);
+					}
+				}
+			}
+		}
+		return differences;
+	}
+
+	private static short[] randomShorts(Random random, int len) {
+		short[] samples = new short[len];
+		for (int i = 0; i < len; ++i) {
+			int r = random.nextInt(20);
+			samples[i] = (short) ((r == 0) ? 0 : (r == 1) ? 0xffff : random.nextInt(0x10000));
+		}
+		return samples;
+	}
+
+	private static boolean sameReduction(SampleKernels expected, SampleKernels actual, short[] src, int srcPos,
+			int dstPos, int len, boolean round) {
+		byte[] dst1 = new byte[dstPos + len];
+		byte[] dst2 = new byte[dstPos + len];
+		// the samples before dstPos stay
+		Arrays.fill(dst1, (byte) 0x5a);
+		Arrays.fill(dst2, (byte) 0x5a);
+		try {
+			if (round) {
+				expected.round(src, srcPos, dst1, dstPos, len);
+				actual.round(src, srcPos, dst2, dstPos, len);
+			} else {
+				expected.truncate(src, srcPos, dst1, dstPos, len);
+				actual.truncate(src, srcPos, dst2, dstPos, len);
+			}
+		} catch (RuntimeException e) {
+			logger.warning("round=" + round + " len=" + len + ": " + e);
+			return false;
+		}
+		return Arrays.equals(dst1, dst2);
+	}
+
+	private static boolean sameRgb(SampleKernels expected, SampleKernels actual, Random random, int[] bandOffsets,
+			int srcPos, int len) {
+		int pixelStride = bandOffsets.length;
+		byte[] src = new byte[srcPos + len * pixelStride];
+		random.nextBytes(src);
+		int[] dst1 = new int[1 + len];
+		int[] dst2 = new int[1 + len];
+		try {
+			expected.packRgb(src, srcPos, pixelStride, bandOffsets, dst1, 1, len);
+			actual.packRgb(src, srcPos, pixelStride, bandOffsets, dst2, 1, len);
+		} catch (RuntimeException e) {
+			logger.warning("packRgb len=" + len + ": " + e);
+			return false;
+		}
+		return Arrays.equals(dst1, dst2);
+	}
+
+	private static boolean sameMatrix(SampleKernels expected, SampleKernels actual, Random random, int len) {
+		float[][] planes1 = new float[3][len];
+		for (float[] plane : planes1) {
+			for (int i = 0; i < len; ++i) {
+				plane[i] = random.nextFloat();
+			}
+		}
+		float[][] planes2 = { planes1[0].clone(), planes1[1].clone(), planes1[2].clone() };
+		try {
+			expected.applyMatrix(MATRIX, planes1[0], planes1[1], planes1[2], len);
+			actual.applyMatrix(MATRIX, planes2[0], planes2[1], planes2[2], len);
+		} catch (RuntimeException e) {
+			logger.warning("applyMatrix len=" + len + ": " + e);
+			return false;
+		}
+		return Arrays.deepEquals(planes1, planes2);
+	}
+
+	/**
+	 * Compares premultiply and unpremultiply of the premultiplied line, returns
+	 * the kernel that differs or null.
+	 */
+	private static String compareAlpha(SampleKernels expected, SampleKernels actual, Random random, int numBands,
+			int alphaBand, int pixels) {
+		float maxAlpha = 65535f;
+		float[] line1 = new float[pixels * numBands];
+		for (int i = 0; i < line1.length; ++i) {
+			int r = random.nextInt(10);
+			// some transparent and opaque pixels
+			line1[i] = (r == 0) ? 0 : (r == 1) ? maxAlpha : random.nextInt(0x10000);
+		}
+		float[] line2 = line1.clone();
+		try {
+			expected.premultiply(line1, numBands, alphaBand, maxAlpha);
+			actual.premultiply(line2, numBands, alphaBand, maxAlpha);
+			if (!Arrays.equals(line1, line2)) {
+				return "premultiply";
+			}
+			expected.unpremultiply(line1, numBands, alphaBand, maxAlpha);
+			actual.unpremultiply(line2, numBands, alphaBand, maxAlpha);
+			if (!Arrays.equals(line1, line2)) {
+				return "unpremultiply";
+			}
+		} catch (RuntimeException e) {
+			logger.warning("alpha kernels: " + e);
+			return "premultiply/unpremultiply";
+		}
+		return null;
+	}
+
+	public static void main(String[] args) {
+		SampleKernels vector = SampleKernels.getVector();
+		if (vector == null) {
+			Throwable error = SampleKernels.getVectorError();
+			if (error instanceof UnsupportedOperationException) {
+				logger.info("Skipped: " + error.getMessage());
+				return;
+			}
+			logger.severe("Vector API kernels not available: " + error
+					+ " (run the jar on Java 17+ with --add-modules jdk.incubator.vector)");
+			System.exit(1);
+		}
+		List<String> differences = compare(SampleKernels.getScalar(), vector, 42);
+		if (!differences.isEmpty()) {
+			logger.severe(vector + " results differ from the scalar kernels in " + differences);
+			System.exit(1);
+		}
+		logger.info(vector + " results are identical to the scalar kernels");
+	}
+}
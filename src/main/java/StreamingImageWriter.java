@@ -0,0 +1,519 @@
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Writes an image with ImageIO on a background thread while its rows are
+ * still being produced.
+ *
+ * The rows are handed over with write() in order from top to bottom. The
+ * ImageWriter gets a RenderedImage that waits for the rows it asks for, so
+ * TIFF strips or tiles and PNG rows are encoded and written as soon as their
+ * rows are there. Only the rows of the current strip or row of tiles are kept;
+ * write() blocks when the writer falls behind by more than the buffer size.
+ *
+ * Compression and TIFF tiling are set with Options.
+ */
+public class StreamingImageWriter {
+
+	static Logger logger = Logger.getLogger(StreamingImageWriter.class.getName());
+
+	/** default number of rows buffered ahead of the writer */
+	public static final int DEFAULT_BUFFER_ROWS = 256;
+
+	private static ExecutorService ioExecutor;
+
+	/**
+	 * Options for writing. The defaults are those of the ImageWriter.
+	 */
+	public static class Options {
+		/** compression type like "Deflate", "LZW" or "None", null for the default */
+		String compression = null;
+		/** compression quality 0..1, negative for the default */
+		float compressionQuality = -1f;
+		/** tile size, 0 for strips */
+		int tileWidth = 0;
+		int tileHeight = 0;
+		/** number of rows buffered ahead of the writer */
+		int bufferRows = DEFAULT_BUFFER_ROWS;
+
+		public Options compression(String compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		public Options compressionQuality(float compressionQuality) {
+			this.compressionQuality = compressionQuality;
+			return this;
+		}
+
+		public Options tiling(int tileWidth, int tileHeight) {
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+			return this;
+		}
+
+		public Options bufferRows(int bufferRows) {
+			this.bufferRows = bufferRows;
+			return this;
+		}
+	}
+
+	private final String format;
+	private final File file;
+	private final Options options;
+	private StripImage image;
+	private Future<File> result;
+
+	public StreamingImageWriter(String format, File file, Options options) {
+		this.format = format;
+		this.file = file;
+		this.options = options;
+	}
+
+	/**
+	 * Returns the shared pool of daemon threads for writing.
+	 */
+	static synchronized ExecutorService getIoExecutor() {
+		if (ioExecutor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			ioExecutor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "image-writer-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return ioExecutor;
+	}
+
+	/**
+	 * Starts writing an image of the given format on the background thread.
+	 */
+	public synchronized void start(ColorModel cm, int width, int height) {
+		if (image != null) {
+			throw new IllegalStateException("Writer already started");
+		}
+		int bandHeight = (options.tileHeight > 0) ? options.tileHeight : 1;
+		image = new StripImage(cm, width, height, bandHeight, Math.max(1, options.bufferRows));
+		final StripImage img = image;
+		result = getIoExecutor().submit(() -> {
+			try {
+				return writeImage(img, format, file, options);
+			} catch (IOException | RuntimeException | Error e) {
+				// stop the producer
+				img.abort(e);
+				throw e;
+			}
+		});
+	}
+
+	/**
+	 * Adds the next rows starting at row y. Blocks while the writer is too far
+	 * behind.
+	 */
+	public void write(Raster rows, int y) throws IOException {
+		if (image == null) {
+			throw new IllegalStateException("Writer not started");
+		}
+		image.put(rows, y);
+	}
+
+	/**
+	 * Returns the result of the background write, which completes when the
+	 * rest of the rows are written.
+	 */
+	public Future<File> finish() {
+		if (image == null) {
+			throw new IllegalStateException("Writer not started");
+		}
+		return result;
+	}
+
+	/**
+	 * Stops writing after an error of the producer.
+	 */
+	public void abort(Throwable cause) {
+		if (image != null) {
+			image.abort(cause);
+		}
+	}
+
+	/**
+	 * Writes a complete image on the background thread.
+	 */
+	public static Future<File> writeAsync(final RenderedImage img, final String format, final File file,
+			final Options options) {
+		return getIoExecutor().submit((Callable<File>) () -> writeImage(img, format, file, options));
+	}
+
+	/**
+	 * Writes the image with the ImageWriter for the format and the write options.
+	 */
+	static File writeImage(RenderedImage img, String format, File file, Options options) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext()) {
+			throw new IOException("Can't find Writer for format " + format + "!");
+		}
+		ImageWriter writer = writers.next();
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.ENCODE);
+		long start = System.nanoTime();
+		boolean done = false;
+		try {
+			ImageWriteParam param = getWriteParam(writer, options);
+			// FileImageOutputStream doesn't truncate existing files
+			file.delete();
+			try (ImageOutputStream ostream = new FileImageOutputStream(file)) {
+				writer.setOutput(ostream);
+				writer.write(null, new IIOImage(img, null, null), param);
+			}
+			done = true;
+		} finally {
+			writer.dispose();
+			if (!done) {
+				file.delete();
+			}
+		}
+		timer.stop(img, file.length());
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Wrote " + file + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+		}
+		return file;
+	}
+
+	/**
+	 * Writes the image to the stream, e.g. an HTTP response. The encoded data
+	 * is passed on as the writer produces it, except for the parts the writer
+	 * may still seek back to (e.g. TIFF directories).
+	 */
+	public static void writeImage(RenderedImage img, String format, OutputStream out, Options options)
+			throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext()) {
+			throw new IOException("Can't find Writer for format " + format + "!");
+		}
+		ImageWriter writer = writers.next();
+		ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.ENCODE);
+		long length;
+		try (ImageOutputStream ostream = new MemoryCacheImageOutputStream(out)) {
+			writer.setOutput(ostream);
+			writer.write(null, new IIOImage(img, null, null), getWriteParam(writer, options));
+			length = ostream.length();
+		} finally {
+			writer.dispose();
+		}
+		timer.stop(img, length);
+	}
+
+	static ImageWriteParam getWriteParam(ImageWriter writer, Options options) {
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (param.canWriteProgressive()) {
+			// rows have to be written in order
+			param.setProgressiveMode(ImageWriteParam.MODE_DISABLED);
+		}
+		if (options.compression != null || options.compressionQuality >= 0) {
+			if (!param.canWriteCompressed()) {
+				throw new IllegalArgumentException("Writer " + writer + " does not support compression");
+			}
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			String[] types = param.getCompressionTypes();
+			String type = options.compression;
+			if (type == null && types != null && types.length > 0) {
+				type = types[0];
+			}
+			if (type != null && !type.equalsIgnoreCase("None")) {
+				param.setCompressionType(getCompressionType(types, type));
+				if (options.compressionQuality >= 0) {
+					param.setCompressionQuality(options.compressionQuality);
+				}
+			} else if (type != null) {
+				param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+			}
+		}
+		if (options.tileWidth > 0 && options.tileHeight > 0) {
+			if (!param.canWriteTiles()) {
+				throw new IllegalArgumentException("Writer " + writer + " does not support tiles");
+			}
+			param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setTiling(options.tileWidth, options.tileHeight, 0, 0);
+		}
+		return param;
+	}
+
+	private static String getCompressionType(String[] types, String type) {
+		if (types != null) {
+			for (String t : types) {
+				if (t.equalsIgnoreCase(type)) {
+					return t;
+				}
+			}
+		}
+		throw new IllegalArgumentException("Unsupported compression type " + type);
+	}
+
+	/**
+	 * RenderedImage that hands out the rows put into it, waiting for rows that
+	 * have not been put yet. Rows above the current band of the last request
+	 * are dropped, so requests have to go from top to bottom. The tiles are
+	 * full width strips of bandHeight rows, so writers that get the image by
+	 * tiles stream it too.
+	 */
+	static class StripImage implements RenderedImage {
+		final ColorModel cm;
+		final SampleModel sm;
+		final int width;
+		final int height;
+		final int bandHeight;
+		final int bufferRows;
+		final ArrayDeque<Strip> strips = new ArrayDeque<Strip>();
+		/** free strip buffers for reuse */
+		final ArrayDeque<WritableRaster> free = new ArrayDeque<WritableRaster>();
+		/** rows up to this row have been put */
+		int availableRows = 0;
+		int bufferedRows = 0;
+		/** the writer waits for the rows up to this row, 0 if it doesn't wait */
+		int writerWaitingFor = 0;
+		Throwable failure;
+
+		StripImage(ColorModel cm, int width, int height, int bandHeight, int bufferRows) {
+			this.cm = cm;
+			this.sm = cm.createCompatibleSampleModel(width, height);
+			this.width = width;
+			this.height = height;
+			this.bandHeight = bandHeight;
+			this.bufferRows = bufferRows;
+		}
+
+		synchronized void put(Raster rows, int y) throws IOException {
+			if (y != availableRows) {
+				throw new IllegalArgumentException("Rows must be written in order, expected row " + availableRows
+						+ " got " + y);
+			}
+			int n = rows.getHeight();
+			try {
+				while (failure == null && bufferedRows > 0 && bufferedRows + n > bufferRows
+						&& availableRows >= writerWaitingFor) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing", e);
+			}
+			if (failure != null) {
+				throw new IOException("Writing failed: " + failure.getMessage(), failure);
+			}
+			WritableRaster raster = free.poll();
+			if (raster == null || raster.getHeight() != n) {
+				raster = cm.createCompatibleWritableRaster(width, n);
+			}
+			raster.setDataElements(0, 0, rows);
+			strips.add(new Strip(raster, y));
+			availableRows += n;
+			bufferedRows += n;
+			notifyAll();
+		}
+
+		synchronized void abort(Throwable cause) {
+			if (failure == null) {
+				failure = cause;
+			}
+			notifyAll();
+		}
+
+		@Override
+		public synchronized Raster getData(Rectangle rect) {
+			Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+			int endRow = r.y + r.height;
+			try {
+				while (availableRows < endRow && failure == null) {
+					writerWaitingFor = endRow;
+					notifyAll();
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for rows", e);
+			} finally {
+				writerWaitingFor = 0;
+			}
+			if (availableRows < endRow) {
+				throw new IllegalStateException("Image rows not available", failure);
+			}
+			// drop strips above the current band
+			int keepRow = r.y - r.y % bandHeight;
+			while (!strips.isEmpty() && strips.peek().endRow() <= keepRow) {
+				Strip s = strips.poll();
+				bufferedRows -= s.raster.getHeight();
+				if (free.size() < 4) {
+					free.add(s.raster);
+				}
+				notifyAll();
+			}
+			WritableRaster dest = null;
+			for (Strip s : strips) {
+				int y0 = Math.max(r.y, s.y);
+				int y1 = Math.min(endRow, s.endRow());
+				if (y0 >= y1) {
+					continue;
+				}
+				if (y0 == r.y && y1 == endRow) {
+					// all rows in one strip, the writer doesn't change them
+					return s.raster.createChild(r.x, r.y - s.y, r.width, r.height, r.x, r.y, null);
+				}
+				if (dest == null) {
+					dest = cm.createCompatibleWritableRaster(r.width, r.height);
+				}
+				dest.setDataElements(0, y0 - r.y, s.raster.createChild(r.x, y0 - s.y, r.width, y1 - y0, 0, 0, null));
+			}
+			if (dest == null) {
+				throw new IllegalStateException("Rows " + r.y + " to " + endRow + " were already dropped");
+			}
+			return dest.createTranslatedChild(r.x, r.y);
+		}
+
+		@Override
+		public Raster getData() {
+			return getData(new Rectangle(0, 0, width, height));
+		}
+
+		@Override
+		public Raster getTile(int tileX, int tileY) {
+			int y = tileY * bandHeight;
+			return getData(new Rectangle(0, y, width, Math.min(bandHeight, height - y)));
+		}
+
+		@Override
+		public WritableRaster copyData(WritableRaster raster) {
+			Rectangle rect = new Rectangle(0, 0, width, height);
+			if (raster == null) {
+				raster = cm.createCompatibleWritableRaster(width, height);
+			} else {
+				rect = rect.intersection(raster.getBounds());
+			}
+			raster.setDataElements(rect.x, rect.y, getData(rect));
+			return raster;
+		}
+
+		@Override
+		public Vector<RenderedImage> getSources() {
+			return null;
+		}
+
+		@Override
+		public Object getProperty(String name) {
+			return java.awt.Image.UndefinedProperty;
+		}
+
+		@Override
+		public String[] getPropertyNames() {
+			return null;
+		}
+
+		@Override
+		public ColorModel getColorModel() {
+			return cm;
+		}
+
+		@Override
+		public SampleModel getSampleModel() {
+			return sm;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public int getMinX() {
+			return 0;
+		}
+
+		@Override
+		public int getMinY() {
+			return 0;
+		}
+
+		@Override
+		public int getNumXTiles() {
+			return 1;
+		}
+
+		@Override
+		public int getNumYTiles() {
+			return (height + bandHeight - 1) / bandHeight;
+		}
+
+		@Override
+		public int getMinTileX() {
+			return 0;
+		}
+
+		@Override
+		public int getMinTileY() {
+			return 0;
+		}
+
+		@Override
+		public int getTileWidth() {
+			return width;
+		}
+
+		@Override
+		public int getTileHeight() {
+			return bandHeight;
+		}
+
+		@Override
+		public int getTileGridXOffset() {
+			return 0;
+		}
+
+		@Override
+		public int getTileGridYOffset() {
+			return 0;
+		}
+	}
+
+	private static class Strip {
+		final WritableRaster raster;
+		final int y;
+
+		Strip(WritableRaster raster, int y) {
+			this.raster = raster;
+			this.y = y;
+		}
+
+		int endRow() {
+			return y + raster.getHeight();
+		}
+	}
+}
@@ -1,5 +1,5 @@
 import java.awt.Color;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Transparency;
 import java.awt.color.ColorSpace;
@@ -11,27 +11,22 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.ColorModel;
 import java.awt.image.ComponentColorModel;
-import java.awt.image.ConvolveOp;
 import java.awt.image.DataBuffer;
 import java.awt.image.Kernel;
-import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.stream.FileImageInputStream;
 
 public class Test16BitColor {
 
@@ -50,31 +45,21 @@ public class Test16BitColor {
 
 	private static BufferedImage loadImage(String mt, String fn)
 			throws Exception, FileNotFoundException, IOException {
-		// let ImageIO choose Reader type
-		ImageReader reader = null;
-		logger.fine("getting ImageReader for type " + mt);
-		Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(mt);
-		if (readers.hasNext()) {
-			reader = readers.next();
-		} else {
-			throw new Exception("Can't find Reader to load File with mime-type " + mt + "!");
-		}
-		// set input
-		RandomAccessFile rf = new RandomAccessFile(fn, "r");
-		FileImageInputStream istream = new FileImageInputStream(rf);
-		reader.setInput(istream);
-		// read image
-		logger.fine("Loading file: " + fn);
-		logger.fine("Using reader: " + reader);
-		BufferedImage img = reader.read(0);
-		return img;
+		return ImageLoader.loadImage(mt, fn);
+	}
+
+	private static BufferedImage loadImage(String mt, String fn, ImageLoader.Options options)
+			throws Exception, FileNotFoundException, IOException {
+		return ImageLoader.loadImage(mt, fn, options);
 	}
 
     private static void writeImage(BufferedImage img, String format, String filename) {
         try {
             File file = new File(filename);
             logger.info("Writing image in format " + format + " as " + filename);
+            ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.ENCODE);
             ImageIO.write(img, format, file);
+            timer.stop(img, file.length());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -85,7 +70,7 @@ public class Test16BitColor {
         ColorModel cm = img.getColorModel();
         ColorSpace cs = cm.getColorSpace();
         if (cs instanceof ICC_ColorSpace) {
-            prof = ((ICC_ColorSpace) cs).getProfile();
+            prof = ProfileRegistry.getShared().getProfile(((ICC_ColorSpace) cs).getProfile());
         }
         return prof;
     }
@@ -97,23 +82,30 @@ public class Test16BitColor {
 		boolean isAlphaPre = inCM.isAlphaPremultiplied();
 		int[] bits = inCM.getComponentSize();
 		int transferType = inCM.getTransferType();
-		ColorSpace outCS = new ICC_ColorSpace(profile);
-		ColorModel cm = new ComponentColorModel(outCS, bits, hasAlpha, isAlphaPre, Transparency.OPAQUE,
-				transferType);
+		ColorModel cm = ProfileRegistry.getShared().getColorModel(profile, bits, hasAlpha, isAlphaPre,
+				Transparency.OPAQUE, transferType);
 		BufferedImage outBi = new BufferedImage(cm, inBi.getRaster(), isAlphaPre, null);
 		return outBi;
 	}
 
 	private static BufferedImage convertToSrgb8Bit(BufferedImage img) {
-		ColorConvertOp cco = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_sRGB), null);
-		BufferedImage bi = cco.filter(img, null);
+		ColorSpace srgbCS = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+		BufferedImage bi = MatrixShaperConverter.tryConvert(img, srgbCS);
+		if (bi == null) {
+			bi = ColorTransformCache.getShared().filterImage(img, srgbCS);
+		}
 		return bi;
 	}
 
 	private static void changeRasterToSrgb(BufferedImage img, ICC_Profile realProfile) {
 	    // method suggested by Harald K in https://stackoverflow.com/a/74873159/4912 
 		ICC_Profile srgbProf = ICC_Profile.getInstance(ColorSpace.CS_sRGB);
-		ColorConvertOp cco = new ColorConvertOp(new ICC_Profile[] {realProfile, srgbProf}, null);
+		// converts the color samples in place and skips alpha
+		new InPlaceColorConverter(realProfile, srgbProf).convert(img);
+	}
+
+	private static void changeRasterToSrgbParallel(BufferedImage img, ICC_Profile realProfile) {
+		ICC_Profile srgbProf = ICC_Profile.getInstance(ColorSpace.CS_sRGB);
 		WritableRaster colorRaster;
 		if (img.getColorModel().hasAlpha()) {
 			// use subraster with only color components 
@@ -121,14 +113,12 @@ public class Test16BitColor {
 		} else {
 			colorRaster = img.getRaster();
 		}
-		cco.filter(colorRaster, colorRaster);
+		ParallelColorConverter.getShared().filterRaster(colorRaster, realProfile, srgbProf);
 	}
 
 	private static BufferedImage convertToNonAlpha(BufferedImage img) {
-		BufferedImage bi = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-		ColorConvertOp cco = new ColorConvertOp(null);
-		BufferedImage bo = cco.filter(img, bi);
-		return bo;
+		// packed by the kernels if it is 8 bit sRGB, else with ColorConvertOp
+		return BatchRunner.toIntRgb(img);
 	}
 
     private static BufferedImage changeTo8BitDepth1(BufferedImage bi) {
@@ -169,44 +159,38 @@ public class Test16BitColor {
         // Create 8 bit color model
         ColorModel newCM = new ComponentColorModel(cm.getColorSpace(), cm.hasAlpha(), cm.isAlphaPremultiplied(),
                 cm.getTransparency(), DataBuffer.TYPE_BYTE);
-        WritableRaster newRaster = newCM.createCompatibleWritableRaster(original.getWidth(), original.getHeight());
+        WritableRaster newRaster = OffHeapRasters.createCompatibleWritableRaster(newCM, original.getWidth(),
+                original.getHeight());
         BufferedImage newImage = new BufferedImage(newCM, newRaster, newCM.isAlphaPremultiplied(), null);
 
-        // convert using setData
-        // newImage.setData(as8BitRaster(original.getRaster())); // Works
-        newRaster.setDataElements(0, 0, as8BitRaster(original.getRaster())); // Faster, requires less conversion
+        // convert directly on the bank arrays
+        BitDepthReducer.reduceTo8Bit(original.getRaster(), newRaster, false);
 
         return newImage;
     }
 
-    private static Raster as8BitRaster(WritableRaster raster) {
-        // Assumption: Raster is TYPE_USHORT (16 bit) and has
-        // PixelInterleavedSampleModel
-        PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
-
-        // We'll create a custom data buffer, that delegates to the original 16 bit
-        // buffer
-        final DataBuffer buffer = raster.getDataBuffer();
-
-        return Raster.createInterleavedRaster(new DataBuffer(DataBuffer.TYPE_BYTE, buffer.getSize()) {
-            @Override
-            public int getElem(int bank, int i) {
-                return buffer.getElem(bank, i) >>> 8; // We only need the upper 8 bits of the 16 bit sample
-            }
-
-            @Override
-            public void setElem(int bank, int i, int val) {
-                throw new UnsupportedOperationException("Raster is read only!");
-            }
-        }, raster.getWidth(), raster.getHeight(), sampleModel.getScanlineStride(), sampleModel.getPixelStride(),
-                sampleModel.getBandOffsets(), new Point());
+    private static BufferedImage changeTo8BitDepthOffHeap(BufferedImage img) {
+        ColorModel cm = img.getColorModel();
+        ColorModel newCM = new ComponentColorModel(cm.getColorSpace(), cm.hasAlpha(), cm.isAlphaPremultiplied(),
+                cm.getTransparency(), DataBuffer.TYPE_BYTE);
+        // samples in direct memory instead of a byte[] on the heap
+        WritableRaster newRaster = OffHeapRasters.createCompatibleWritableRaster(newCM, img.getWidth(),
+                img.getHeight(), OffHeapDataBuffer.Storage.DIRECT);
+        BitDepthReducer.reduceTo8Bit(img.getRaster(), newRaster, false);
+        return new BufferedImage(newCM, newRaster, newCM.isAlphaPremultiplied(), null);
+    }
+
+    private static BufferedImage changeTo8BitDepthLut(BufferedImage img) {
+        // one table lookup per sample, same result as changeTo8BitDepth
+        return DepthLut.get16To8(DepthLut.Curve.LINEAR, DepthLut.Rounding.TRUNCATE).convert(img);
     }
-    
+
     private static BufferedImage scale(BufferedImage img, float scaleX, float scaleY, boolean interpol) {
-        RenderingHints renderHint = new RenderingHints(null);
         if (interpol) {
-            renderHint.put(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            // keeps the bit depth and color space, AffineTransformOp converts to 8 bit sRGB
+            return new Resampler(Resampler.Filter.BICUBIC).scale(img, scaleX, scaleY);
         }
+        RenderingHints renderHint = new RenderingHints(null);
         //renderHint.put(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
         AffineTransformOp scaleOp = new AffineTransformOp(
                 AffineTransform.getScaleInstance(scaleX, scaleY), renderHint);
@@ -218,8 +202,9 @@ public class Test16BitColor {
         Kernel kernel = new Kernel(2, 2, new float[] { 0.25f, 0.25f, 0.25f, 0.25f });
         //RenderingHints renderHint = new RenderingHints(RenderingHints.KEY_DITHERING,
         //        RenderingHints.VALUE_DITHER_DISABLE);
-        ConvolveOp blurOp = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null);
-        img = blurOp.filter(img, null);
+        // same edges as ConvolveOp.EDGE_NO_OP, but handles 16 bit samples above 32767
+        Convolver blurOp = new Convolver(kernel).edge(Convolver.Edge.NO_OP);
+        img = blurOp.filter(img);
         return img;
     }
     
@@ -252,6 +237,11 @@ public class Test16BitColor {
 		return res;
 	}
 
+	private static void checkGamutStatistics(BufferedImage img) {
+		GamutAnalyzer.Result stats = GamutAnalyzer.analyze(img);
+		logger.info("Gamut: " + stats);
+	}
+
 	private static void checkGamut(Map<String, Integer> res) {
 		if (res.get("px1-red-raw").equals(res.get("px2-red-raw"))) {
 			// raw values are the same
@@ -265,6 +255,58 @@ public class Test16BitColor {
 		}
 	}
 
+	private static void checkSameData(BufferedImage img1, BufferedImage img2) {
+		Raster r1 = img1.getRaster();
+		Raster r2 = img2.getRaster();
+		Object row1 = null;
+		Object row2 = null;
+		int width = r1.getWidth();
+		for (int y = 0; y < r1.getHeight(); ++y) {
+			row1 = r1.getDataElements(0, y, width, 1, row1);
+			row2 = r2.getDataElements(0, y, width, 1, row2);
+			boolean same = (row1 instanceof short[]) ? Arrays.equals((short[]) row1, (short[]) row2)
+					: Arrays.equals((byte[]) row1, (byte[]) row2);
+			if (!same) {
+				logger.info("RESULT: image data differs in row " + y);
+				return;
+			}
+		}
+		logger.info("RESULT: image data is identical");
+	}
+
+	private static void checkSameRgb(BufferedImage img1, BufferedImage img2) {
+		int width = img1.getWidth();
+		int[] row1 = new int[width];
+		int[] row2 = new int[width];
+		for (int y = 0; y < img1.getHeight(); ++y) {
+			img1.getRGB(0, y, width, 1, row1, 0, width);
+			img2.getRGB(0, y, width, 1, row2, 0, width);
+			if (!Arrays.equals(row1, row2)) {
+				logger.info("RESULT: RGB data differs in row " + y);
+				return;
+			}
+		}
+		logger.info("RESULT: RGB data is identical");
+	}
+
+	/**
+	 * Compares the results of the vector and scalar kernels on random samples,
+	 * with lengths that need the scalar tails.
+	 */
+	private static void checkKernels() {
+		SampleKernels vector = SampleKernels.getVector();
+		if (vector == null) {
+			logger.info("RESULT: Vector API kernels not available (run the jar with --add-modules jdk.incubator.vector)");
+			return;
+		}
+		List<String> differs = SampleKernelsCheck.compare(SampleKernels.getScalar(), vector, 42);
+		if (differs.isEmpty()) {
+			logger.info("RESULT: " + vector + " results are identical");
+		} else {
+			logger.info("RESULT: " + vector + " results differ in " + differs);
+		}
+	}
+
 	private static void checkColorspace(BufferedImage img) {
 		ColorModel cm = img.getColorModel();
 		ColorSpace cs = cm.getColorSpace();
@@ -283,6 +325,7 @@ public class Test16BitColor {
         checkColorspace(img);
         res = getPixels(img);
         checkGamut(res);
+        checkGamutStatistics(img);
         writeImage(img, "TIFF", "output-from-dcip3-tiff16.tiff");
         logger.info("Converting to 8 bit");
         img = changeTo8BitDepth(img);
@@ -303,8 +346,45 @@ public class Test16BitColor {
         checkColorspace(img);
         res = getPixels(img);
         checkGamut(res);
+        checkGamutStatistics(img);
         writeImage(img, "TIFF", "output-from-dcip3-tiff16-srgb8.tiff");
 
+        /*
+         * DCI-P3 TIFF 16-bit depth region, thumbnail and color bands 
+         */
+        logger.info("Loading dci-p3 TIFF 16-bit region =================================");
+        img = loadImage("image/tiff", "data/dcip3-srgb-test-t16.tiff",
+                new ImageLoader.Options().sourceRegion(0, 0, 20, 20));
+        logger.info("Image size: " + img.getWidth() + "x" + img.getHeight());
+        checkColorspace(img);
+        logger.info("Loading dci-p3 TIFF 16-bit thumbnail =================================");
+        img = loadImage("image/tiff", "data/dcip3-srgb-test-t16.tiff", new ImageLoader.Options().targetSize(16, 16));
+        logger.info("Image size: " + img.getWidth() + "x" + img.getHeight());
+        checkColorspace(img);
+        logger.info("Loading dci-p3 TIFF 16-bit color bands =================================");
+        img = loadImage("image/tiff", "data/dcip3-srgb-test-t16.tiff", new ImageLoader.Options().sourceBands(0, 1, 2));
+        checkColorspace(img);
+        res = getPixels(img);
+        checkGamut(res);
+
+        /*
+         * DCI-P3 TIFF 16-bit depth to sRGB serial and parallel
+         */
+        logger.info("Loading dci-p3 TIFF 16-bit =================================");
+        img = loadImage("image/tiff", "data/dcip3-srgb-test-t16.tiff");
+        ICC_Profile profile = getProfile(img);
+        checkColorspace(img);
+        logger.info("Changing to sRGB");
+        changeRasterToSrgb(img, profile);
+        res = getPixels(img);
+        checkGamut(res);
+        BufferedImage img2 = loadImage("image/tiff", "data/dcip3-srgb-test-t16.tiff");
+        logger.info("Changing to sRGB in parallel");
+        changeRasterToSrgbParallel(img2, profile);
+        res = getPixels(img2);
+        checkGamut(res);
+        checkSameData(img, img2);
+
         /*
          * DCI-P3 TIFF 16-bit depth to scaled TIFF with profile 
          */
@@ -314,7 +394,7 @@ public class Test16BitColor {
         res = getPixels(img);
         checkGamut(res);
         logger.info("Scaling by 2x without interpolation");
-        BufferedImage img2 = scale(img, 2f, 2f, false);
+        img2 = scale(img, 2f, 2f, false);
         checkColorspace(img2);
         res = getPixels(img2);
         checkGamut(res);
@@ -341,12 +421,46 @@ public class Test16BitColor {
         res = getPixels(img2);
         //checkGamut(res);
         writeImage(img2, "TIFF", "output-from-photorgb-tiff16-8bit.tiff");
+        logger.info("Changing to 8 bit with lookup table");
+        checkSameData(img2, changeTo8BitDepthLut(img));
+        logger.info("Changing to 8 bit off heap");
+        checkSameData(img2, changeTo8BitDepthOffHeap(img));
         logger.info("Converting to sRGB 8 bit");
         img2 = convertToSrgb8Bit(img);
         checkColorspace(img2);
         res = getPixels(img2);
         //checkGamut(res);
         writeImage(img2, "TIFF", "output-from-photorgb-tiff16-srgb8.tiff");
+        logger.info("Converting to sRGB 8 bit with tile pipeline");
+        BufferedImage img3 = new TilePipeline("image/tiff", "data/photorgb-sample-t16.tiff").toSrgb().to8Bit().toImage();
+        checkColorspace(img3);
+        checkSameData(img2, img3);
+        logger.info("Writing sRGB 8 bit with tile pipeline and streaming writer");
+        new TilePipeline("image/tiff", "data/photorgb-sample-t16.tiff").toSrgb().to8Bit()
+                .write("TIFF", new File("output-from-photorgb-tiff16-srgb8-pipeline.tiff"),
+                        new StreamingImageWriter.Options().compression("Deflate"));
+        img3 = loadImage("image/tiff", "output-from-photorgb-tiff16-srgb8-pipeline.tiff");
+        checkSameData(img2, img3);
+        logger.info("Converting to sRGB 8 bit from tiled image");
+        try (TiledImage tiled = new TiledImage("image/tiff", "data/photorgb-sample-t16.tiff",
+                new ImageLoader.Options(), 16, 16)) {
+            img3 = new TilePipeline(tiled).toSrgb().to8Bit().toImage();
+            checkSameData(img2, img3);
+            logger.info("Cropping tiled image");
+            img3 = tiled.getImage(new Rectangle(10, 5, 20, 30));
+            checkSameData(loadImage("image/tiff", "data/photorgb-sample-t16.tiff",
+                    new ImageLoader.Options().sourceRegion(10, 5, 20, 30)), img3);
+        }
+        logger.info("Generating Deep Zoom pyramid");
+        new PyramidGenerator(new PyramidGenerator.Options().tileSize(16).overlap(0).format("png"))
+                .generate(loadImage("image/tiff", "data/photorgb-sample-t16.tiff"), new File("output-pyramid"), "photorgb");
+        img3 = loadImage("image/png", "output-pyramid/photorgb_files/6/1_1.png");
+        checkSameData(img2.getSubimage(16, 16, 16, 16), img3);
+        logger.info("Packing sRGB 8 bit into TYPE_INT_RGB");
+        checkSameRgb(new ColorConvertOp(null).filter(img2,
+                new BufferedImage(img2.getWidth(), img2.getHeight(), BufferedImage.TYPE_INT_RGB)), convertToNonAlpha(img2));
+        logger.info("Comparing vector kernels with scalar kernels");
+        checkKernels();
 
         /*
          * PhotoRGB TIFF 16-bit depth to scaled TIFF with profile 
@@ -458,6 +572,11 @@ public class Test16BitColor {
         //checkGamut(res);
         writeImage(img2, "TIFF", "output-from-srgb-tiff16-scale2x-interp.tiff");
 
+        logger.info(ColorTransformCache.getShared().toString());
+        logger.info(ImageReaderPool.getShared().toString());
+        logger.info(ProfileRegistry.getShared().toString());
+        logger.info(TileCache.getShared().toString());
+        logger.info(ImagingMetrics.getSummary());
         logger.info("Java version: " + System.getProperty("java.version"));
 	}
 
@@ -9,23 +9,14 @@ import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
-import javax.imageio.ImageReader;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.stream.FileImageInputStream;
-
 public class TestColorConvertOp {
 
 	static Logger logger = Logger.getLogger(TestColorConvertOp.class.getName());
@@ -43,44 +34,7 @@ public class TestColorConvertOp {
 
 	private static BufferedImage loadImage(String mt, String fn, boolean destSrgb, int destIdx)
 			throws Exception, FileNotFoundException, IOException {
-		// let ImageIO choose Reader type
-		ImageReader reader = null;
-		logger.fine("getting ImageReader for type " + mt);
-		Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(mt);
-		if (readers.hasNext()) {
-			reader = readers.next();
-		} else {
-			throw new Exception("Can't find Reader to load File with mime-type " + mt + "!");
-		}
-		// set input
-		RandomAccessFile rf = new RandomAccessFile(fn, "r");
-		FileImageInputStream istream = new FileImageInputStream(rf);
-		reader.setInput(istream);
-		// choose default readParam
-		ImageReadParam readParam = reader.getDefaultReadParam();
-		// show alternative imageTypes
-		int idx = 1;
-		for (Iterator<ImageTypeSpecifier> i = reader.getImageTypes(0); i.hasNext(); ++idx) {
-			ImageTypeSpecifier type = (ImageTypeSpecifier) i.next();
-			ColorModel cm = type.getColorModel();
-			ColorSpace cs = cm.getColorSpace();
-			logger.fine("  possible destination color model " + idx + ": " + cm + " color space: " + cs + " is sRGB="
-					+ cs.isCS_sRGB());
-			if (destIdx == 0 && destSrgb && cs.isCS_sRGB()) {
-				logger.fine("    selected as destination");
-				readParam.setDestinationType(type);
-			}
-			if (destIdx > 0 && idx == destIdx) {
-				logger.fine("    selected as destination");
-				readParam.setDestinationType(type);
-			}
-		}
-
-		// read image
-		logger.fine("Loading file: " + fn);
-		logger.fine("Using reader: " + reader);
-		BufferedImage img = reader.read(0, readParam);
-		return img;
+		return ImageLoader.loadImage(mt, fn, new ImageLoader.Options().destSrgb(destSrgb).destIdx(destIdx));
 	}
 
 	private static BufferedImage changeProfile1(BufferedImage inBi, ICC_Profile profile) {
@@ -88,9 +42,9 @@ public class TestColorConvertOp {
 		boolean hasAlpha = inCM.hasAlpha();
 		boolean isAlphaPre = inCM.isAlphaPremultiplied();
 		int transferType = inCM.getTransferType();
-		ColorSpace outCS = new ICC_ColorSpace(profile);
-		ColorModel outCM = new ComponentColorModel(outCS, hasAlpha, isAlphaPre, ColorModel.OPAQUE, transferType);
-		WritableRaster outRaster = outCM.createCompatibleWritableRaster(inBi.getWidth(), inBi.getHeight());
+		ColorModel outCM = ProfileRegistry.getShared().getColorModel(profile, null, hasAlpha, isAlphaPre,
+				ColorModel.OPAQUE, transferType);
+		WritableRaster outRaster = OffHeapRasters.createCompatibleWritableRaster(outCM, inBi.getWidth(), inBi.getHeight());
 		BufferedImage outBi = new BufferedImage(outCM, outRaster, isAlphaPre, null);
 		outBi.setData(inBi.getRaster());
 		return outBi;
@@ -103,27 +57,29 @@ public class TestColorConvertOp {
 		boolean isAlphaPre = inCM.isAlphaPremultiplied();
 		int[] bits = inCM.getComponentSize();
 		int transferType = inCM.getTransferType();
-		ColorSpace outCS = new ICC_ColorSpace(profile);
-		ColorModel cm = new ComponentColorModel(outCS, bits, hasAlpha, isAlphaPre, Transparency.OPAQUE,
-				transferType);
+		ColorModel cm = ProfileRegistry.getShared().getColorModel(profile, bits, hasAlpha, isAlphaPre,
+				Transparency.OPAQUE, transferType);
 		BufferedImage outBi = new BufferedImage(cm, inBi.getRaster(), isAlphaPre, null);
 		return outBi;
 	}
 
 	private static BufferedImage convertToProfile(BufferedImage img, ICC_Profile profile) {
-		ColorConvertOp cco = new ColorConvertOp(new ICC_Profile[] { profile }, null);
-		BufferedImage bi = cco.filter(img, null);
+		BufferedImage bi = ColorTransformCache.getShared().filterImage(img,
+				ProfileRegistry.getShared().getColorSpace(profile));
 		return bi;
 	}
 
 	private static BufferedImage convertToSrgb(BufferedImage img) {
-		ColorConvertOp cco = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_sRGB), null);
-		BufferedImage bi = cco.filter(img, null);
+		ColorSpace srgbCS = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+		BufferedImage bi = MatrixShaperConverter.tryConvert(img, srgbCS);
+		if (bi == null) {
+			bi = ColorTransformCache.getShared().filterImage(img, srgbCS);
+		}
 		return bi;
 	}
 
 	private static void changeRasterToSrgb1(BufferedImage img, ICC_Profile realProfile) {
-		ColorSpace realCS = new ICC_ColorSpace(realProfile);
+		ColorSpace realCS = ProfileRegistry.getShared().getColorSpace(realProfile);
 		ColorSpace srgbCS = ColorSpace.getInstance(ColorSpace.CS_sRGB);
 		ColorConvertOp cco = new ColorConvertOp(realCS, srgbCS, null);
 		cco.filter(img.getRaster(), img.getRaster());
@@ -138,7 +94,6 @@ public class TestColorConvertOp {
 	private static void changeRasterToSrgb(BufferedImage img, ICC_Profile realProfile) {
         // method suggested by Harald K in https://stackoverflow.com/a/74873159/4912 
 		ICC_Profile srgbProf = ICC_Profile.getInstance(ColorSpace.CS_sRGB);
-		ColorConvertOp cco = new ColorConvertOp(new ICC_Profile[] {realProfile, srgbProf}, null);
 		WritableRaster colorRaster;
 		if (img.getColorModel().hasAlpha()) {
 			// use subraster with only color components 
@@ -146,14 +101,14 @@ public class TestColorConvertOp {
 		} else {
 			colorRaster = img.getRaster();
 		}
-		cco.filter(colorRaster, colorRaster);
+		if (!MatrixShaperConverter.tryConvert(colorRaster, colorRaster, realProfile, srgbProf)) {
+			ColorTransformCache.getShared().filterRaster(colorRaster, realProfile, srgbProf);
+		}
 	}
 
 	private static BufferedImage convertToNonAlpha(BufferedImage img) {
-		BufferedImage bi = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-		ColorConvertOp cco = new ColorConvertOp(null);
-		BufferedImage bo = cco.filter(img, bi);
-		return bo;
+		// packed by the kernels if it is 8 bit sRGB, else with ColorConvertOp
+		return BatchRunner.toIntRgb(img);
 	}
 
 	private static ICC_Profile getProfile(BufferedImage img) {
@@ -161,7 +116,7 @@ public class TestColorConvertOp {
 		ColorModel cm = img.getColorModel();
 		ColorSpace cs = cm.getColorSpace();
 		if (cs instanceof ICC_ColorSpace) {
-			prof = ((ICC_ColorSpace) cs).getProfile();
+			prof = ProfileRegistry.getShared().getProfile(((ICC_ColorSpace) cs).getProfile());
 		}
 		return prof;
 	}
@@ -344,6 +299,8 @@ public class TestColorConvertOp {
 		res = getPixels(img);
 		checkGamut(res);
 
+		logger.info(ColorTransformCache.getShared().toString());
+		logger.info(ProfileRegistry.getShared().toString());
 	}
 
 }
\ No newline at end of file
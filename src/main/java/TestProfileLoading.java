@@ -4,21 +4,13 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
-import javax.imageio.ImageReader;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.stream.FileImageInputStream;
-
 public class TestProfileLoading {
 
     static Logger logger = Logger.getLogger(TestProfileLoading.class.getName());
@@ -36,40 +28,7 @@ public class TestProfileLoading {
 
     private static BufferedImage loadImage(String mt, String fn, boolean destSrgb)
             throws Exception, FileNotFoundException, IOException {
-        // let ImageIO choose Reader type
-        ImageReader reader = null;
-        logger.fine("getting ImageReader for type " + mt);
-        Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(mt);
-        if (readers.hasNext()) {
-            reader = readers.next();
-        } else {
-            throw new Exception("Can't find Reader to load File with mime-type " + mt + "!");
-        }
-        // set input
-        RandomAccessFile rf = new RandomAccessFile(fn, "r");
-        FileImageInputStream istream = new FileImageInputStream(rf);
-        reader.setInput(istream);
-        // choose default readParam
-        ImageReadParam readParam = reader.getDefaultReadParam();
-        // show alternative imageTypes
-        for (Iterator<ImageTypeSpecifier> i = reader.getImageTypes(0); i.hasNext();) {
-            ImageTypeSpecifier type = (ImageTypeSpecifier) i.next();
-            ColorModel cm = type.getColorModel();
-            ColorSpace cs = cm.getColorSpace();
-            logger.fine(
-                    "  possible destination color model: " + cm + " color space: " + cs + " is sRGB=" + cs.isCS_sRGB() 
-                    + " bitdepth=" + Arrays.toString(cm.getComponentSize()));
-            if (destSrgb && cs.isCS_sRGB()) {
-                logger.fine("    selected as destination");
-                readParam.setDestinationType(type);
-            }
-        }
-
-        // read image
-        logger.fine("Loading file: " + fn);
-        logger.fine("Using reader: " + reader);
-        BufferedImage img = reader.read(0, readParam);
-        return img;
+        return ImageLoader.loadImage(mt, fn, new ImageLoader.Options().destSrgb(destSrgb));
     }
 
     private static Map<String, Integer> getPixels(BufferedImage img) {
@@ -0,0 +1,186 @@
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe LRU cache of decoded tiles, bounded by the bytes of the tile
+ * samples instead of the number of tiles.
+ *
+ * The tiles of all TiledImages share one cache, so the memory for decoded
+ * tiles stays fixed however many and however large the open images are. The
+ * size of the shared cache is imaging.tileCache.bytes (default 64 MB). Tiles
+ * larger than the whole cache are not cached.
+ */
+public class TileCache {
+
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private static final TileCache sharedCache = new TileCache(
+			Long.getLong("imaging.tileCache.bytes", DEFAULT_MAX_BYTES));
+
+	private final long maxBytes;
+	/** access-ordered for LRU eviction, guarded by itself like bytes */
+	private final LinkedHashMap<Key, Raster> cache = new LinkedHashMap<Key, Raster>(16, 0.75f, true);
+	private long bytes = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public TileCache(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	public static TileCache getShared() {
+		return sharedCache;
+	}
+
+	/**
+	 * Returns the cached tile of the image, null if it isn't cached.
+	 */
+	public Raster get(Object image, int tileX, int tileY) {
+		Raster tile = lookup(image, tileX, tileY);
+		if (tile != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return tile;
+	}
+
+	/**
+	 * Returns the cached tile like get() without counting a hit or miss.
+	 */
+	Raster lookup(Object image, int tileX, int tileY) {
+		synchronized (cache) {
+			return cache.get(new Key(image, tileX, tileY));
+		}
+	}
+
+	/**
+	 * Adds the tile of the image, evicting the least recently used tiles of
+	 * all images beyond the maximum size.
+	 */
+	public void put(Object image, int tileX, int tileY, Raster tile) {
+		long size = getBytes(tile);
+		if (size > maxBytes) {
+			return;
+		}
+		synchronized (cache) {
+			Raster old = cache.put(new Key(image, tileX, tileY), tile);
+			if (old != null) {
+				bytes -= getBytes(old);
+			}
+			bytes += size;
+			for (Iterator<Raster> i = cache.values().iterator(); bytes > maxBytes && i.hasNext();) {
+				bytes -= getBytes(i.next());
+				i.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes the tiles of the image, e.g. when it is closed.
+	 */
+	public void removeAll(Object image) {
+		synchronized (cache) {
+			for (Iterator<Map.Entry<Key, Raster>> i = cache.entrySet().iterator(); i.hasNext();) {
+				Map.Entry<Key, Raster> entry = i.next();
+				if (entry.getKey().image == image) {
+					bytes -= getBytes(entry.getValue());
+					i.remove();
+				}
+			}
+		}
+	}
+
+	static long getBytes(Raster tile) {
+		return (long) tile.getWidth() * tile.getHeight() * tile.getNumBands()
+				* DataBuffer.getDataTypeSize(tile.getTransferType()) / 8;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Returns the bytes of the cached tiles.
+	 */
+	public long getBytes() {
+		synchronized (cache) {
+			return bytes;
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+			bytes = 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		long b;
+		int n;
+		synchronized (cache) {
+			b = bytes;
+			n = cache.size();
+		}
+		return "TileCache[tiles=" + n + " bytes=" + b + "/" + maxBytes + " hits=" + getHits() + " misses="
+				+ getMisses() + " evictions=" + getEvictions() + "]";
+	}
+
+	/**
+	 * Tile of an image, images are compared by identity.
+	 */
+	private static final class Key {
+		final Object image;
+		final int tileX;
+		final int tileY;
+
+		Key(Object image, int tileX, int tileY) {
+			this.image = image;
+			this.tileX = tileX;
+			this.tileY = tileY;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return image == k.image && tileX == k.tileX && tileY == k.tileY;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(image) * 31 + tileX) * 31 + tileY;
+		}
+	}
+}
@@ -0,0 +1,742 @@
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Single pass pipeline that decodes, converts, reduces and scales an image in
+ * strips of rows instead of creating a full size image for every step.
+ *
+ * The strips are sized to imaging.pipeline.stripBytes (default 256 KB) so the
+ * intermediate buffers stay in the cache. The buffers are reused for all
+ * strips, so apart from the result the memory use depends on the strip size
+ * and not on the image size. The input is decoded in larger chunks of
+ * imaging.pipeline.readBytes (default 4 MB) because every read has some
+ * overhead. The chunks are read with a source region, which reads only the
+ * needed strips or tiles of a TIFF. Other readers, e.g. for PNG and JPEG,
+ * have to decode all preceding rows again for every region, so images without
+ * tiles in other formats are decoded in a single chunk. write() passes the
+ * strips to a StreamingImageWriter, so a full size image is not even needed
+ * for the result.
+ *
+ * A pipeline from a TiledImage copies the chunks from its cached tiles, of the
+ * whole image or of a region, e.g. for crops and zoom levels of a master that
+ * is read many times. The tile cache should hold a row of tiles of the
+ * region, else tiles are decoded again for the next chunk.
+ *
+ * Example:
+ * <pre>
+ * BufferedImage img = new TilePipeline("image/tiff", "master.tiff").toSrgb().to8Bit().scale(0.5, 0.5).toImage();
+ * </pre>
+ */
+public class TilePipeline {
+
+	static Logger logger = Logger.getLogger(TilePipeline.class.getName());
+
+	public static final int DEFAULT_STRIP_BYTES = 256 * 1024;
+
+	public static final int DEFAULT_READ_BYTES = 4 * 1024 * 1024;
+
+	private static final int stripBytes = Integer.getInteger("imaging.pipeline.stripBytes", DEFAULT_STRIP_BYTES);
+
+	private static final int readBytes = Integer.getInteger("imaging.pipeline.readBytes", DEFAULT_READ_BYTES);
+
+	private final String mt;
+	private final String fn;
+	private final ImageLoader.Options options;
+	private final TiledImage source;
+	private final Rectangle region;
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	public TilePipeline(String mt, String fn) {
+		this(mt, fn, new ImageLoader.Options());
+	}
+
+	/**
+	 * Pipeline for the file. Only the input options (mappedInput) are used.
+	 */
+	public TilePipeline(String mt, String fn, ImageLoader.Options options) {
+		this.mt = mt;
+		this.fn = fn;
+		this.options = options;
+		this.source = null;
+		this.region = null;
+	}
+
+	public TilePipeline(TiledImage source) {
+		this(source, source.getBounds());
+	}
+
+	/**
+	 * Pipeline for a region of the image, which is decoded through the tile
+	 * cache of the image.
+	 */
+	public TilePipeline(TiledImage source, Rectangle region) {
+		if (!source.getBounds().contains(region) || region.isEmpty()) {
+			throw new IllegalArgumentException("Region " + region + " not inside " + source.getBounds());
+		}
+		this.mt = null;
+		this.fn = null;
+		this.options = null;
+		this.source = source;
+		this.region = new Rectangle(region);
+	}
+
+	/**
+	 * Converts the colors to sRGB keeping the bit depth.
+	 */
+	public TilePipeline toSrgb() {
+		stages.add(new SrgbStage());
+		return this;
+	}
+
+	/**
+	 * Reduces 16 bit samples to 8 bit (rounded). Directly after toSrgb() both
+	 * steps are done together.
+	 */
+	public TilePipeline to8Bit() {
+		Stage last = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+		if (last instanceof SrgbStage) {
+			((SrgbStage) last).to8Bit = true;
+		} else {
+			stages.add(new ReduceStage());
+		}
+		return this;
+	}
+
+	/**
+	 * Scales with bilinear interpolation.
+	 */
+	public TilePipeline scale(double scaleX, double scaleY) {
+		if (!(scaleX > 0 && scaleY > 0)) {
+			throw new IllegalArgumentException("Invalid scale factor: " + scaleX + ", " + scaleY);
+		}
+		stages.add(new ScaleStage(scaleX, scaleY));
+		return this;
+	}
+
+	/**
+	 * Runs the pipeline and returns the resulting image.
+	 */
+	public BufferedImage toImage() throws IOException {
+		ImageSink sink = new ImageSink();
+		run(sink);
+		return sink.image;
+	}
+
+	/**
+	 * Runs the pipeline and writes the result with the default write options.
+	 */
+	public void write(String format, File file) throws IOException {
+		write(format, file, new StreamingImageWriter.Options());
+	}
+
+	/**
+	 * Runs the pipeline and writes the result while it is produced.
+	 */
+	public void write(String format, File file, StreamingImageWriter.Options writeOptions) throws IOException {
+		Future<File> result = writeAsync(format, file, writeOptions);
+		try {
+			result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing " + file, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Writing " + file + " failed", cause);
+		}
+	}
+
+	/**
+	 * Runs the pipeline and passes the rows to a StreamingImageWriter. Returns
+	 * when all rows are produced, the returned Future completes when the last
+	 * rows are written.
+	 */
+	public Future<File> writeAsync(String format, File file, StreamingImageWriter.Options writeOptions)
+			throws IOException {
+		StreamingImageWriter writer = new StreamingImageWriter(format, file, writeOptions);
+		try {
+			run(new WriterSink(writer));
+		} catch (IOException | RuntimeException e) {
+			writer.abort(e);
+			throw e;
+		}
+		return writer.finish();
+	}
+
+	private void run(Stage sink) throws IOException {
+		// link the stages
+		Stage first = sink;
+		for (int i = stages.size() - 1; i >= 0; --i) {
+			Stage stage = stages.get(i);
+			stage.next = first;
+			first = stage;
+		}
+		if (source != null) {
+			runTiled(first);
+			return;
+		}
+		ImageReaderPool readerPool = ImageReaderPool.getShared();
+		ImageReader reader = readerPool.acquire(mt);
+		try (ImageInputStream istream = ImageLoader.openStream(fn, options)) {
+			reader.setInput(istream);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			ImageTypeSpecifier type = reader.getImageTypes(0).next();
+			int numBands = type.getSampleModel().getNumBands();
+			int dataType = type.getSampleModel().getDataType();
+			int stripRows = getStripRows(width, height, numBands, dataType, stripBytes);
+			// read a multiple of the strip rows, or all rows at once if every chunk decodes the preceding rows
+			int readRows = !hasRowAccess(reader) ? height
+					: Math.min(height, Math.max(1, getStripRows(width, height, numBands, dataType, readBytes)
+							/ stripRows) * stripRows);
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Reading " + fn + " in chunks of " + readRows + " rows, strips of " + stripRows + " rows");
+			}
+			// the reader decodes every chunk into the same image
+			BufferedImage chunk = type.createBufferedImage(width, readRows);
+			ColorModel cm = ProfileRegistry.getShared().canonicalize(chunk).getColorModel();
+			ImageReadParam readParam = reader.getDefaultReadParam();
+			readParam.setDestination(chunk);
+			first.start(cm, width, height);
+			for (int y = 0; y < height; y += readRows) {
+				int rows = Math.min(readRows, height - y);
+				readParam.setSourceRegion(new Rectangle(0, y, width, rows));
+				ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.DECODE);
+				reader.read(0, readParam);
+				int bits = DataBuffer.getDataTypeSize(dataType);
+				timer.stop(width, rows, bits, null, (long) width * rows * numBands * bits / 8);
+				pushStrips(first, chunk.getRaster(), rows, y, stripRows);
+			}
+			first.finish();
+		} catch (UncheckedIOException e) {
+			// from the writer
+			throw e.getCause();
+		} finally {
+			readerPool.release(mt, reader);
+		}
+	}
+
+	/**
+	 * Returns true if the reader decodes a source region of full rows without
+	 * decoding the rows above it, i.e. for TIFF strips and tiled images.
+	 */
+	static boolean hasRowAccess(ImageReader reader) throws IOException {
+		if (reader.isImageTiled(0)) {
+			return true;
+		}
+		for (String name : reader.getOriginatingProvider().getFormatNames()) {
+			if ("tiff".equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the stages on the region of the TiledImage.
+	 */
+	private void runTiled(Stage first) throws IOException {
+		ColorModel cm = source.getColorModel();
+		int width = region.width;
+		int height = region.height;
+		int numBands = cm.getNumComponents();
+		int dataType = cm.getTransferType();
+		int stripRows = getStripRows(width, height, numBands, dataType, stripBytes);
+		int readRows = Math.min(height,
+				Math.max(1, getStripRows(width, height, numBands, dataType, readBytes) / stripRows) * stripRows);
+		WritableRaster chunk = cm.createCompatibleWritableRaster(width, readRows);
+		try {
+			first.start(cm, width, height);
+			for (int y = 0; y < height; y += readRows) {
+				int rows = Math.min(readRows, height - y);
+				source.copyData(getRows(chunk, rows).createWritableTranslatedChild(region.x, region.y + y));
+				pushStrips(first, chunk, rows, y, stripRows);
+			}
+			first.finish();
+		} catch (UncheckedIOException e) {
+			// from the tiles or the writer
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Passes the first rows of the chunk in strips to the first stage.
+	 */
+	private static void pushStrips(Stage first, WritableRaster chunk, int rows, int y, int stripRows) {
+		for (int r = 0; r < rows; r += stripRows) {
+			int n = Math.min(stripRows, rows - r);
+			first.push((n == chunk.getHeight()) ? chunk
+					: chunk.createWritableChild(0, r, chunk.getWidth(), n, 0, 0, null), y + r);
+		}
+	}
+
+	/**
+	 * Returns the number of rows of a strip of about stripBytes.
+	 */
+	static int getStripRows(int width, int height, int numBands, int dataType) {
+		return getStripRows(width, height, numBands, dataType, stripBytes);
+	}
+
+	private static int getStripRows(int width, int height, int numBands, int dataType, int bytes) {
+		long rowBytes = (long) width * numBands * (DataBuffer.getDataTypeSize(dataType) / 8);
+		return (int) Math.max(1, Math.min(height, bytes / Math.max(1, rowBytes)));
+	}
+
+	/**
+	 * Returns the first rows of the strip buffer.
+	 */
+	static WritableRaster getRows(WritableRaster strip, int rows) {
+		if (rows == strip.getHeight()) {
+			return strip;
+		}
+		return strip.createWritableChild(0, 0, strip.getWidth(), rows, 0, 0, null);
+	}
+
+	/**
+	 * Step of the pipeline. Stages get the input rows in order and pass their
+	 * output rows in order to the next stage. They may change the input rows.
+	 */
+	abstract static class Stage {
+		Stage next;
+		/** output format */
+		ColorModel colorModel;
+		int width;
+		int height;
+
+		/**
+		 * Sets up the stage for the input format and starts the next stage.
+		 */
+		abstract void start(ColorModel cm, int width, int height);
+
+		/**
+		 * Processes the input rows starting at row y.
+		 */
+		abstract void push(WritableRaster rows, int y);
+
+		void finish() {
+			next.finish();
+		}
+
+		void startNext(ColorModel cm, int width, int height) {
+			this.colorModel = cm;
+			this.width = width;
+			this.height = height;
+			next.start(cm, width, height);
+		}
+	}
+
+	/**
+	 * Conversion to sRGB in place, or into 8 bit buffers if to8Bit is set.
+	 */
+	static class SrgbStage extends Stage {
+		boolean to8Bit = false;
+		ColorModel inCM;
+		ICC_Profile profile;
+		ICC_Profile srgbProfile;
+		WritableRaster outStrip;
+
+		@Override
+		void start(ColorModel cm, int width, int height) {
+			ColorSpace cs = cm.getColorSpace();
+			if (!(cm instanceof ComponentColorModel) || !(cs instanceof ICC_ColorSpace)
+					|| cm.getNumColorComponents() != 3) {
+				throw new IllegalArgumentException("Unsupported ColorModel for sRGB conversion: " + cm);
+			}
+			inCM = cm;
+			profile = cs.isCS_sRGB() ? null : ((ICC_ColorSpace) cs).getProfile();
+			srgbProfile = ((ICC_ColorSpace) ColorSpace.getInstance(ColorSpace.CS_sRGB)).getProfile();
+			int[] bits = cm.getComponentSize();
+			int transferType = cm.getTransferType();
+			if (to8Bit && transferType == DataBuffer.TYPE_USHORT) {
+				bits = new int[bits.length];
+				Arrays.fill(bits, 8);
+				transferType = DataBuffer.TYPE_BYTE;
+			}
+			ColorModel outCM = ProfileRegistry.getShared().getColorModel(srgbProfile, bits, cm.hasAlpha(), false,
+					cm.getTransparency(), transferType);
+			if (transferType != cm.getTransferType()) {
+				outStrip = outCM.createCompatibleWritableRaster(width,
+						getStripRows(width, height, bits.length, transferType));
+			}
+			startNext(outCM, width, height);
+		}
+
+		@Override
+		void push(WritableRaster rows, int y) {
+			if (inCM.isAlphaPremultiplied()) {
+				// the colors have to be converted without alpha
+				new BufferedImage(inCM, rows, true, null).coerceData(false);
+			}
+			WritableRaster colors = getColorBands(rows);
+			if (outStrip == null) {
+				convert(colors, colors);
+				next.push(rows, y);
+				return;
+			}
+			int numRows = rows.getHeight();
+			for (int r = 0; r < numRows; r += outStrip.getHeight()) {
+				int n = Math.min(outStrip.getHeight(), numRows - r);
+				WritableRaster src = (n == numRows) ? rows : rows.createWritableChild(0, r, rows.getWidth(), n, 0, 0, null);
+				WritableRaster dest = getRows(outStrip, n);
+				if (profile != null
+						&& MatrixShaperConverter.tryConvert(getColorBands(src), getColorBands(dest), profile, srgbProfile)) {
+					if (inCM.hasAlpha()) {
+						int alpha = src.getNumBands() - 1;
+						BitDepthReducer.reduceTo8Bit(src.createChild(0, 0, src.getWidth(), n, 0, 0, new int[] { alpha }),
+								dest.createWritableChild(0, 0, dest.getWidth(), n, 0, 0, new int[] { alpha }), true);
+					}
+				} else {
+					convert(getColorBands(src), getColorBands(src));
+					BitDepthReducer.reduceTo8Bit(src, dest, true);
+				}
+				next.push(dest, y + r);
+			}
+		}
+
+		private void convert(Raster src, WritableRaster dest) {
+			if (profile == null) {
+				return;
+			}
+			if (!MatrixShaperConverter.tryConvert(src, dest, profile, srgbProfile)) {
+				ColorTransformCache.getShared().filterRaster(dest, profile, srgbProfile);
+			}
+		}
+
+		private WritableRaster getColorBands(WritableRaster raster) {
+			if (raster.getNumBands() == 3) {
+				return raster;
+			}
+			return raster.createWritableChild(0, 0, raster.getWidth(), raster.getHeight(), 0, 0, new int[] { 0, 1, 2 });
+		}
+	}
+
+	/**
+	 * Reduction of 16 bit samples to 8 bit.
+	 */
+	static class ReduceStage extends Stage {
+		WritableRaster outStrip;
+
+		@Override
+		void start(ColorModel cm, int width, int height) {
+			if (!(cm instanceof ComponentColorModel) || cm.getTransferType() != DataBuffer.TYPE_USHORT) {
+				// nothing to do
+				startNext(cm, width, height);
+				return;
+			}
+			int[] bits = new int[cm.getNumComponents()];
+			Arrays.fill(bits, 8);
+			ColorSpace cs = cm.getColorSpace();
+			ColorModel outCM;
+			if (cs instanceof ICC_ColorSpace) {
+				outCM = ProfileRegistry.getShared().getColorModel(((ICC_ColorSpace) cs).getProfile(), bits,
+						cm.hasAlpha(), cm.isAlphaPremultiplied(), cm.getTransparency(), DataBuffer.TYPE_BYTE);
+			} else {
+				outCM = new ComponentColorModel(cs, bits, cm.hasAlpha(), cm.isAlphaPremultiplied(),
+						cm.getTransparency(), DataBuffer.TYPE_BYTE);
+			}
+			outStrip = outCM.createCompatibleWritableRaster(width,
+					getStripRows(width, height, bits.length, DataBuffer.TYPE_BYTE));
+			startNext(outCM, width, height);
+		}
+
+		@Override
+		void push(WritableRaster rows, int y) {
+			if (outStrip == null) {
+				next.push(rows, y);
+				return;
+			}
+			int numRows = rows.getHeight();
+			for (int r = 0; r < numRows; r += outStrip.getHeight()) {
+				int n = Math.min(outStrip.getHeight(), numRows - r);
+				Raster src = (n == numRows) ? rows : rows.createChild(0, r, rows.getWidth(), n, 0, 0, null);
+				WritableRaster dest = getRows(outStrip, n);
+				BitDepthReducer.reduceTo8Bit(src, dest, true);
+				next.push(dest, y + r);
+			}
+		}
+	}
+
+	/**
+	 * Bilinear scaling. Every input row is first scaled horizontally, output
+	 * rows are interpolated from the last two horizontally scaled rows.
+	 */
+	static class ScaleStage extends Stage {
+		final double scaleX;
+		final double scaleY;
+		int inWidth;
+		int inHeight;
+		int numBands;
+		int maxValue;
+		/** left source pixel and weight of the right pixel for every output column */
+		int[] x0;
+		float[] fx;
+		int[] inRow;
+		/** horizontally scaled rows y0 and y1 */
+		float[] row0;
+		float[] row1;
+		int y0 = -1;
+		int y1 = -1;
+		int[] outRow;
+		WritableRaster outStrip;
+		int outStripY = 0;
+		int outStripRows = 0;
+		/** next output row */
+		int outY = 0;
+
+		ScaleStage(double scaleX, double scaleY) {
+			this.scaleX = scaleX;
+			this.scaleY = scaleY;
+		}
+
+		@Override
+		void start(ColorModel cm, int width, int height) {
+			inWidth = width;
+			inHeight = height;
+			numBands = cm.getNumComponents();
+			maxValue = (1 << cm.getComponentSize(0)) - 1;
+			int outWidth = Math.max(1, (int) Math.round(width * scaleX));
+			int outHeight = Math.max(1, (int) Math.round(height * scaleY));
+			x0 = new int[outWidth];
+			fx = new float[outWidth];
+			for (int x = 0; x < outWidth; ++x) {
+				// pixel centers like AffineTransformOp
+				double sx = Math.max(0, Math.min(width - 1, (x + 0.5) / scaleX - 0.5));
+				x0[x] = Math.min((int) sx, Math.max(0, width - 2));
+				fx[x] = (float) (sx - x0[x]);
+			}
+			inRow = new int[width * numBands];
+			row0 = new float[outWidth * numBands];
+			row1 = new float[outWidth * numBands];
+			outRow = new int[outWidth * numBands];
+			outStrip = cm.createCompatibleWritableRaster(outWidth, getStripRows(outWidth, outHeight, numBands,
+					cm.getTransferType()));
+			startNext(cm, outWidth, outHeight);
+		}
+
+		/**
+		 * Returns the source row position of output row y.
+		 */
+		private double getSourceY(int y) {
+			return Math.max(0, Math.min(inHeight - 1, (y + 0.5) / scaleY - 0.5));
+		}
+
+		@Override
+		void push(WritableRaster rows, int y) {
+			for (int r = 0; r < rows.getHeight(); ++r) {
+				int inY = y + r;
+				if (outY >= height) {
+					return;
+				}
+				int needY0 = (int) getSourceY(outY);
+				if (inY < needY0) {
+					// row not used
+					continue;
+				}
+				// keep the last two rows
+				float[] t = row0;
+				row0 = row1;
+				row1 = t;
+				y0 = y1;
+				y1 = inY;
+				readRow(rows, r, inRow);
+				scaleRow(inRow, row1);
+				// emit all output rows that are between y0 and y1
+				while (outY < height) {
+					double sy = getSourceY(outY);
+					int sy0 = (int) sy;
+					float f = (float) (sy - sy0);
+					if (sy0 == y1 && f == 0) {
+						interpolate(row1, row1, 0f);
+					} else if (sy0 == y0 && sy0 + 1 == y1) {
+						interpolate(row0, row1, f);
+					} else {
+						break;
+					}
+					++outY;
+				}
+			}
+		}
+
+		private void scaleRow(int[] src, float[] dest) {
+			int outWidth = x0.length;
+			int nb = numBands;
+			for (int x = 0; x < outWidth; ++x) {
+				int p0 = x0[x] * nb;
+				int p1 = (x0[x] + 1 < inWidth) ? p0 + nb : p0;
+				float f = fx[x];
+				for (int b = 0; b < nb; ++b) {
+					float v0 = src[p0 + b];
+					dest[x * nb + b] = v0 + f * (src[p1 + b] - v0);
+				}
+			}
+		}
+
+		private void interpolate(float[] r0, float[] r1, float f) {
+			int max = maxValue;
+			for (int i = 0; i < outRow.length; ++i) {
+				int v = (int) (r0[i] + f * (r1[i] - r0[i]) + 0.5f);
+				outRow[i] = (v > max) ? max : v;
+			}
+			writeRow(outStrip, outStripRows, outRow);
+			if (++outStripRows == outStrip.getHeight()) {
+				flush();
+			}
+		}
+
+		/**
+		 * Reads the samples of row r, directly from the bank array for byte and
+		 * ushort pixel interleaved rasters.
+		 */
+		private void readRow(Raster raster, int r, int[] samples) {
+			DataBuffer db = raster.getDataBuffer();
+			if (!(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+					|| !(db instanceof DataBufferByte || db instanceof DataBufferUShort)) {
+				raster.getPixels(0, r, raster.getWidth(), 1, samples);
+				return;
+			}
+			PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+			int pos = BitDepthReducer.getBaseOffset(raster) + r * sm.getScanlineStride();
+			int pixelStride = sm.getPixelStride();
+			int[] bandOffsets = sm.getBandOffsets();
+			int nb = numBands;
+			for (int b = 0; b < nb; ++b) {
+				int p = pos + bandOffsets[b];
+				if (db instanceof DataBufferByte) {
+					byte[] data = ((DataBufferByte) db).getData();
+					for (int i = b; i < samples.length; i += nb, p += pixelStride) {
+						samples[i] = data[p] & 0xff;
+					}
+				} else {
+					short[] data = ((DataBufferUShort) db).getData();
+					for (int i = b; i < samples.length; i += nb, p += pixelStride) {
+						samples[i] = data[p] & 0xffff;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Writes the samples of row r like readRow.
+		 */
+		private void writeRow(WritableRaster raster, int r, int[] samples) {
+			DataBuffer db = raster.getDataBuffer();
+			if (!(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+					|| !(db instanceof DataBufferByte || db instanceof DataBufferUShort)) {
+				raster.setPixels(0, r, raster.getWidth(), 1, samples);
+				return;
+			}
+			PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+			int pos = BitDepthReducer.getBaseOffset(raster) + r * sm.getScanlineStride();
+			int pixelStride = sm.getPixelStride();
+			int[] bandOffsets = sm.getBandOffsets();
+			int nb = numBands;
+			for (int b = 0; b < nb; ++b) {
+				int p = pos + bandOffsets[b];
+				if (db instanceof DataBufferByte) {
+					byte[] data = ((DataBufferByte) db).getData();
+					for (int i = b; i < samples.length; i += nb, p += pixelStride) {
+						data[p] = (byte) samples[i];
+					}
+				} else {
+					short[] data = ((DataBufferUShort) db).getData();
+					for (int i = b; i < samples.length; i += nb, p += pixelStride) {
+						data[p] = (short) samples[i];
+					}
+				}
+			}
+		}
+
+		private void flush() {
+			if (outStripRows > 0) {
+				next.push(getRows(outStrip, outStripRows), outStripY);
+				outStripY += outStripRows;
+				outStripRows = 0;
+			}
+		}
+
+		@Override
+		void finish() {
+			flush();
+			next.finish();
+		}
+	}
+
+	/**
+	 * Passes the rows to a StreamingImageWriter.
+	 */
+	static class WriterSink extends Stage {
+		final StreamingImageWriter writer;
+
+		WriterSink(StreamingImageWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		void start(ColorModel cm, int width, int height) {
+			writer.start(cm, width, height);
+		}
+
+		@Override
+		void push(WritableRaster rows, int y) {
+			try {
+				writer.write(rows, y);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		void finish() {
+		}
+	}
+
+	/**
+	 * Collects the rows in an image.
+	 */
+	static class ImageSink extends Stage {
+		BufferedImage image;
+
+		@Override
+		void start(ColorModel cm, int width, int height) {
+			image = new BufferedImage(cm, cm.createCompatibleWritableRaster(width, height),
+					cm.isAlphaPremultiplied(), null);
+		}
+
+		@Override
+		void push(WritableRaster rows, int y) {
+			image.getRaster().setDataElements(0, y, rows);
+		}
+
+		@Override
+		void finish() {
+		}
+	}
+}
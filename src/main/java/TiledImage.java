@@ -0,0 +1,443 @@
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * RenderedImage that decodes its tiles on demand instead of reading the whole
+ * image, for crops and scaled versions of very large masters.
+ *
+ * Tiles are read with a source region, which for a TIFF reads only the
+ * strips or tiles covering the region. The decoded tiles are kept in the
+ * shared, memory bounded TileCache, so the memory use is fixed by the cache
+ * size and not by the image size. The tile grid is the one of a tiled TIFF
+ * or the given tile size. Readers decode whole strips of untiled images (and
+ * PNG or JPEG readers all rows above the region), so untiled images have
+ * tiles of full rows, with about DEFAULT_TILE_SIZE^2 pixels and a multiple of
+ * the rows per strip of a TIFF. Tiles at the right and bottom edge are
+ * clipped to the image.
+ *
+ * The image keeps its own readers and input streams open, one per thread
+ * decoding at the same time, until close(). Tiles and rasters from getTile()
+ * are shared and must not be modified, getData(), copyData() and getImage()
+ * return copies.
+ *
+ * Example:
+ * <pre>
+ * try (TiledImage master = new TiledImage("image/tiff", "master.tiff")) {
+ *     BufferedImage crop = master.getImage(new Rectangle(10000, 10000, 1024, 1024));
+ *     BufferedImage zoom = new TilePipeline(master).toSrgb().to8Bit().scale(0.05, 0.05).toImage();
+ * }
+ * </pre>
+ */
+public class TiledImage implements RenderedImage, Closeable {
+
+	static Logger logger = Logger.getLogger(TiledImage.class.getName());
+
+	public static final int DEFAULT_TILE_SIZE = 512;
+
+	/** locks per tile index against decoding a tile twice */
+	private static final int NUM_LOCKS = 32;
+
+	private final String mt;
+	private final String fn;
+	private final ImageLoader.Options options;
+	private final TileCache tileCache;
+	private final int width;
+	private final int height;
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int numXTiles;
+	private final int numYTiles;
+	private final ImageTypeSpecifier type;
+	private final ColorModel colorModel;
+	private final SampleModel sampleModel;
+	private final Object[] locks = new Object[NUM_LOCKS];
+	private final ConcurrentLinkedQueue<Decoder> idle = new ConcurrentLinkedQueue<Decoder>();
+	private final AtomicLong decodes = new AtomicLong();
+	private volatile boolean closed = false;
+
+	public TiledImage(String mt, String fn) throws IOException {
+		this(mt, fn, new ImageLoader.Options());
+	}
+
+	public TiledImage(String mt, String fn, ImageLoader.Options options) throws IOException {
+		this(mt, fn, options, 0, 0);
+	}
+
+	/**
+	 * Opens the file with tiles of tileWidth x tileHeight pixels, 0 for the tile
+	 * grid of the file or full rows. Only the input options (mappedInput) are
+	 * used.
+	 */
+	public TiledImage(String mt, String fn, ImageLoader.Options options, int tileWidth, int tileHeight)
+			throws IOException {
+		if (tileWidth < 0 || tileHeight < 0) {
+			throw new IllegalArgumentException("Invalid tile size: " + tileWidth + "x" + tileHeight);
+		}
+		this.mt = mt;
+		this.fn = fn;
+		this.options = options;
+		this.tileCache = TileCache.getShared();
+		for (int i = 0; i < NUM_LOCKS; ++i) {
+			locks[i] = new Object();
+		}
+		Decoder decoder = acquireDecoder();
+		try {
+			ImageReader reader = decoder.reader;
+			width = reader.getWidth(0);
+			height = reader.getHeight(0);
+			boolean tiled = reader.isImageTiled(0);
+			if (tileWidth == 0) {
+				tileWidth = tiled ? reader.getTileWidth(0) : width;
+			}
+			if (tileHeight == 0 && tiled) {
+				tileHeight = reader.getTileHeight(0);
+			} else if (tileHeight == 0) {
+				// whole strips of about DEFAULT_TILE_SIZE^2 pixels
+				int stripRows = Math.max(1, getRowsPerStrip(reader));
+				int rows = Math.max(1, DEFAULT_TILE_SIZE * DEFAULT_TILE_SIZE / Math.min(tileWidth, width));
+				tileHeight = (int) Math.min(height, (long) Math.max(1, rows / stripRows) * stripRows);
+			}
+			type = reader.getImageTypes(0).next();
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		} finally {
+			releaseDecoder(decoder);
+		}
+		this.tileWidth = Math.min(tileWidth, width);
+		this.tileHeight = Math.min(tileHeight, height);
+		numXTiles = (width + this.tileWidth - 1) / this.tileWidth;
+		numYTiles = (height + this.tileHeight - 1) / this.tileHeight;
+		colorModel = ProfileRegistry.getShared().canonicalize(type.createBufferedImage(1, 1)).getColorModel();
+		sampleModel = colorModel.createCompatibleSampleModel(this.tileWidth, this.tileHeight);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Opened " + fn + " " + width + "x" + height + " with " + numXTiles + "x" + numYTiles
+					+ " tiles of " + this.tileWidth + "x" + this.tileHeight);
+		}
+	}
+
+	/**
+	 * Returns the decoded tile, from the TileCache or decoded now.
+	 *
+	 * @throws UncheckedIOException if the tile can't be decoded
+	 */
+	@Override
+	public Raster getTile(int tileX, int tileY) {
+		if (tileX < 0 || tileX >= numXTiles || tileY < 0 || tileY >= numYTiles) {
+			throw new IllegalArgumentException("Invalid tile " + tileX + "," + tileY + " of " + fn);
+		}
+		Raster tile = tileCache.get(this, tileX, tileY);
+		if (tile != null) {
+			return tile;
+		}
+		synchronized (locks[(tileY * numXTiles + tileX) % NUM_LOCKS]) {
+			// another thread may have decoded it meanwhile
+			tile = tileCache.lookup(this, tileX, tileY);
+			if (tile == null) {
+				try {
+					tile = decodeTile(tileX, tileY);
+				} catch (IOException e) {
+					throw new UncheckedIOException("Can't decode tile " + tileX + "," + tileY + " of " + fn, e);
+				}
+				tileCache.put(this, tileX, tileY, tile);
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Returns the RowsPerStrip of an untiled TIFF, 0 for other images or if the
+	 * metadata can't be read.
+	 */
+	static int getRowsPerStrip(ImageReader reader) {
+		try {
+			IIOMetadata metadata = reader.getImageMetadata(0);
+			String format = (metadata != null) ? metadata.getNativeMetadataFormatName() : null;
+			if (format == null || !format.contains("tiff")) {
+				return 0;
+			}
+			NodeList fields = ((Element) metadata.getAsTree(format)).getElementsByTagName("TIFFField");
+			for (int i = 0; i < fields.getLength(); ++i) {
+				Element field = (Element) fields.item(i);
+				if (!"278".equals(field.getAttribute("number"))) {
+					continue;
+				}
+				// TIFFShorts/TIFFShort or TIFFLongs/TIFFLong
+				NodeList values = field.getElementsByTagName("*");
+				for (int j = 0; j < values.getLength(); ++j) {
+					Element value = (Element) values.item(j);
+					if (value.hasAttribute("value")) {
+						return (int) Math.min(Integer.MAX_VALUE, Long.parseLong(value.getAttribute("value")));
+					}
+				}
+			}
+			// the default is a single strip
+			return Integer.MAX_VALUE;
+		} catch (IOException | RuntimeException e) {
+			logger.fine("Can't read RowsPerStrip: " + e);
+			return 0;
+		}
+	}
+
+	private Raster decodeTile(int tileX, int tileY) throws IOException {
+		Rectangle region = new Rectangle(tileX * tileWidth, tileY * tileHeight, tileWidth, tileHeight)
+				.intersection(getBounds());
+		Decoder decoder = acquireDecoder();
+		try {
+			ImageReadParam readParam = decoder.reader.getDefaultReadParam();
+			readParam.setDestinationType(type);
+			readParam.setSourceRegion(region);
+			ImagingMetrics.Timer timer = ImagingMetrics.start(ImagingMetrics.Stage.DECODE);
+			Raster raster = decoder.reader.read(0, readParam).getRaster();
+			timer.stop(raster);
+			decodes.incrementAndGet();
+			return raster.createTranslatedChild(region.x, region.y);
+		} finally {
+			releaseDecoder(decoder);
+		}
+	}
+
+	private Decoder acquireDecoder() throws IOException {
+		if (closed) {
+			throw new IllegalStateException("Image is closed: " + fn);
+		}
+		Decoder decoder = idle.poll();
+		if (decoder == null) {
+			ImageInputStream stream = ImageLoader.openStream(fn, options);
+			try {
+				decoder = new Decoder(ImageReaderPool.getShared().getReaderSpi(mt).createReaderInstance(), stream);
+			} catch (IOException | RuntimeException e) {
+				stream.close();
+				throw e;
+			}
+		}
+		return decoder;
+	}
+
+	private void releaseDecoder(Decoder decoder) {
+		idle.offer(decoder);
+		if (closed) {
+			// closed while the decoder was in use
+			close();
+		}
+	}
+
+	/**
+	 * Returns the image bounds, i.e. 0, 0, width, height.
+	 */
+	public Rectangle getBounds() {
+		return new Rectangle(0, 0, width, height);
+	}
+
+	/**
+	 * Returns a copy of the region as image at 0, 0.
+	 */
+	public BufferedImage getImage(Rectangle region) {
+		if (!getBounds().contains(region) || region.isEmpty()) {
+			throw new IllegalArgumentException("Region " + region + " not inside " + getBounds());
+		}
+		WritableRaster raster = colorModel.createCompatibleWritableRaster(region.width, region.height);
+		copyData(raster.createWritableTranslatedChild(region.x, region.y));
+		return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+	}
+
+	@Override
+	public Raster getData() {
+		return getData(getBounds());
+	}
+
+	@Override
+	public Raster getData(Rectangle rect) {
+		WritableRaster raster = Raster.createWritableRaster(
+				sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y));
+		return copyData(raster);
+	}
+
+	/**
+	 * Copies the part of the image inside the bounds of the raster from the
+	 * tiles, the whole image into a new raster if raster is null.
+	 */
+	@Override
+	public WritableRaster copyData(WritableRaster raster) {
+		if (raster == null) {
+			raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, height), null);
+		}
+		Rectangle bounds = raster.getBounds().intersection(getBounds());
+		if (bounds.isEmpty()) {
+			return raster;
+		}
+		int tx0 = bounds.x / tileWidth;
+		int tx1 = (bounds.x + bounds.width - 1) / tileWidth;
+		int ty0 = bounds.y / tileHeight;
+		int ty1 = (bounds.y + bounds.height - 1) / tileHeight;
+		for (int ty = ty0; ty <= ty1; ++ty) {
+			for (int tx = tx0; tx <= tx1; ++tx) {
+				Raster tile = getTile(tx, ty);
+				Rectangle r = tile.getBounds().intersection(bounds);
+				// the child keeps the position, setDataElements adds it
+				raster.setDataElements(0, 0, tile.createChild(r.x, r.y, r.width, r.height, r.x, r.y, null));
+			}
+		}
+		return raster;
+	}
+
+	/**
+	 * Returns the number of tiles decoded so far, including tiles decoded again
+	 * after they were evicted from the cache.
+	 */
+	public long getDecodeCount() {
+		return decodes.get();
+	}
+
+	/**
+	 * Removes the tiles from the cache and closes the readers. Tiles can't be
+	 * decoded afterwards.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		tileCache.removeAll(this);
+		Decoder decoder;
+		while ((decoder = idle.poll()) != null) {
+			decoder.close();
+		}
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames() {
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	@Override
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getMinX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinY() {
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles() {
+		return numXTiles;
+	}
+
+	@Override
+	public int getNumYTiles() {
+		return numYTiles;
+	}
+
+	@Override
+	public int getMinTileX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY() {
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	@Override
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	@Override
+	public int getTileGridXOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset() {
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return "TiledImage[" + fn + " " + width + "x" + height + " tiles=" + numXTiles + "x" + numYTiles + " of "
+				+ tileWidth + "x" + tileHeight + " decodes=" + getDecodeCount() + "]";
+	}
+
+	/**
+	 * Reader with its own input stream, used by one thread at a time.
+	 */
+	private static final class Decoder {
+		final ImageReader reader;
+		final ImageInputStream stream;
+
+		Decoder(ImageReader reader, ImageInputStream stream) {
+			this.reader = reader;
+			this.stream = stream;
+			reader.setInput(stream);
+		}
+
+		void close() {
+			reader.dispose();
+			try {
+				stream.close();
+			} catch (IOException e) {
+				logger.warning("could not close input stream: " + e);
+			}
+		}
+	}
+}
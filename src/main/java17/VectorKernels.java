@@ -0,0 +1,179 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SampleKernels with the incubating Vector API of Java 17 and later, compiled
+ * into META-INF/versions/17 of the multi-release jar.
+ *
+ * The kernels use the preferred vector size of the CPU (256 bits for AVX2, 512
+ * bits for AVX-512) and need at least 256 bits. They do the same float and
+ * int operations in the same order as the scalar loops, so the results are
+ * identical. Tails and layouts without a vector version use the scalar loops.
+ */
+class VectorKernels extends SampleKernels {
+
+	static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	/** shorts and bytes with the number of lanes of INTS */
+	static final VectorSpecies<Short> INT_SHORTS = VectorSpecies.of(short.class,
+			VectorShape.forBitSize(INTS.vectorBitSize() / 2));
+	static final VectorSpecies<Byte> INT_BYTES = VectorSpecies.of(byte.class,
+			VectorShape.forBitSize(Math.max(64, INTS.vectorBitSize() / 4)));
+	/** the bytes of INTS */
+	static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+	/** shorts and the bytes with their number of lanes */
+	static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Byte> SHORT_BYTES = VectorSpecies.of(byte.class,
+			VectorShape.forBitSize(SHORTS.vectorBitSize() / 2));
+
+	VectorKernels() {
+		if (INTS.vectorBitSize() < 256) {
+			throw new UnsupportedOperationException("Vector size " + INTS.vectorBitSize() + " bits is too small");
+		}
+	}
+
+	@Override
+	void truncate(short[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		int i = 0;
+		for (int n = SHORTS.loopBound(len); i < n; i += SHORTS.length()) {
+			((ByteVector) ShortVector.fromArray(SHORTS, src, srcPos + i).lanewise(VectorOperators.ASHR, 8)
+					.convertShape(VectorOperators.S2B, SHORT_BYTES, 0)).intoArray(dst, dstPos + i);
+		}
+		super.truncate(src, srcPos + i, dst, dstPos + i, len - i);
+	}
+
+	@Override
+	void round(short[] src, int srcPos, byte[] dst, int dstPos, int len) {
+		int i = 0;
+		for (int n = INTS.loopBound(len); i < n; i += INTS.length()) {
+			IntVector v = (IntVector) ShortVector.fromArray(INT_SHORTS, src, srcPos + i)
+					.convertShape(VectorOperators.S2I, INTS, 0);
+			((ByteVector) v.and(0xffff).mul(255).add(32895).lanewise(VectorOperators.LSHR, 16)
+					.convertShape(VectorOperators.I2B, INT_BYTES, 0)).intoArray(dst, dstPos + i);
+		}
+		super.round(src, srcPos + i, dst, dstPos + i, len - i);
+	}
+
+	@Override
+	void applyMatrix(float[] m, float[] r, float[] g, float[] b, int len) {
+		final float m00 = m[0], m01 = m[1], m02 = m[2];
+		final float m10 = m[3], m11 = m[4], m12 = m[5];
+		final float m20 = m[6], m21 = m[7], m22 = m[8];
+		int i = 0;
+		for (int n = FLOATS.loopBound(len); i < n; i += FLOATS.length()) {
+			FloatVector vr = FloatVector.fromArray(FLOATS, r, i);
+			FloatVector vg = FloatVector.fromArray(FLOATS, g, i);
+			FloatVector vb = FloatVector.fromArray(FLOATS, b, i);
+			vr.mul(m00).add(vg.mul(m01)).add(vb.mul(m02)).intoArray(r, i);
+			vr.mul(m10).add(vg.mul(m11)).add(vb.mul(m12)).intoArray(g, i);
+			vr.mul(m20).add(vg.mul(m21)).add(vb.mul(m22)).intoArray(b, i);
+		}
+		for (; i < len; ++i) {
+			float vr = r[i], vg = g[i], vb = b[i];
+			r[i] = m00 * vr + m01 * vg + m02 * vb;
+			g[i] = m10 * vr + m11 * vg + m12 * vb;
+			b[i] = m20 * vr + m21 * vg + m22 * vb;
+		}
+	}
+
+	@Override
+	void premultiply(float[] line, int numBands, int alphaBand, float maxAlpha) {
+		if (FLOATS.length() % numBands != 0) {
+			super.premultiply(line, numBands, alphaBand, maxAlpha);
+			return;
+		}
+		VectorShuffle<Float> alpha = getAlphaShuffle(numBands, alphaBand);
+		VectorMask<Float> colors = getColorMask(numBands, alphaBand);
+		float scale = 1 / maxAlpha;
+		int o = 0;
+		for (int n = FLOATS.loopBound(line.length); o < n; o += FLOATS.length()) {
+			FloatVector v = FloatVector.fromArray(FLOATS, line, o);
+			v.mul(v.rearrange(alpha).mul(scale), colors).intoArray(line, o);
+		}
+		for (; o < line.length; o += numBands) {
+			float a = line[o + alphaBand] * scale;
+			for (int b = 0; b < numBands; ++b) {
+				if (b != alphaBand) {
+					line[o + b] *= a;
+				}
+			}
+		}
+	}
+
+	@Override
+	void unpremultiply(float[] line, int numBands, int alphaBand, float maxAlpha) {
+		if (FLOATS.length() % numBands != 0) {
+			super.unpremultiply(line, numBands, alphaBand, maxAlpha);
+			return;
+		}
+		VectorShuffle<Float> alpha = getAlphaShuffle(numBands, alphaBand);
+		VectorMask<Float> colors = getColorMask(numBands, alphaBand);
+		FloatVector max = FloatVector.broadcast(FLOATS, maxAlpha);
+		int o = 0;
+		for (int n = FLOATS.loopBound(line.length); o < n; o += FLOATS.length()) {
+			FloatVector v = FloatVector.fromArray(FLOATS, line, o);
+			FloatVector a = v.rearrange(alpha);
+			// 0 for alpha 0 (and NaN)
+			FloatVector scale = max.div(a).blend(0f, a.compare(VectorOperators.GT, 0f).not());
+			v.mul(scale, colors).intoArray(line, o);
+		}
+		for (; o < line.length; o += numBands) {
+			float a = line[o + alphaBand];
+			float scale = (a > 0) ? maxAlpha / a : 0;
+			for (int b = 0; b < numBands; ++b) {
+				if (b != alphaBand) {
+					line[o + b] *= scale;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the shuffle that puts the alpha sample of every pixel into all
+	 * lanes of the pixel.
+	 */
+	private static VectorShuffle<Float> getAlphaShuffle(int numBands, int alphaBand) {
+		return VectorShuffle.fromOp(FLOATS, i -> i - i % numBands + alphaBand);
+	}
+
+	private static VectorMask<Float> getColorMask(int numBands, int alphaBand) {
+		boolean[] colors = new boolean[FLOATS.length()];
+		for (int i = 0; i < colors.length; ++i) {
+			colors[i] = i % numBands != alphaBand;
+		}
+		return VectorMask.fromArray(FLOATS, colors, 0);
+	}
+
+	@Override
+	void packRgb(byte[] src, int srcPos, int pixelStride, int[] bandOffsets, int[] dst, int dstPos, int len) {
+		if ((pixelStride != 3 && pixelStride != 4) || BYTES.length() != 4 * INTS.length()) {
+			super.packRgb(src, srcPos, pixelStride, bandOffsets, dst, dstPos, len);
+			return;
+		}
+		// red, green and blue of a pixel into the first three bytes of its int
+		final int[] offsets = { bandOffsets[0], bandOffsets[1], bandOffsets[2], bandOffsets[2] };
+		VectorShuffle<Byte> rgb = VectorShuffle.fromOp(BYTES, j -> j / 4 * pixelStride + offsets[j % 4]);
+		final int lanes = INTS.length();
+		int i = 0;
+		int p = srcPos;
+		for (; i + lanes <= len && p + BYTES.length() <= src.length; i += lanes, p += lanes * pixelStride) {
+			// little endian: 0xBBBBGGRR
+			IntVector v = ByteVector.fromArray(BYTES, src, p).rearrange(rgb).reinterpretAsInts();
+			v.and(0xff).lanewise(VectorOperators.LSHL, 16).or(v.and(0xff00))
+					.or(v.lanewise(VectorOperators.LSHR, 16).and(0xff)).intoArray(dst, dstPos + i);
+		}
+		super.packRgb(src, p, pixelStride, bandOffsets, dst, dstPos + i, len - i);
+	}
+
+	@Override
+	public String toString() {
+		return "SampleKernels[vector " + FLOATS.vectorBitSize() + " bit]";
+	}
+}